@@ -0,0 +1,138 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.sasl.AuthorizeCallback;
+
+import org.jboss.sasl.callback.VerifyPasswordCallback;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.picketlink.integration.PicketLinkCallbackHandler;
+
+/**
+ * Benchmarks for {@link PicketLinkCallbackHandler#handle(Callback[])} using the same callbacks the PLAIN mechanism passes
+ * to the handler.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallbackHandlerBenchmark {
+
+    private PicketLinkCallbackHandler handler;
+    private String[] usernames;
+    private String[] passwords;
+    private int next;
+
+    private Callback[] authorizeSelf;
+
+    @Setup(Level.Trial)
+    public void setUp(final IdentityStoreState state) {
+        handler = new PicketLinkCallbackHandler(state.identityManager());
+        usernames = state.usernames;
+        passwords = state.passwords;
+        authorizeSelf = new Callback[] { new AuthorizeCallback("Jack", "Jack") };
+    }
+
+    @Benchmark
+    public boolean plainSuccess() throws IOException, UnsupportedCallbackException {
+        int current = nextUser();
+
+        return verify(usernames[current], passwords[current]) && authorize(usernames[current], usernames[current]);
+    }
+
+    @Benchmark
+    public boolean plainBadPassword() throws IOException, UnsupportedCallbackException {
+        int current = nextUser();
+
+        return verify(usernames[current], "Bad_Password");
+    }
+
+    @Benchmark
+    public boolean plainUnknownUser() throws IOException, UnsupportedCallbackException {
+        int current = nextUser();
+
+        return verify("Unknown" + current, passwords[current]);
+    }
+
+    @Benchmark
+    public boolean runAsAuthorization() throws IOException, UnsupportedCallbackException {
+        // Relationship defined by AbstractTestBase.
+        return authorize("Oliver", "Harry");
+    }
+
+    /**
+     * Authorization as self never reaches the store and the callbacks are reused so this measures the allocation of the
+     * dispatch itself, with the GC profiler gc.alloc.rate.norm should be 0.
+     */
+    @Benchmark
+    public boolean dispatchOnly() throws IOException, UnsupportedCallbackException {
+        handler.handle(authorizeSelf);
+
+        return ((AuthorizeCallback) authorizeSelf[0]).isAuthorized();
+    }
+
+    private int nextUser() {
+        int current = next++;
+        if (next == usernames.length) {
+            next = 0;
+        }
+
+        return current;
+    }
+
+    private boolean verify(final String username, final String password) throws IOException, UnsupportedCallbackException {
+        NameCallback ncb = new NameCallback("PLAIN authentication identity", username);
+        VerifyPasswordCallback vpc = new VerifyPasswordCallback(password);
+        handler.handle(new Callback[] { ncb, vpc });
+
+        return vpc.isVerified();
+    }
+
+    private boolean authorize(final String authenticationId, final String authorizationId) throws IOException,
+            UnsupportedCallbackException {
+        AuthorizeCallback acb = new AuthorizeCallback(authenticationId, authorizationId);
+        handler.handle(new Callback[] { acb });
+
+        return acb.isAuthorized();
+    }
+
+}
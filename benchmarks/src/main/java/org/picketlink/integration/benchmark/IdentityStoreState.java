@@ -0,0 +1,70 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration.benchmark;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.picketlink.idm.IdentityManager;
+import org.picketlink.integration.AbstractTestBase;
+
+/**
+ * The shared state for the benchmarks, the {@link IdentityManager} is initialised using the same fixture as the tests with an
+ * additional number of generated users.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+@State(Scope.Benchmark)
+public class IdentityStoreState extends AbstractTestBase {
+
+    @Param({ "10", "1000", "100000", "1000000" })
+    public int users;
+
+    String[] usernames;
+    String[] passwords;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        initialise();
+
+        usernames = new String[users];
+        passwords = new String[users];
+        for (int i = 0; i < users; i++) {
+            usernames[i] = "User" + i;
+            passwords[i] = "User" + i + "_Password";
+            addUser(usernames[i], passwords[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanUp() {
+        tearDown();
+    }
+
+    IdentityManager identityManager() {
+        return getIdentityManager();
+    }
+
+}
@@ -0,0 +1,199 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.sasl.Sasl;
+import javax.security.sasl.SaslClient;
+import javax.security.sasl.SaslServer;
+
+/**
+ * Drives complete PLAIN exchanges between a {@link SaslClient} and a {@link SaslServer} from a number of concurrent threads
+ * against a single server side {@link CallbackHandler}.
+ *
+ * Each exchange is picked at random from a mix of successful authentications, bad passwords and successful and failed run
+ * as requests, an exchange with an outcome other than the one expected is counted as an error.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+class LoadGenerator {
+
+    private static final String PLAIN = "PLAIN";
+    private static final Map<String, Object> NO_PROPERTIES = Collections.<String, Object> emptyMap();
+
+    /**
+     * The exchanges to mix, the users and relationships are those defined by {@link AbstractTestBase}.
+     */
+    enum Exchange {
+        SUCCESS(70, "Jack", "Jack_Password", "Jack", true),
+        BAD_PASSWORD(15, "Charlie", "Alfie_Password", "Charlie", false),
+        RUN_AS(10, "Oliver", "Oliver_Password", "Harry", true),
+        FAILED_RUN_AS(5, "Harry", "Harry_Password", "Oliver", false);
+
+        private final int weight;
+        private final String username;
+        private final String password;
+        private final String authorizationId;
+        private final boolean expectSuccess;
+
+        private Exchange(final int weight, final String username, final String password, final String authorizationId,
+                final boolean expectSuccess) {
+            this.weight = weight;
+            this.username = username;
+            this.password = password;
+            this.authorizationId = authorizationId;
+            this.expectSuccess = expectSuccess;
+        }
+
+        static Exchange pick(final int random) {
+            int remaining = random;
+            for (Exchange current : values()) {
+                remaining -= current.weight;
+                if (remaining < 0) {
+                    return current;
+                }
+            }
+
+            return SUCCESS;
+        }
+
+    }
+
+    private final CallbackHandler serverCallback;
+
+    LoadGenerator(final CallbackHandler serverCallback) {
+        this.serverCallback = serverCallback;
+    }
+
+    /**
+     * Run the specified number of exchanges split across the specified number of threads.
+     *
+     * @param threads - the number of concurrent threads.
+     * @param exchanges - the total number of exchanges.
+     * @return the result of the run.
+     */
+    Result run(final int threads, final int exchanges) throws InterruptedException {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(threads);
+
+        for (int i = 0; i < threads; i++) {
+            final int perThread = exchanges / threads + (i < exchanges % threads ? 1 : 0);
+            Thread thread = new Thread(new Runnable() {
+
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < perThread; j++) {
+                            Exchange exchange = Exchange.pick(ThreadLocalRandom.current().nextInt(100));
+                            long begin = System.nanoTime();
+                            boolean success = exchange(exchange);
+                            latency.record(System.nanoTime() - begin);
+                            if (success != exchange.expectSuccess) {
+                                errors.incrementAndGet();
+                            }
+                        }
+                    } catch (Throwable t) {
+                        errors.incrementAndGet();
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }, "LoadGenerator-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        finished.await();
+        long elapsed = System.nanoTime() - begin;
+
+        return new Result(threads, latency, errors.get(), elapsed);
+    }
+
+    private boolean exchange(final Exchange exchange) throws IOException {
+        SaslServer server = Sasl.createSaslServer(PLAIN, "TestProtocol", "TestServer", NO_PROPERTIES, serverCallback);
+
+        CallbackHandler clientCallback = new ClientCallbackHandler(exchange.username, exchange.password.toCharArray());
+        SaslClient client = Sasl.createSaslClient(new String[] { PLAIN }, exchange.authorizationId, "TestProtocol",
+                "TestServer", NO_PROPERTIES, clientCallback);
+
+        byte[] message = client.evaluateChallenge(new byte[0]);
+        try {
+            server.evaluateResponse(message);
+        } catch (IOException e) {
+            return false;
+        }
+
+        return server.isComplete() && exchange.authorizationId.equals(server.getAuthorizationID());
+    }
+
+    static final class Result {
+
+        final int threads;
+        final long exchanges;
+        final long errors;
+        final double throughput;
+        final long p50;
+        final long p99;
+        final long p999;
+        final long max;
+
+        private Result(final int threads, final LatencyHistogram latency, final long errors, final long elapsedNanos) {
+            this.threads = threads;
+            this.exchanges = latency.getCount();
+            this.errors = errors;
+            this.throughput = exchanges / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+            this.p50 = latency.getValueAtPercentile(50);
+            this.p99 = latency.getValueAtPercentile(99);
+            this.p999 = latency.getValueAtPercentile(99.9);
+            this.max = latency.getMax();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%8d %10d %12.1f %10.3f %10.3f %10.3f %10.3f %8d", threads, exchanges, throughput, millis(p50),
+                    millis(p99), millis(p999), millis(max), errors);
+        }
+
+        static String header() {
+            return String.format("%8s %10s %12s %10s %10s %10s %10s %8s", "threads", "exchanges", "exchanges/s", "p50 ms",
+                    "p99 ms", "p99.9 ms", "max ms", "errors");
+        }
+
+        private static double millis(final long nanos) {
+            return nanos / 1000000.0;
+        }
+
+    }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Load test running concurrent PLAIN exchanges against a single {@link PicketLinkCallbackHandler} with an increasing number
+ * of threads, the test fails if any exchange has an unexpected outcome or if the throughput at any thread count drops below
+ * the configured minimum.
+ *
+ * The thread counts, number of exchanges and minimum throughput are configured using the <code>loadtest.threads</code>,
+ * <code>loadtest.exchanges</code> and <code>loadtest.minThroughput</code> system properties.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class SaslLoadTestCase extends AbstractTestBase {
+
+    @Test
+    public void concurrentExchanges() throws Exception {
+        String[] threadCounts = System.getProperty("loadtest.threads", "1,8,64").split(",");
+        int exchanges = Integer.getInteger("loadtest.exchanges", 10000);
+        double minThroughput = Double.parseDouble(System.getProperty("loadtest.minThroughput", "0"));
+
+        LoadGenerator generator = new LoadGenerator(new PicketLinkCallbackHandler(getIdentityManager()));
+        // Warm up before measuring.
+        generator.run(1, exchanges / 10);
+
+        System.out.println(LoadGenerator.Result.header());
+        for (String current : threadCounts) {
+            LoadGenerator.Result result = generator.run(Integer.parseInt(current.trim()), exchanges);
+            System.out.println(result);
+
+            assertEquals("Unexpected outcomes with " + result.threads + " threads.", 0, result.errors);
+            assertTrue("Throughput with " + result.threads + " threads below " + minThroughput,
+                    result.throughput >= minThroughput);
+        }
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.UnsupportedCallbackException;
+
+/**
+ * An asynchronous wrapper around a {@link CallbackHandler} such as the {@link PicketLinkCallbackHandler} so that the store
+ * access required to handle the callbacks happens on a dedicated {@link Executor} instead of blocking the calling thread,
+ * e.g. an XNIO I/O thread.
+ *
+ * The number of pending requests is bounded, once the limit is reached further requests are rejected immediately by
+ * completing exceptionally with a {@link RejectedExecutionException}, requests rejected by the {@link Executor} itself are
+ * handled the same way and both are included in the rejected count.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class AsyncCallbackHandler {
+
+    private final CallbackHandler delegate;
+    private final Executor executor;
+    private final Semaphore permits;
+    private final int maxPending;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public AsyncCallbackHandler(final CallbackHandler delegate, final Executor executor, final int maxPending) {
+        if (maxPending < 1) {
+            throw new IllegalArgumentException("maxPending must be greater than 0");
+        }
+
+        this.delegate = delegate;
+        this.executor = executor;
+        this.maxPending = maxPending;
+        this.permits = new Semaphore(maxPending);
+    }
+
+    /**
+     * Handle the callbacks asynchronously.
+     *
+     * @param callbacks - the callbacks to handle.
+     * @return a {@link CompletionStage} completed with the same callbacks once they have been handled.
+     */
+    public CompletionStage<Callback[]> handle(final Callback[] callbacks) {
+        final CompletableFuture<Callback[]> result = new CompletableFuture<Callback[]>();
+
+        if (permits.tryAcquire() == false) {
+            return reject(result, "Maximum of " + maxPending + " pending requests reached.");
+        }
+
+        submitted.incrementAndGet();
+        try {
+            executor.execute(new Runnable() {
+
+                public void run() {
+                    Throwable failure = null;
+                    try {
+                        delegate.handle(callbacks);
+                    } catch (Throwable t) {
+                        failure = t;
+                    }
+                    // Released before completing so a caller submitting again on completion is not rejected.
+                    permits.release();
+                    completed.incrementAndGet();
+                    if (failure == null) {
+                        result.complete(callbacks);
+                    } else {
+                        result.completeExceptionally(failure);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            submitted.decrementAndGet();
+            permits.release();
+            return reject(result, e.getMessage());
+        }
+
+        return result;
+    }
+
+    /**
+     * Get a blocking {@link CallbackHandler} for use where an asynchronous handler is not supported, the pending request
+     * limit still applies to requests made through the returned handler.
+     *
+     * @return a blocking {@link CallbackHandler} backed by this handler.
+     */
+    public CallbackHandler asCallbackHandler() {
+        return new CallbackHandler() {
+
+            public void handle(Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+                try {
+                    AsyncCallbackHandler.this.handle(callbacks).toCompletableFuture().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for callbacks to be handled.", e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof UnsupportedCallbackException) {
+                        throw (UnsupportedCallbackException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IOException(cause);
+                }
+            }
+        };
+    }
+
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public int getPendingCount() {
+        return maxPending - permits.availablePermits();
+    }
+
+    /**
+     * Create a fixed size {@link ExecutorService} with a bounded queue suitable for use with this handler.
+     *
+     * @param threads - the number of threads.
+     * @param queueSize - the maximum number of queued tasks, beyond this tasks are rejected.
+     * @return the new {@link ExecutorService}
+     */
+    public static ExecutorService createExecutor(final int threads, final int queueSize) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+                new HandlerThreadFactory(), new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Create an {@link ExecutorService} starting a new virtual thread for each task, virtual threads are only available on
+     * Java 21 or later. As the {@link ExecutorService} is unbounded the pending request limit of this handler is the only
+     * bound on concurrent store access.
+     *
+     * @return the new {@link ExecutorService} or null if virtual threads are not available.
+     */
+    public static ExecutorService createVirtualThreadExecutor() {
+        try {
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (Exception e) {
+            throw new IllegalStateException("Unable to create virtual thread executor.", e);
+        }
+    }
+
+    private CompletionStage<Callback[]> reject(final CompletableFuture<Callback[]> result, final String message) {
+        rejected.incrementAndGet();
+        result.completeExceptionally(new RejectedExecutionException(message));
+
+        return result;
+    }
+
+    private static final class HandlerThreadFactory implements ThreadFactory {
+
+        private static final AtomicInteger poolNumber = new AtomicInteger();
+
+        private final int pool = poolNumber.incrementAndGet();
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "picketlink-callback-" + pool + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+
+            return thread;
+        }
+
+    }
+
+}
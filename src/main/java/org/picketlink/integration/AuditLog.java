@@ -0,0 +1,455 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.picketlink.integration.HandlerMetricsListener.CallbackType;
+import org.picketlink.integration.HandlerMetricsListener.Result;
+
+/**
+ * An audit log of the authentication and run as decisions made by the {@link PicketLinkCallbackHandler}.
+ *
+ * Each decision is published as a fixed size binary event into a pre-allocated ring buffer shared by all threads handling
+ * callbacks, publishing does not lock or allocate. A single consumer thread drains the ring in batches and appends the
+ * events to memory mapped segment files in the log directory, once a segment is full the next is started and the oldest
+ * segments beyond the configured maximum are deleted. The segments can be read while being written using
+ * {@link AuditLogReader}.
+ *
+ * When the ring is full the {@link OverflowPolicy} either blocks the publishing thread until space is available or drops
+ * the event, dropped events are counted. Once closed, or if the consumer fails, no further events are accepted and a
+ * publishing thread blocked waiting for space returns instead of waiting forever.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class AuditLog {
+
+    /**
+     * The SASL property the name of the mechanism is read from for the audit events of an exchange, see
+     * {@link PicketLinkCallbackHandler#createCallbackHandler(java.util.Map)}.
+     */
+    public static final String MECHANISM = "org.picketlink.integration.mechanism";
+
+    public enum OverflowPolicy {
+        BLOCK, DROP
+    }
+
+    static final int MAGIC = 0x504C4155;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final String SEGMENT_PREFIX = "audit-";
+    static final String SEGMENT_SUFFIX = ".seg";
+
+    /*
+     * Layout of each event, strings are UTF-8 prefixed by a single byte length and truncated to fit their field. The marker
+     * is written last so a reader never sees a partially written event.
+     */
+    static final int EVENT_SIZE = 256;
+    static final byte MARKER = 1;
+    static final int TYPE_OFFSET = 1;
+    static final int RESULT_OFFSET = 2;
+    static final int TIMESTAMP_OFFSET = 4;
+    static final int DURATION_OFFSET = 12;
+    static final int USER_OFFSET = 20;
+    static final int AUTHORIZATION_ID_OFFSET = 84;
+    static final int REALM_OFFSET = 148;
+    static final int MECHANISM_OFFSET = 196;
+    static final int SOURCE_OFFSET = 220;
+
+    private static final int MAX_BATCH = 256;
+    private static final long IDLE_PARK = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long FULL_PARK = TimeUnit.MICROSECONDS.toNanos(50);
+    // Set on the claimed sequence once no further events can be claimed, so a claim either precedes it or fails.
+    private static final long CLAIMS_CLOSED = Long.MIN_VALUE;
+    // A claim made but not written as the consumer has failed, already counted as failed.
+    private static final long LOST = -2;
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final OverflowPolicy policy;
+
+    private final int mask;
+    private final byte[] ring;
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    private final Thread consumer;
+    private volatile boolean closed;
+    private volatile boolean stopped;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+
+    private long segmentIndex;
+    private RandomAccessFile segmentFile;
+    private MappedByteBuffer segment;
+
+    /**
+     * @param directory - the directory to write the segments to, it is created if it does not exist.
+     * @param capacity - the number of events the ring buffer can hold, rounded up to a power of two.
+     * @param segmentSize - the size in bytes of each segment file.
+     * @param maxSegments - the number of segments to retain.
+     * @param policy - the action to take when the ring buffer is full.
+     * @throws IOException if the first segment can not be created.
+     */
+    public AuditLog(final File directory, final int capacity, final int segmentSize, final int maxSegments,
+            final OverflowPolicy policy) throws IOException {
+        if (capacity < 1 || capacity > 1 << 20) {
+            throw new IllegalArgumentException("capacity must be between 1 and " + (1 << 20));
+        }
+        if (segmentSize < HEADER_SIZE + EVENT_SIZE) {
+            throw new IllegalArgumentException("segmentSize must be at least " + (HEADER_SIZE + EVENT_SIZE));
+        }
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("maxSegments must be greater than 0");
+        }
+        if (directory.isDirectory() == false && directory.mkdirs() == false) {
+            throw new IOException("Unable to create audit log directory " + directory);
+        }
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.policy = policy;
+
+        int size = Integer.highestOneBit(capacity);
+        size = size < capacity ? size << 1 : size;
+        this.mask = size - 1;
+        this.ring = new byte[size * EVENT_SIZE];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+
+        File[] existing = listSegments(directory);
+        segmentIndex = existing.length == 0 ? 0 : segmentIndex(existing[existing.length - 1]) + 1;
+        openSegment();
+
+        consumer = new Thread(new Runnable() {
+
+            public void run() {
+                consume();
+            }
+        }, "picketlink-audit-log");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * Publish an audit event.
+     *
+     * @param type - the type of callback the decision was made for.
+     * @param result - the result of the decision.
+     * @param user - the name of the user being authenticated or the authentication ID being authorized.
+     * @param authorizationId - the requested authorization ID or null.
+     * @param realm - the realm of the exchange or null if not known.
+     * @param mechanism - the mechanism of the exchange or null if not known.
+     * @param source - the client source of the exchange or null if not known.
+     * @param durationNanos - the time taken to reach the decision.
+     * @return true if the event was published, false if it was dropped.
+     */
+    public boolean publish(final CallbackType type, final Result result, final String user, final String authorizationId,
+            final String realm, final String mechanism, final String source, final long durationNanos) {
+        long sequence = claim();
+        if (sequence == LOST) {
+            return false;
+        } else if (sequence < 0) {
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        int offset = (int) (sequence & mask) * EVENT_SIZE;
+        ring[offset] = MARKER;
+        ring[offset + TYPE_OFFSET] = (byte) type.ordinal();
+        ring[offset + RESULT_OFFSET] = (byte) result.ordinal();
+        writeLong(ring, offset + TIMESTAMP_OFFSET, System.currentTimeMillis());
+        writeLong(ring, offset + DURATION_OFFSET, durationNanos);
+        writeString(ring, offset + USER_OFFSET, AUTHORIZATION_ID_OFFSET - USER_OFFSET, user);
+        writeString(ring, offset + AUTHORIZATION_ID_OFFSET, REALM_OFFSET - AUTHORIZATION_ID_OFFSET, authorizationId);
+        writeString(ring, offset + REALM_OFFSET, MECHANISM_OFFSET - REALM_OFFSET, realm);
+        writeString(ring, offset + MECHANISM_OFFSET, SOURCE_OFFSET - MECHANISM_OFFSET, mechanism);
+        writeString(ring, offset + SOURCE_OFFSET, EVENT_SIZE - SOURCE_OFFSET, source);
+
+        // Ordered write so the consumer sees the completed event once it sees the sequence.
+        published.lazySet((int) (sequence & mask), sequence);
+
+        return true;
+    }
+
+    /**
+     * Stop accepting events, wait for the events already published to be written and close the current segment.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the number of events published but not yet written.
+     */
+    public long getPendingCount() {
+        return Math.max(0, (claimed.get() & ~CLAIMS_CLOSED) - consumed.get());
+    }
+
+    /**
+     * @return the number of events dropped as the ring buffer was full or the log was closed.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of events lost as they could not be written to a segment or the consumer failed.
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * @return the sequence of the claimed slot, -1 if the event is to be dropped or {@link #LOST} if the consumer failed
+     *         after the slot was claimed.
+     */
+    private long claim() {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (closed || (sequence & CLAIMS_CLOSED) != 0
+                    || (policy == OverflowPolicy.DROP && sequence - consumed.get() > mask)) {
+                return -1;
+            }
+        } while (claimed.compareAndSet(sequence, sequence + 1) == false);
+
+        // Only reached with OverflowPolicy.BLOCK, a dropping claim never exceeds the capacity.
+        while (sequence - consumed.get() > mask) {
+            if (stopped) {
+                // The consumer has failed so the slot will never be freed.
+                return LOST;
+            }
+            LockSupport.parkNanos(FULL_PARK);
+        }
+
+        return sequence;
+    }
+
+    private void consume() {
+        long next = consumed.get();
+        try {
+            while (true) {
+                int batch = 0;
+                while (batch < MAX_BATCH && published.get((int) (next & mask)) == next) {
+                    write((int) (next & mask) * EVENT_SIZE);
+                    next++;
+                    batch++;
+                }
+
+                if (batch > 0) {
+                    consumed.set(next);
+                    written.addAndGet(batch);
+                } else if (closed && claimed.compareAndSet(next, next | CLAIMS_CLOSED)) {
+                    // Every event claimed before the log was closed has been written and no more can be claimed.
+                    break;
+                } else {
+                    LockSupport.parkNanos(IDLE_PARK);
+                }
+            }
+        } catch (Throwable t) {
+            // Stop accepting events, those accepted and not yet written will never be written.
+            long current;
+            do {
+                current = claimed.get();
+            } while (claimed.compareAndSet(current, current | CLAIMS_CLOSED) == false);
+            written.addAndGet(next - consumed.get());
+            consumed.set(next);
+            failed.addAndGet((current & ~CLAIMS_CLOSED) - next);
+        } finally {
+            stopped = true;
+            closeSegment();
+        }
+    }
+
+    private void write(final int offset) {
+        if (segment != null && segment.remaining() < EVENT_SIZE) {
+            closeSegment();
+            segmentIndex++;
+            try {
+                openSegment();
+            } catch (IOException e) {
+                segment = null;
+            }
+        }
+        if (segment == null) {
+            failed.incrementAndGet();
+            return;
+        }
+
+        int position = segment.position();
+        segment.position(position + 1);
+        segment.put(ring, offset + 1, EVENT_SIZE - 1);
+        segment.put(position, ring[offset]);
+    }
+
+    private void openSegment() throws IOException {
+        File file = new File(directory, segmentName(segmentIndex));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            int length = HEADER_SIZE + (segmentSize - HEADER_SIZE) / EVENT_SIZE * EVENT_SIZE;
+            raf.setLength(length);
+            segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            segment.putInt(MAGIC);
+            segment.putInt(VERSION);
+            segment.putInt(EVENT_SIZE);
+            segment.putInt(0);
+            segmentFile = raf;
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+
+        File[] segments = listSegments(directory);
+        for (int i = 0; i < segments.length - maxSegments; i++) {
+            segments[i].delete();
+        }
+    }
+
+    private void closeSegment() {
+        if (segment != null) {
+            segment.force();
+            segment = null;
+        }
+        if (segmentFile != null) {
+            try {
+                segmentFile.close();
+            } catch (IOException e) {
+                // The events have already been forced to the file.
+            }
+            segmentFile = null;
+        }
+    }
+
+    static String segmentName(final long index) {
+        return String.format("%s%016d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX);
+    }
+
+    static long segmentIndex(final File segment) {
+        String name = segment.getName();
+
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * @return the segments in the directory, oldest first.
+     */
+    static File[] listSegments(final File directory) {
+        File[] segments = directory.listFiles(new FileFilter() {
+
+            public boolean accept(File file) {
+                String name = file.getName();
+                return file.isFile() && name.length() == segmentName(0).length() && name.startsWith(SEGMENT_PREFIX)
+                        && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (segments == null) {
+            return new File[0];
+        }
+        Arrays.sort(segments);
+
+        return segments;
+    }
+
+    private static void writeLong(final byte[] bytes, final int offset, final long value) {
+        for (int i = 0; i < 8; i++) {
+            bytes[offset + i] = (byte) (value >>> (56 - i * 8));
+        }
+    }
+
+    /**
+     * Encode the value as UTF-8 without allocating, characters that do not fit within the field are dropped.
+     */
+    private static void writeString(final byte[] bytes, final int offset, final int fieldLength, final String value) {
+        int position = offset + 1;
+        int limit = offset + fieldLength;
+        int length = value == null ? 0 : value.length();
+        for (int i = 0; i < length; i++) {
+            int c = value.charAt(i);
+            if (Character.isHighSurrogate((char) c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                if (position + 4 > limit) {
+                    break;
+                }
+                c = Character.toCodePoint((char) c, value.charAt(++i));
+                bytes[position++] = (byte) (0xF0 | (c >> 18));
+                bytes[position++] = (byte) (0x80 | ((c >> 12) & 0x3F));
+                bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (c < 0x80) {
+                if (position + 1 > limit) {
+                    break;
+                }
+                bytes[position++] = (byte) c;
+            } else if (c < 0x800) {
+                if (position + 2 > limit) {
+                    break;
+                }
+                bytes[position++] = (byte) (0xC0 | (c >> 6));
+                bytes[position++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                if (position + 3 > limit) {
+                    break;
+                }
+                if (Character.isSurrogate((char) c)) {
+                    c = '?';
+                    bytes[position++] = (byte) c;
+                    continue;
+                }
+                bytes[position++] = (byte) (0xE0 | (c >> 12));
+                bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        bytes[offset] = (byte) (position - offset - 1);
+    }
+
+}
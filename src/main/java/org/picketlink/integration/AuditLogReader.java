@@ -0,0 +1,258 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import static org.picketlink.integration.AuditLog.AUTHORIZATION_ID_OFFSET;
+import static org.picketlink.integration.AuditLog.DURATION_OFFSET;
+import static org.picketlink.integration.AuditLog.EVENT_SIZE;
+import static org.picketlink.integration.AuditLog.HEADER_SIZE;
+import static org.picketlink.integration.AuditLog.MAGIC;
+import static org.picketlink.integration.AuditLog.MARKER;
+import static org.picketlink.integration.AuditLog.MECHANISM_OFFSET;
+import static org.picketlink.integration.AuditLog.REALM_OFFSET;
+import static org.picketlink.integration.AuditLog.RESULT_OFFSET;
+import static org.picketlink.integration.AuditLog.SOURCE_OFFSET;
+import static org.picketlink.integration.AuditLog.TIMESTAMP_OFFSET;
+import static org.picketlink.integration.AuditLog.TYPE_OFFSET;
+import static org.picketlink.integration.AuditLog.USER_OFFSET;
+import static org.picketlink.integration.AuditLog.VERSION;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Date;
+
+import org.picketlink.integration.HandlerMetricsListener.CallbackType;
+import org.picketlink.integration.HandlerMetricsListener.Result;
+
+/**
+ * Reads the events written by an {@link AuditLog}, segments are read oldest first and the reader can be polled
+ * repeatedly to follow the log as it is written.
+ *
+ * Run from the command line to print the events in a log directory, with -f new events are printed as they are written.
+ *
+ * <pre>
+ * java org.picketlink.integration.AuditLogReader [-f] &lt;directory&gt;
+ * </pre>
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class AuditLogReader {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long FOLLOW_INTERVAL = 500;
+
+    private final File directory;
+    private long segmentIndex = -1;
+    private MappedByteBuffer segment;
+    private int position;
+
+    public AuditLogReader(final File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Read the events written since the previous poll.
+     *
+     * @param listener - the listener to pass each event to.
+     * @return the number of events read.
+     * @throws IOException if a segment can not be read.
+     */
+    public int poll(final Listener listener) throws IOException {
+        int count = 0;
+        while (segment != null || openNext()) {
+            count += readAvailable(listener);
+
+            if (hasNewerSegment() == false) {
+                return count;
+            }
+            // The writer only moves on once it has finished with the current segment so anything left can be read now.
+            count += readAvailable(listener);
+            segment = null;
+        }
+
+        return count;
+    }
+
+    private int readAvailable(final Listener listener) {
+        int count = 0;
+        while (position + EVENT_SIZE <= segment.limit() && segment.get(position) == MARKER) {
+            listener.event(new Event(segment, position));
+            position += EVENT_SIZE;
+            count++;
+        }
+
+        return count;
+    }
+
+    private boolean hasNewerSegment() {
+        File[] segments = AuditLog.listSegments(directory);
+
+        return segments.length > 0 && AuditLog.segmentIndex(segments[segments.length - 1]) > segmentIndex;
+    }
+
+    private boolean openNext() throws IOException {
+        for (File current : AuditLog.listSegments(directory)) {
+            long index = AuditLog.segmentIndex(current);
+            if (index <= segmentIndex) {
+                continue;
+            }
+
+            segmentIndex = index;
+            RandomAccessFile raf = new RandomAccessFile(current, "r");
+            try {
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                if (buffer.limit() >= HEADER_SIZE && buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION
+                        && buffer.getInt(8) == EVENT_SIZE) {
+                    segment = buffer;
+                    position = HEADER_SIZE;
+
+                    return true;
+                }
+            } finally {
+                // The mapping remains valid once the file is closed.
+                raf.close();
+            }
+        }
+
+        return false;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean follow = args.length == 2 && "-f".equals(args[0]);
+        if (args.length != (follow ? 2 : 1)) {
+            System.err.println("Usage: AuditLogReader [-f] <directory>");
+            System.exit(1);
+        }
+
+        AuditLogReader reader = new AuditLogReader(new File(args[args.length - 1]));
+        Listener printer = new Listener() {
+
+            public void event(Event event) {
+                System.out.println(event);
+            }
+        };
+
+        reader.poll(printer);
+        while (follow) {
+            Thread.sleep(FOLLOW_INTERVAL);
+            reader.poll(printer);
+        }
+    }
+
+    public interface Listener {
+
+        void event(final Event event);
+
+    }
+
+    /**
+     * A single audit event.
+     */
+    public static final class Event {
+
+        private final CallbackType type;
+        private final Result result;
+        private final long timestamp;
+        private final long durationNanos;
+        private final String user;
+        private final String authorizationId;
+        private final String realm;
+        private final String mechanism;
+        private final String source;
+
+        private Event(final ByteBuffer buffer, final int offset) {
+            type = CallbackType.values()[buffer.get(offset + TYPE_OFFSET)];
+            result = Result.values()[buffer.get(offset + RESULT_OFFSET)];
+            timestamp = buffer.getLong(offset + TIMESTAMP_OFFSET);
+            durationNanos = buffer.getLong(offset + DURATION_OFFSET);
+            user = readString(buffer, offset + USER_OFFSET);
+            authorizationId = readString(buffer, offset + AUTHORIZATION_ID_OFFSET);
+            realm = readString(buffer, offset + REALM_OFFSET);
+            mechanism = readString(buffer, offset + MECHANISM_OFFSET);
+            source = readString(buffer, offset + SOURCE_OFFSET);
+        }
+
+        public CallbackType getType() {
+            return type;
+        }
+
+        public Result getResult() {
+            return result;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        public String getAuthorizationId() {
+            return authorizationId;
+        }
+
+        public String getRealm() {
+            return realm;
+        }
+
+        public String getMechanism() {
+            return mechanism;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%tF %<tT.%<tL %s %s user=%s authorizationId=%s realm=%s mechanism=%s source=%s %dus",
+                    new Date(timestamp), type, result, user, authorizationId, realm, mechanism, source,
+                    durationNanos / 1000);
+        }
+
+        private static String readString(final ByteBuffer buffer, final int offset) {
+            int length = buffer.get(offset) & 0xFF;
+            if (length == 0) {
+                return null;
+            }
+
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = buffer.get(offset + 1 + i);
+            }
+
+            return new String(bytes, UTF_8);
+        }
+
+    }
+
+}
@@ -0,0 +1,251 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.picketlink.idm.model.Agent;
+import org.picketlink.idm.model.IdentityType;
+
+/**
+ * A cache of run as authorization decisions keyed by the authentication ID and requested authorization ID.
+ *
+ * Both grants and denials are cached, each with their own time to live. To allow concurrent access the cache is split
+ * into a fixed number of independently locked segments, each segment is bounded and evicts the least recently used
+ * decision once full so the overall size never exceeds the configured maximum.
+ *
+ * A decision is only cached if no decision for the authenticated identity has been invalidated since
+ * {@link #generation(String)} was read before the decision was made, so a grant revoked while it was being checked is never
+ * cached.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class AuthorizationCache implements IdentityChangeListener {
+
+    private static final int SEGMENT_COUNT = 16;
+
+    private final long grantTimeToLive;
+    private final long denialTimeToLive;
+    private final Segment[] segments;
+    private final InvalidationGenerations generations = new InvalidationGenerations();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public AuthorizationCache(final int maxEntries, final long grantTimeToLive, final long denialTimeToLive,
+            final TimeUnit unit) {
+        if (maxEntries < SEGMENT_COUNT) {
+            throw new IllegalArgumentException("maxEntries must be at least " + SEGMENT_COUNT);
+        }
+
+        this.grantTimeToLive = unit.toNanos(grantTimeToLive);
+        this.denialTimeToLive = unit.toNanos(denialTimeToLive);
+        segments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(maxEntries / SEGMENT_COUNT);
+        }
+    }
+
+    /**
+     * Get a previously cached decision.
+     *
+     * @param authenticationId - the ID of the authenticated identity.
+     * @param authorizationId - the requested authorization ID.
+     * @return {@link Boolean#TRUE} or {@link Boolean#FALSE} for a cached decision or null if no decision is cached.
+     */
+    public Boolean get(final String authenticationId, final String authorizationId) {
+        Key key = new Key(authenticationId, authorizationId);
+        Segment segment = segmentFor(key);
+
+        Decision decision;
+        synchronized (segment) {
+            decision = segment.get(key);
+            if (decision != null && System.nanoTime() - decision.expires >= 0) {
+                segment.remove(key);
+                decision = null;
+            }
+        }
+
+        if (decision == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return decision.authorized;
+    }
+
+    /**
+     * @param authenticationId - the ID of the authenticated identity.
+     * @return the generation to pass to {@link #put(String, String, boolean, long)}, to be read before the decision is made.
+     */
+    public long generation(final String authenticationId) {
+        return generations.get(authenticationId);
+    }
+
+    /**
+     * Cache a decision.
+     *
+     * @param authenticationId - the ID of the authenticated identity.
+     * @param authorizationId - the requested authorization ID.
+     * @param authorized - the decision.
+     * @param generation - the {@link #generation(String)} read before the decision was made.
+     */
+    public void put(final String authenticationId, final String authorizationId, final boolean authorized,
+            final long generation) {
+        Key key = new Key(authenticationId, authorizationId);
+        Decision decision = new Decision(authorized, System.nanoTime() + (authorized ? grantTimeToLive : denialTimeToLive));
+        Segment segment = segmentFor(key);
+
+        synchronized (segment) {
+            if (generations.get(authenticationId) == generation) {
+                segment.put(key, decision);
+            }
+        }
+    }
+
+    public void invalidate(final String authenticationId, final String authorizationId) {
+        Key key = new Key(authenticationId, authorizationId);
+        Segment segment = segmentFor(key);
+
+        synchronized (segment) {
+            generations.invalidated(authenticationId);
+            segment.remove(key);
+        }
+    }
+
+    public void clear() {
+        // Advanced before any segment is cleared so a decision made before the clear can not be put afterwards.
+        generations.invalidatedAll();
+        for (Segment current : segments) {
+            synchronized (current) {
+                current.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment current : segments) {
+            synchronized (current) {
+                size += current.size();
+            }
+        }
+
+        return size;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public void agentAdded(final String loginName) {
+        // Relationships for a new agent are notified as they are added.
+    }
+
+    public void credentialUpdated(final String loginName, final Object credential) {
+        // Run as decisions do not depend on the credential.
+    }
+
+    public void runAsUpdated(final IdentityType authenticatedIdentity, final IdentityType authorizedAs, final boolean added) {
+        if (authenticatedIdentity instanceof Agent && authorizedAs instanceof Agent) {
+            invalidate(((Agent) authenticatedIdentity).getLoginName(), ((Agent) authorizedAs).getLoginName());
+        } else {
+            // Without the login names we can not identify the cached decision so discard them all.
+            clear();
+        }
+    }
+
+    private Segment segmentFor(final Key key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+
+        return segments[hash & (SEGMENT_COUNT - 1)];
+    }
+
+    private static final class Segment extends LinkedHashMap<Key, Decision> {
+
+        private static final long serialVersionUID = -2590384315407512932L;
+
+        private final int maxEntries;
+
+        private Segment(final int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Decision> eldest) {
+            return size() > maxEntries;
+        }
+
+    }
+
+    private static final class Key {
+
+        private final String authenticationId;
+        private final String authorizationId;
+        private final int hashCode;
+
+        private Key(final String authenticationId, final String authorizationId) {
+            this.authenticationId = authenticationId;
+            this.authorizationId = authorizationId;
+            this.hashCode = authenticationId.hashCode() * 31 + authorizationId.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Key == false) {
+                return false;
+            }
+            Key other = (Key) obj;
+
+            return authenticationId.equals(other.authenticationId) && authorizationId.equals(other.authorizationId);
+        }
+
+    }
+
+    private static final class Decision {
+
+        private final Boolean authorized;
+        private final long expires;
+
+        private Decision(final boolean authorized, final long expires) {
+            this.authorized = Boolean.valueOf(authorized);
+            this.expires = expires;
+        }
+
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+/**
+ * A request to check if an authenticated agent can run as another agent.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public final class AuthorizationPair {
+
+    private final String authenticationId;
+    private final String authorizationId;
+
+    public AuthorizationPair(final String authenticationId, final String authorizationId) {
+        if (authenticationId == null || authorizationId == null) {
+            throw new IllegalArgumentException("Both authenticationId and authorizationId must be specified.");
+        }
+
+        this.authenticationId = authenticationId;
+        this.authorizationId = authorizationId;
+    }
+
+    public String getAuthenticationId() {
+        return authenticationId;
+    }
+
+    public String getAuthorizationId() {
+        return authorizationId;
+    }
+
+    @Override
+    public int hashCode() {
+        return authenticationId.hashCode() * 31 + authorizationId.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof AuthorizationPair == false) {
+            return false;
+        }
+        AuthorizationPair other = (AuthorizationPair) obj;
+
+        return authenticationId.equals(other.authenticationId) && authorizationId.equals(other.authorizationId);
+    }
+
+    @Override
+    public String toString() {
+        return authenticationId + " -> " + authorizationId;
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A concurrent Bloom filter of Strings, values can be added concurrently with lookups without locking.
+ *
+ * The k bit positions are derived from two independent hashes of the value using double hashing so a lookup does not
+ * allocate.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+final class BloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashCount;
+
+    /**
+     * @param expectedInsertions - the number of values expected to be added.
+     * @param falsePositiveProbability - the desired false positive probability at the expected number of insertions.
+     */
+    BloomFilter(final long expectedInsertions, final double falsePositiveProbability) {
+        long n = Math.max(1, expectedInsertions);
+        long m = (long) Math.ceil(-n * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min(Integer.MAX_VALUE, Math.max(1, (m + 63) / 64));
+
+        bits = new AtomicLongArray(words);
+        bitCount = words * 64L;
+        hashCount = Math.max(1, (int) Math.round((double) bitCount / n * Math.log(2)));
+    }
+
+    void add(final String value) {
+        long hash1 = hash1(value);
+        long hash2 = hash2(value);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = index(hash1 + i * hash2);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+
+            long current = bits.get(word);
+            while ((current & mask) == 0 && bits.compareAndSet(word, current, current | mask) == false) {
+                current = bits.get(word);
+            }
+        }
+    }
+
+    boolean mightContain(final String value) {
+        long hash1 = hash1(value);
+        long hash2 = hash2(value);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = index(hash1 + i * hash2);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    void writeTo(final DataOutputStream out) throws IOException {
+        out.writeInt(hashCount);
+        out.writeInt(bits.length());
+        for (int i = 0; i < bits.length(); i++) {
+            out.writeLong(bits.get(i));
+        }
+    }
+
+    /**
+     * Add the bits written by {@link #writeTo(DataOutputStream)} to this filter.
+     *
+     * @return true if the bits were added, false if they were written by a filter with different dimensions.
+     */
+    boolean readFrom(final ByteBuffer in) {
+        if (in.getInt() != hashCount || in.getInt() != bits.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < bits.length(); i++) {
+            bits.set(i, in.getLong());
+        }
+
+        return true;
+    }
+
+    private long index(final long combined) {
+        return (combined & Long.MAX_VALUE) % bitCount;
+    }
+
+    private static long hash1(final String value) {
+        // MurmurHash3 finalizer over the cached String hash code.
+        long hash = value.hashCode();
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+
+    private static long hash2(final String value) {
+        // 64 bit FNV-1a over the characters, forced odd so every probe is distinct.
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        return hash | 1;
+    }
+
+}
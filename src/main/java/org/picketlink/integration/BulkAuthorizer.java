@@ -0,0 +1,142 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.picketlink.idm.IdentityManager;
+import org.picketlink.idm.model.Agent;
+import org.picketlink.idm.model.IdentityType;
+import org.picketlink.idm.query.IdentityQuery;
+import org.picketlink.idm.query.RelationshipQuery;
+
+/**
+ * Checks run as authorization for many {@link AuthorizationPair}s at once.
+ *
+ * Checking each pair individually takes two agent lookups and a relationship query, instead the pairs are grouped by the
+ * authenticated identity. If a {@link RunAsIndex} is available the pairs are answered from the index without accessing
+ * the store at all, otherwise the distinct authenticated identities are read with a single identity query and the
+ * {@link RunAsRelationship}s of all of them with a single relationship query, each relationship is then matched against
+ * the pairs requested for its authenticated identity. As the relationships reference the agents no lookups of the
+ * identities authorized as are required, so a batch takes two round trips to the store however many pairs it contains.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class BulkAuthorizer {
+
+    private final IdentityManager identityManager;
+    private final RunAsIndex runAsIndex;
+
+    public BulkAuthorizer(final IdentityManager identityManager) {
+        this(identityManager, null);
+    }
+
+    public BulkAuthorizer(final IdentityManager identityManager, final RunAsIndex runAsIndex) {
+        this.identityManager = identityManager;
+        this.runAsIndex = runAsIndex;
+    }
+
+    /**
+     * Check each of the supplied pairs.
+     *
+     * @param pairs - the pairs to check.
+     * @return a {@link BitSet} where the bit at the index of each pair is set if that pair is authorized.
+     */
+    public BitSet authorize(final List<AuthorizationPair> pairs) {
+        BitSet result = new BitSet(pairs.size());
+        Set<AuthorizationPair> granted = runAsIndex == null ? loadGranted(pairs) : null;
+
+        for (int i = 0; i < pairs.size(); i++) {
+            AuthorizationPair current = pairs.get(i);
+            if (current.getAuthenticationId().equals(current.getAuthorizationId())) {
+                // Consistent with PicketLinkCallbackHandler all users are allowed to run as themselves.
+                result.set(i);
+            } else if (granted == null) {
+                if (runAsIndex.isAuthorized(current.getAuthenticationId(), current.getAuthorizationId())) {
+                    result.set(i);
+                }
+            } else if (granted.contains(current)) {
+                result.set(i);
+            }
+        }
+
+        return result;
+    }
+
+    private Set<AuthorizationPair> loadGranted(final List<AuthorizationPair> pairs) {
+        Map<String, Set<String>> requested = new HashMap<String, Set<String>>();
+        for (AuthorizationPair current : pairs) {
+            if (current.getAuthenticationId().equals(current.getAuthorizationId())) {
+                continue;
+            }
+            Set<String> authorizationIds = requested.get(current.getAuthenticationId());
+            if (authorizationIds == null) {
+                authorizationIds = new HashSet<String>();
+                requested.put(current.getAuthenticationId(), authorizationIds);
+            }
+            authorizationIds.add(current.getAuthorizationId());
+        }
+
+        Set<AuthorizationPair> granted = new HashSet<AuthorizationPair>();
+        if (requested.isEmpty()) {
+            return granted;
+        }
+
+        IdentityQuery<Agent> agentQuery = identityManager.createIdentityQuery(Agent.class);
+        agentQuery.setParameter(Agent.LOGIN_NAME, requested.keySet().toArray());
+        List<Agent> authenticated = new ArrayList<Agent>(requested.size());
+        for (Agent current : agentQuery.getResultList()) {
+            if (requested.containsKey(current.getLoginName())) {
+                authenticated.add(current);
+            }
+        }
+        if (authenticated.isEmpty()) {
+            return granted;
+        }
+
+        RelationshipQuery<RunAsRelationship> query = identityManager.createRelationshipQuery(RunAsRelationship.class);
+        query.setParameter(RunAsRelationship.AUTHENTICATED_IDENTITY, authenticated.toArray());
+        for (RunAsRelationship relationship : query.getResultList()) {
+            IdentityType authenticatedIdentity = relationship.getAuthenticatedIdentity();
+            IdentityType authorizedAs = relationship.getAuthorizedAs();
+            if (authenticatedIdentity instanceof Agent == false || authorizedAs instanceof Agent == false) {
+                continue;
+            }
+
+            String authenticationId = ((Agent) authenticatedIdentity).getLoginName();
+            String authorizationId = ((Agent) authorizedAs).getLoginName();
+            Set<String> authorizationIds = requested.get(authenticationId);
+            if (authorizationIds != null && authorizationIds.contains(authorizationId)) {
+                granted.add(new AuthorizationPair(authenticationId, authorizationId));
+            }
+        }
+
+        return granted;
+    }
+
+}
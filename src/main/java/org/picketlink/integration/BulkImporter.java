@@ -0,0 +1,516 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.picketlink.idm.IdentityManager;
+import org.picketlink.idm.credential.Password;
+import org.picketlink.idm.model.Agent;
+import org.picketlink.idm.model.IdentityType;
+import org.picketlink.idm.model.SimpleUser;
+
+/**
+ * Streaming import of users, passwords and {@link RunAsRelationship}s from CSV or NDJSON, see {@link ImportRecordReader}
+ * for the record formats.
+ *
+ * Records are read on the calling thread and handed in batches to a fixed pool of worker threads which add the users and
+ * set their passwords, the password hashing performed by the store and by the optional {@link DigestHashCache} therefore
+ * runs in parallel. The queue of batches is bounded so memory use does not depend on the size of the input. The login
+ * name to identity ID of the users added is held in a bounded cache so that relationships do not require a lookup by ID,
+ * relationships to agents not in the cache are resolved with a single lookup by login name.
+ *
+ * The writes of a batch are grouped, all of the users are added before their credentials are set, and with a
+ * {@link BatchWriter} set each batch can be written in a single transaction of the store. A batch counts as imported once
+ * it has been written, only then are its IDs cached and its digest hashes calculated.
+ *
+ * Passwords are read in cleartext, the {@link IdentityManager} only accepts a {@link Password} and hashes it with the
+ * credential handler of the store so a hash made elsewhere can not be set through it, and the {@link DigestHashCache}
+ * needs the cleartext to calculate the hashes for its realms. The cleartext is cleared once the batch has been written.
+ *
+ * Relationships are only written once all users read before them have been added so should follow the users they
+ * reference. Records that are malformed or rejected by the store are counted as failed and the import continues.
+ *
+ * The import bypasses {@link IdentityManagement} so any {@link RunAsIndex} or {@link UnknownAgentFilter} should be reloaded
+ * once it completes.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class BulkImporter {
+
+    public enum Format {
+        CSV, NDJSON
+    }
+
+    /**
+     * Listener notified periodically of the progress of an import and once when it completes.
+     */
+    public interface ProgressListener {
+
+        void progress(final Progress progress);
+
+    }
+
+    /**
+     * Writes the records of a batch, e.g. within a single transaction of the store.
+     */
+    public interface BatchWriter {
+
+        /**
+         * @param writes - the writes of the batch, to be run exactly once on the calling thread.
+         * @throws Exception if the batch could not be written, all records of the batch are then counted as failed.
+         */
+        void write(final Runnable writes) throws Exception;
+
+    }
+
+    private static final int DEFAULT_MAX_CACHED_IDS = 100000;
+
+    private final IdentityManager identityManager;
+    private final int threads;
+    private final int batchSize;
+
+    private BatchWriter batchWriter;
+    private int maxCachedIds = DEFAULT_MAX_CACHED_IDS;
+    private DigestHashCache digestHashCache;
+    private ProgressListener progressListener;
+    private long progressInterval;
+
+    /**
+     * @param identityManager - the {@link IdentityManager} to import into.
+     * @param threads - the number of worker threads, typically the number of cores.
+     * @param batchSize - the number of records handed to a worker at a time.
+     */
+    public BulkImporter(final IdentityManager identityManager, final int threads, final int batchSize) {
+        if (threads < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("threads and batchSize must be greater than 0");
+        }
+
+        this.identityManager = identityManager;
+        this.threads = threads;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Set an optional {@link BatchWriter} to write each batch with.
+     *
+     * @param batchWriter - the writer or null to write the records of each batch directly.
+     */
+    public void setBatchWriter(final BatchWriter batchWriter) {
+        this.batchWriter = batchWriter;
+    }
+
+    /**
+     * Set the maximum number of login name to ID mappings to cache for resolving relationships, once full the least recently
+     * used mapping is evicted and the agent is looked up by login name if referenced again.
+     *
+     * @param maxCachedIds - the maximum number of mappings, defaults to 100000.
+     */
+    public void setMaxCachedIds(final int maxCachedIds) {
+        if (maxCachedIds < 1) {
+            throw new IllegalArgumentException("maxCachedIds must be greater than 0");
+        }
+
+        this.maxCachedIds = maxCachedIds;
+    }
+
+    /**
+     * Set an optional {@link DigestHashCache} to populate with the digest hashes of the imported passwords.
+     *
+     * @param digestHashCache - the cache to populate or null.
+     */
+    public void setDigestHashCache(final DigestHashCache digestHashCache) {
+        this.digestHashCache = digestHashCache;
+    }
+
+    /**
+     * Set an optional {@link ProgressListener} to report the progress of imports to.
+     *
+     * @param progressListener - the listener or null.
+     * @param interval - the minimum interval between reports.
+     * @param unit - the unit of the interval.
+     */
+    public void setProgressListener(final ProgressListener progressListener, final long interval, final TimeUnit unit) {
+        this.progressListener = progressListener;
+        this.progressInterval = unit.toNanos(interval);
+    }
+
+    /**
+     * Import all records from the reader, returning once they have all been written to the store.
+     *
+     * @param reader - the source of the records, not closed by this method.
+     * @param format - the format of the records.
+     * @return the final {@link Progress} of the import.
+     * @throws IOException if the records can not be read.
+     */
+    public Progress importFrom(final Reader reader, final Format format) throws IOException {
+        Import current = new Import();
+        try {
+            current.run(new ImportRecordReader(reader, format));
+        } finally {
+            current.executor.shutdown();
+        }
+
+        Progress progress = current.progress();
+        if (progressListener != null) {
+            progressListener.progress(progress);
+        }
+
+        return progress;
+    }
+
+    /**
+     * The state of a single import.
+     */
+    private final class Import {
+
+        private final long start = System.nanoTime();
+        private final AtomicLong users = new AtomicLong();
+        private final AtomicLong relationships = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        // Guarded by itself.
+        private final Map<String, String> ids = new LinkedHashMap<String, String>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 7741254580392158046L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+                return size() > maxCachedIds;
+            }
+
+        };
+
+        // Once the queue is full batches are written on the reading thread which stops it reading ahead.
+        private final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads), new ThreadPoolExecutor.CallerRunsPolicy());
+        private final List<Future<?>> userBatches = new ArrayList<Future<?>>();
+        private final List<Future<?>> runAsBatches = new ArrayList<Future<?>>();
+
+        private void run(final ImportRecordReader records) throws IOException {
+            List<String[]> userBatch = new ArrayList<String[]>(batchSize);
+            List<String[]> runAsBatch = new ArrayList<String[]>(batchSize);
+            long nextProgress = start + progressInterval;
+
+            while (true) {
+                String[] record;
+                try {
+                    record = records.next();
+                } catch (ImportRecordReader.MalformedRecordException e) {
+                    failed.incrementAndGet();
+                    continue;
+                }
+                if (record == null) {
+                    break;
+                }
+
+                if (ImportRecordReader.USER.equals(record[0])) {
+                    userBatch.add(record);
+                    if (userBatch.size() == batchSize) {
+                        submitUsers(userBatch);
+                        userBatch = new ArrayList<String[]>(batchSize);
+                    }
+                } else {
+                    runAsBatch.add(record);
+                    if (runAsBatch.size() == batchSize) {
+                        submitRunAs(userBatch, runAsBatch);
+                        userBatch = new ArrayList<String[]>(batchSize);
+                        runAsBatch = new ArrayList<String[]>(batchSize);
+                    }
+                }
+
+                if (progressListener != null && System.nanoTime() - nextProgress >= 0) {
+                    progressListener.progress(progress());
+                    nextProgress = System.nanoTime() + progressInterval;
+                }
+            }
+
+            submitRunAs(userBatch, runAsBatch);
+            await(runAsBatches);
+        }
+
+        private void submitUsers(final List<String[]> batch) {
+            if (batch.isEmpty() == false) {
+                prune(userBatches);
+                userBatches.add(executor.submit(new Runnable() {
+
+                    public void run() {
+                        addUsers(batch);
+                    }
+                }));
+            }
+        }
+
+        private void submitRunAs(final List<String[]> userBatch, final List<String[]> batch) throws IOException {
+            // The relationships may reference any user read so far.
+            submitUsers(userBatch);
+            await(userBatches);
+
+            if (batch.isEmpty() == false) {
+                prune(runAsBatches);
+                runAsBatches.add(executor.submit(new Runnable() {
+
+                    public void run() {
+                        addRelationships(batch);
+                    }
+                }));
+            }
+        }
+
+        private void addUsers(final List<String[]> batch) {
+            final List<SimpleUser> added = new ArrayList<SimpleUser>(batch.size());
+            final List<char[]> passwords = new ArrayList<char[]>(batch.size());
+            final long[] generations = new long[batch.size()];
+            final int[] rejected = new int[1];
+
+            boolean written = write(new Runnable() {
+
+                public void run() {
+                    for (String[] record : batch) {
+                        try {
+                            SimpleUser user = new SimpleUser(record[1]);
+                            identityManager.add(user);
+                            // Read before the credential is set so hashes are not cached if it is replaced meanwhile.
+                            generations[added.size()] = digestHashCache == null ? 0 : digestHashCache.generation(record[1]);
+                            added.add(user);
+                            passwords.add(record[2].toCharArray());
+                        } catch (RuntimeException e) {
+                            rejected[0]++;
+                        }
+                    }
+                    for (int i = 0; i < added.size(); i++) {
+                        try {
+                            identityManager.updateCredential(added.get(i), new Password(passwords.get(i)));
+                        } catch (RuntimeException e) {
+                            rejected[0]++;
+                            added.set(i, null);
+                        }
+                    }
+                }
+            });
+
+            try {
+                if (written == false) {
+                    failed.addAndGet(batch.size());
+                    return;
+                }
+
+                for (int i = 0; i < added.size(); i++) {
+                    SimpleUser user = added.get(i);
+                    if (user == null) {
+                        continue;
+                    }
+                    if (digestHashCache != null) {
+                        digestHashCache.passwordVerified(user.getLoginName(), new String(passwords.get(i)), generations[i]);
+                    }
+                    synchronized (ids) {
+                        ids.put(user.getLoginName(), user.getId());
+                    }
+                    users.incrementAndGet();
+                }
+                failed.addAndGet(rejected[0]);
+            } finally {
+                // Don't hold the passwords any longer than necessary.
+                for (char[] current : passwords) {
+                    Arrays.fill(current, (char) 0x00);
+                }
+                for (String[] record : batch) {
+                    record[2] = null;
+                }
+            }
+        }
+
+        private void addRelationships(final List<String[]> batch) {
+            final List<RunAsRelationship> resolved = new ArrayList<RunAsRelationship>(batch.size());
+            int unresolved = 0;
+            for (String[] record : batch) {
+                try {
+                    IdentityType authenticatedIdentity = resolve(record[1]);
+                    IdentityType authorizedAs = authenticatedIdentity == null ? null : resolve(record[2]);
+                    if (authorizedAs == null) {
+                        unresolved++;
+                        continue;
+                    }
+
+                    RunAsRelationship relationship = new RunAsRelationship();
+                    relationship.setAuthenticatedIdentity(authenticatedIdentity);
+                    relationship.setAuthorizedAs(authorizedAs);
+                    resolved.add(relationship);
+                } catch (RuntimeException e) {
+                    unresolved++;
+                }
+            }
+            failed.addAndGet(unresolved);
+
+            final int[] rejected = new int[1];
+            boolean written = write(new Runnable() {
+
+                public void run() {
+                    for (RunAsRelationship current : resolved) {
+                        try {
+                            identityManager.add(current);
+                        } catch (RuntimeException e) {
+                            rejected[0]++;
+                        }
+                    }
+                }
+            });
+
+            if (written) {
+                relationships.addAndGet(resolved.size() - rejected[0]);
+                failed.addAndGet(rejected[0]);
+            } else {
+                failed.addAndGet(resolved.size());
+            }
+        }
+
+        /**
+         * @return true if the batch was written, false if the {@link BatchWriter} failed.
+         */
+        private boolean write(final Runnable writes) {
+            if (batchWriter == null) {
+                writes.run();
+                return true;
+            }
+
+            try {
+                batchWriter.write(writes);
+                return true;
+            } catch (Exception e) {
+                return false;
+            }
+        }
+
+        private IdentityType resolve(final String loginName) {
+            String id;
+            synchronized (ids) {
+                id = ids.get(loginName);
+            }
+            if (id != null) {
+                // Relationships reference identities by ID so a reference is sufficient.
+                SimpleUser reference = new SimpleUser(loginName);
+                reference.setId(id);
+
+                return reference;
+            }
+
+            Agent agent = identityManager.getAgent(loginName);
+            if (agent != null) {
+                synchronized (ids) {
+                    ids.put(loginName, agent.getId());
+                }
+            }
+
+            return agent;
+        }
+
+        private void prune(final List<Future<?>> batches) {
+            Iterator<Future<?>> it = batches.iterator();
+            while (it.hasNext()) {
+                if (it.next().isDone()) {
+                    it.remove();
+                }
+            }
+        }
+
+        private void await(final List<Future<?>> batches) throws IOException {
+            try {
+                for (Future<?> current : batches) {
+                    current.get();
+                }
+                batches.clear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for import to complete.");
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Unexpected failure importing batch.", e.getCause());
+            }
+        }
+
+        private Progress progress() {
+            return new Progress(users.get(), relationships.get(), failed.get(), System.nanoTime() - start);
+        }
+
+    }
+
+    /**
+     * A snapshot of the progress of an import.
+     */
+    public static final class Progress {
+
+        private final long users;
+        private final long relationships;
+        private final long failed;
+        private final long elapsedNanos;
+
+        private Progress(final long users, final long relationships, final long failed, final long elapsedNanos) {
+            this.users = users;
+            this.relationships = relationships;
+            this.failed = failed;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long getUsers() {
+            return users;
+        }
+
+        public long getRelationships() {
+            return relationships;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        public long getElapsed(final TimeUnit unit) {
+            return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @return the number of records processed per second, including failed records.
+         */
+        public double getRecordsPerSecond() {
+            return (users + relationships + failed) / Math.max(elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1), 1e-9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d users, %d relationships, %d failed in %.1f s (%.1f records/s)", users, relationships,
+                    failed, elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1), getRecordsPerSecond());
+        }
+
+    }
+
+}
@@ -0,0 +1,317 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import io.undertow.security.api.AuthenticationMechanism;
+import io.undertow.security.api.SecurityContext;
+import io.undertow.security.idm.Account;
+import io.undertow.security.idm.IdentityManager;
+import io.undertow.security.idm.PasswordCredential;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.HeaderValues;
+import io.undertow.util.Headers;
+import io.undertow.util.StatusCodes;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.picketlink.idm.model.IdentityType;
+
+/**
+ * An Undertow HTTP Basic {@link AuthenticationMechanism} that caches the {@link Account} established for each
+ * Authorization header so that a client sending the same header on each request, e.g. over a keep-alive connection, is
+ * only verified against the {@link IdentityManager} once within the time to live.
+ *
+ * The cache is keyed by an HMAC of the header using a key generated for this instance so the encoded credentials are
+ * never held, it is bounded with the least recently used entry evicted once full. Registered as an
+ * {@link IdentityChangeListener} cached accounts are discarded when the credential of the user is updated, an account
+ * verified while the credential was updated or invalidated is not cached.
+ *
+ * If a run as header is set and the {@link IdentityManager} is an {@link UndertowIdentityManager} a request containing
+ * the header is authenticated as the identity it names if the run as is authorized, this is checked for each request.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class CachingBasicAuthenticationMechanism implements AuthenticationMechanism, IdentityChangeListener {
+
+    public static final String NAME = "BASIC";
+
+    private static final String BASIC_PREFIX = "Basic ";
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String challenge;
+    private final int maxEntries;
+    private final long timeToLive;
+    private final SecretKeySpec key;
+    private final Map<ByteBuffer, CachedAccount> accounts;
+    private final InvalidationGenerations generations = new InvalidationGenerations();
+    private String runAsHeader;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private final ThreadLocal<Mac> mac = new ThreadLocal<Mac>() {
+
+        @Override
+        protected Mac initialValue() {
+            try {
+                Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+                mac.init(key);
+
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Unable to initialise " + HMAC_ALGORITHM, e);
+            }
+        }
+
+    };
+
+    /**
+     * @param realmName - the realm name sent in the challenge.
+     * @param maxEntries - the maximum number of accounts to cache, 0 to disable caching.
+     * @param timeToLive - how long an account remains cached.
+     * @param unit - the unit of the time to live.
+     */
+    public CachingBasicAuthenticationMechanism(final String realmName, final int maxEntries, final long timeToLive,
+            final TimeUnit unit) {
+        if (maxEntries < 0) {
+            throw new IllegalArgumentException("maxEntries must not be negative");
+        }
+
+        byte[] keyBytes = new byte[32];
+        new SecureRandom().nextBytes(keyBytes);
+        this.key = new SecretKeySpec(keyBytes, HMAC_ALGORITHM);
+        this.challenge = BASIC_PREFIX + "realm=\"" + realmName + "\"";
+        this.maxEntries = maxEntries;
+        this.timeToLive = unit.toNanos(timeToLive);
+        this.accounts = new LinkedHashMap<ByteBuffer, CachedAccount>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = -5300297963596394473L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, CachedAccount> eldest) {
+                return size() > maxEntries;
+            }
+
+        };
+    }
+
+    /**
+     * Set the name of an optional request header containing the login name of the identity to run as.
+     *
+     * @param runAsHeader - the header name or null to disable run as.
+     */
+    public void setRunAsHeader(final String runAsHeader) {
+        this.runAsHeader = runAsHeader;
+    }
+
+    public AuthenticationMechanismOutcome authenticate(final HttpServerExchange exchange,
+            final SecurityContext securityContext) {
+        HeaderValues authorization = exchange.getRequestHeaders().get(Headers.AUTHORIZATION);
+        if (authorization == null) {
+            return AuthenticationMechanismOutcome.NOT_ATTEMPTED;
+        }
+
+        for (String current : authorization) {
+            if (current.regionMatches(true, 0, BASIC_PREFIX, 0, BASIC_PREFIX.length())) {
+                String encoded = current.substring(BASIC_PREFIX.length()).trim();
+                ByteBuffer digest = maxEntries == 0 ? null : digest(encoded);
+
+                Account account = digest == null ? null : getCached(digest);
+                if (account == null) {
+                    account = verify(securityContext.getIdentityManager(), encoded, digest);
+                }
+                if (account != null) {
+                    account = runAs(exchange, securityContext, account);
+                }
+                if (account == null) {
+                    securityContext.authenticationFailed("Authentication failed.", NAME);
+
+                    return AuthenticationMechanismOutcome.NOT_AUTHENTICATED;
+                }
+
+                securityContext.authenticationComplete(account, NAME, false);
+
+                return AuthenticationMechanismOutcome.AUTHENTICATED;
+            }
+        }
+
+        return AuthenticationMechanismOutcome.NOT_ATTEMPTED;
+    }
+
+    public ChallengeResult sendChallenge(final HttpServerExchange exchange, final SecurityContext securityContext) {
+        exchange.getResponseHeaders().add(Headers.WWW_AUTHENTICATE, challenge);
+
+        return new ChallengeResult(true, StatusCodes.UNAUTHORIZED);
+    }
+
+    public void invalidate(final String username) {
+        synchronized (accounts) {
+            generations.invalidated(username);
+            Iterator<CachedAccount> it = accounts.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().username.equals(username)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (accounts) {
+            generations.invalidatedAll();
+            accounts.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (accounts) {
+            return accounts.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public void agentAdded(final String loginName) {
+        // Nothing can be cached for a new agent.
+    }
+
+    public void credentialUpdated(final String loginName, final Object credential) {
+        invalidate(loginName);
+    }
+
+    public void runAsUpdated(final IdentityType authenticatedIdentity, final IdentityType authorizedAs, final boolean added) {
+        // Run as is checked for each request so is not cached.
+    }
+
+    private Account getCached(final ByteBuffer digest) {
+        CachedAccount cached;
+        synchronized (accounts) {
+            cached = accounts.get(digest);
+            if (cached != null && System.nanoTime() - cached.expires >= 0) {
+                accounts.remove(digest);
+                cached = null;
+            }
+        }
+
+        if (cached == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return cached.account;
+    }
+
+    private Account verify(final IdentityManager identityManager, final String encoded, final ByteBuffer digest) {
+        CharBuffer decoded;
+        try {
+            decoded = UTF_8.decode(ByteBuffer.wrap(Base64.getDecoder().decode(encoded)));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        char[] chars = decoded.array();
+        try {
+            int length = decoded.limit();
+            int colon = -1;
+            for (int i = 0; i < length && colon < 0; i++) {
+                if (chars[i] == ':') {
+                    colon = i;
+                }
+            }
+            if (colon < 0) {
+                return null;
+            }
+
+            String username = new String(chars, 0, colon);
+            char[] password = Arrays.copyOfRange(chars, colon + 1, length);
+            // Read before verifying so an account verified with a password replaced meanwhile is not cached.
+            long generation = generations.get(username);
+            Account account = identityManager.verify(username, new PasswordCredential(password));
+            Arrays.fill(password, (char) 0x00);
+
+            if (account != null && digest != null) {
+                CachedAccount cached = new CachedAccount(account, username, System.nanoTime() + timeToLive);
+                synchronized (accounts) {
+                    if (generations.get(username) == generation) {
+                        accounts.put(digest, cached);
+                    }
+                }
+            }
+
+            return account;
+        } finally {
+            Arrays.fill(chars, (char) 0x00);
+        }
+    }
+
+    private Account runAs(final HttpServerExchange exchange, final SecurityContext securityContext,
+            final Account account) {
+        String authorizationId = runAsHeader == null ? null : exchange.getRequestHeaders().getFirst(runAsHeader);
+        IdentityManager identityManager = securityContext.getIdentityManager();
+        if (authorizationId == null || identityManager instanceof UndertowIdentityManager == false) {
+            return account;
+        }
+
+        return ((UndertowIdentityManager) identityManager).runAs(account, authorizationId);
+    }
+
+    private ByteBuffer digest(final String encoded) {
+        return ByteBuffer.wrap(mac.get().doFinal(encoded.getBytes(UTF_8)));
+    }
+
+    private static final class CachedAccount {
+
+        private final Account account;
+        private final String username;
+        private final long expires;
+
+        private CachedAccount(final Account account, final String username, final long expires) {
+            this.account = account;
+            this.username = username;
+            this.expires = expires;
+        }
+
+    }
+
+}
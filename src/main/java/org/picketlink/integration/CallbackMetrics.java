@@ -0,0 +1,208 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * A {@link HandlerMetricsListener} maintaining counters for each callback type and result along with a
+ * {@link LatencyHistogram} for each store operation, the metrics can be exposed over JMX.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class CallbackMetrics implements HandlerMetricsListener, CallbackMetricsMBean {
+
+    public static final String DEFAULT_OBJECT_NAME = "org.picketlink.integration:type=CallbackMetrics";
+
+    private static final int RESULT_COUNT = Result.values().length;
+
+    private final AtomicLongArray callbackCounts = new AtomicLongArray(CallbackType.values().length * RESULT_COUNT);
+    private final AtomicLongArray coalescedCounts = new AtomicLongArray(StoreOperation.values().length);
+    private final LatencyHistogram[] latencies;
+
+    public CallbackMetrics() {
+        latencies = new LatencyHistogram[StoreOperation.values().length];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    public void callbackHandled(final CallbackType type, final Result result) {
+        callbackCounts.incrementAndGet(type.ordinal() * RESULT_COUNT + result.ordinal());
+    }
+
+    public void storeOperation(final StoreOperation operation, final long durationNanos) {
+        latencies[operation.ordinal()].record(durationNanos);
+    }
+
+    public void storeOperationCoalesced(final StoreOperation operation) {
+        coalescedCounts.incrementAndGet(operation.ordinal());
+    }
+
+    /**
+     * Register these metrics with the supplied {@link MBeanServer}.
+     *
+     * @param server - the {@link MBeanServer} to register with.
+     * @param name - the name to register under, if null {@link #DEFAULT_OBJECT_NAME} is used.
+     * @return the name the metrics were registered under.
+     * @throws JMException if registration fails.
+     */
+    public ObjectName register(final MBeanServer server, final ObjectName name) throws JMException {
+        ObjectName toRegister = name == null ? new ObjectName(DEFAULT_OBJECT_NAME) : name;
+
+        return server.registerMBean(this, toRegister).getObjectName();
+    }
+
+    public long getCount(final CallbackType type, final Result result) {
+        return callbackCounts.get(type.ordinal() * RESULT_COUNT + result.ordinal());
+    }
+
+    public LatencyHistogram getLatency(final StoreOperation operation) {
+        return latencies[operation.ordinal()];
+    }
+
+    public long getPasswordVerifiedCount() {
+        return getCount(CallbackType.VERIFY_PASSWORD, Result.VERIFIED);
+    }
+
+    public long getPasswordRejectedCount() {
+        return getCount(CallbackType.VERIFY_PASSWORD, Result.REJECTED);
+    }
+
+    public long getDigestHashVerifiedCount() {
+        return getCount(CallbackType.DIGEST_HASH, Result.VERIFIED);
+    }
+
+    public long getDigestHashRejectedCount() {
+        return getCount(CallbackType.DIGEST_HASH, Result.REJECTED);
+    }
+
+    public long getAuthorizeVerifiedCount() {
+        return getCount(CallbackType.AUTHORIZE, Result.VERIFIED);
+    }
+
+    public long getAuthorizeRejectedCount() {
+        return getCount(CallbackType.AUTHORIZE, Result.REJECTED);
+    }
+
+    public long getUnsupportedCount() {
+        long count = 0;
+        for (CallbackType current : CallbackType.values()) {
+            count += getCount(current, Result.UNSUPPORTED);
+        }
+
+        return count;
+    }
+
+    public long getValidateCredentialsCount() {
+        return getLatency(StoreOperation.VALIDATE_CREDENTIALS).getCount();
+    }
+
+    public double getValidateCredentialsMean() {
+        return getLatency(StoreOperation.VALIDATE_CREDENTIALS).getMean();
+    }
+
+    public long getValidateCredentials99thPercentile() {
+        return getLatency(StoreOperation.VALIDATE_CREDENTIALS).getValueAtPercentile(99);
+    }
+
+    public long getValidateCredentialsMax() {
+        return getLatency(StoreOperation.VALIDATE_CREDENTIALS).getMax();
+    }
+
+    public long getGetAgentCount() {
+        return getLatency(StoreOperation.GET_AGENT).getCount();
+    }
+
+    public double getGetAgentMean() {
+        return getLatency(StoreOperation.GET_AGENT).getMean();
+    }
+
+    public long getGetAgent99thPercentile() {
+        return getLatency(StoreOperation.GET_AGENT).getValueAtPercentile(99);
+    }
+
+    public long getGetAgentMax() {
+        return getLatency(StoreOperation.GET_AGENT).getMax();
+    }
+
+    public long getRunAsQueryCount() {
+        return getLatency(StoreOperation.RUN_AS_QUERY).getCount();
+    }
+
+    public double getRunAsQueryMean() {
+        return getLatency(StoreOperation.RUN_AS_QUERY).getMean();
+    }
+
+    public long getRunAsQuery99thPercentile() {
+        return getLatency(StoreOperation.RUN_AS_QUERY).getValueAtPercentile(99);
+    }
+
+    public long getRunAsQueryMax() {
+        return getLatency(StoreOperation.RUN_AS_QUERY).getMax();
+    }
+
+    public long getCoalescedCount(final StoreOperation operation) {
+        return coalescedCounts.get(operation.ordinal());
+    }
+
+    public long getValidateCredentialsCoalescedCount() {
+        return getCoalescedCount(StoreOperation.VALIDATE_CREDENTIALS);
+    }
+
+    public long getGetAgentCoalescedCount() {
+        return getCoalescedCount(StoreOperation.GET_AGENT);
+    }
+
+    public double getCoalescingRatio() {
+        long coalesced = 0;
+        long total = 0;
+        for (StoreOperation current : StoreOperation.values()) {
+            long count = getCoalescedCount(current);
+            coalesced += count;
+            total += count + getLatency(current).getCount();
+        }
+
+        return total == 0 ? 0 : (double) coalesced / total;
+    }
+
+    public long getLatencyAtPercentile(final String operation, final double percentile) {
+        return getLatency(StoreOperation.valueOf(operation)).getValueAtPercentile(percentile);
+    }
+
+    public void reset() {
+        for (int i = 0; i < callbackCounts.length(); i++) {
+            callbackCounts.set(i, 0);
+        }
+        for (int i = 0; i < coalescedCounts.length(); i++) {
+            coalescedCounts.set(i, 0);
+        }
+        for (LatencyHistogram current : latencies) {
+            current.reset();
+        }
+    }
+
+}
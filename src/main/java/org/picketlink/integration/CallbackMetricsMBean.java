@@ -0,0 +1,87 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+/**
+ * The management interface for {@link CallbackMetrics}, latencies are reported in nanoseconds.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public interface CallbackMetricsMBean {
+
+    long getPasswordVerifiedCount();
+
+    long getPasswordRejectedCount();
+
+    long getDigestHashVerifiedCount();
+
+    long getDigestHashRejectedCount();
+
+    long getAuthorizeVerifiedCount();
+
+    long getAuthorizeRejectedCount();
+
+    long getUnsupportedCount();
+
+    long getValidateCredentialsCount();
+
+    double getValidateCredentialsMean();
+
+    long getValidateCredentials99thPercentile();
+
+    long getValidateCredentialsMax();
+
+    long getGetAgentCount();
+
+    double getGetAgentMean();
+
+    long getGetAgent99thPercentile();
+
+    long getGetAgentMax();
+
+    long getRunAsQueryCount();
+
+    double getRunAsQueryMean();
+
+    long getRunAsQuery99thPercentile();
+
+    long getRunAsQueryMax();
+
+    long getValidateCredentialsCoalescedCount();
+
+    long getGetAgentCoalescedCount();
+
+    /**
+     * @return the proportion of store operations that were satisfied by sharing the result of an identical operation.
+     */
+    double getCoalescingRatio();
+
+    /**
+     * @param operation - the name of the {@link HandlerMetricsListener.StoreOperation}.
+     * @param percentile - the percentile between 0 and 100.
+     * @return the latency at the percentile.
+     */
+    long getLatencyAtPercentile(final String operation, final double percentile);
+
+    void reset();
+
+}
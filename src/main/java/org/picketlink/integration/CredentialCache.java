@@ -0,0 +1,232 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.picketlink.idm.IdentityManager;
+import org.picketlink.idm.model.IdentityType;
+
+/**
+ * A bounded cache of successful password verifications so that repeated authentications for the same user do not need to
+ * call {@link IdentityManager#validateCredentials(org.picketlink.idm.credential.Credentials)} each time.
+ *
+ * The cleartext password is never held, instead an HMAC of the username and password is cached using a key generated
+ * for this cache instance. Entries expire after the configured time to live and once the maximum size is reached the
+ * least recently used entry is evicted.
+ *
+ * A verification is only cached if the credential of the user has not been updated or invalidated since
+ * {@link #generation(String)} was read before the password was verified, so a verification of a replaced password
+ * completing after the update is never cached.
+ *
+ * Neither the key nor the entries are ever persisted, after a restart passwords are verified against the store again.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class CredentialCache implements IdentityChangeListener {
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int KEY_LENGTH = 32;
+
+    private final SecretKeySpec key;
+    private final long timeToLive;
+    private final Map<String, Verification> entries;
+    private final InvalidationGenerations generations = new InvalidationGenerations();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private final ThreadLocal<Mac> mac = new ThreadLocal<Mac>() {
+
+        @Override
+        protected Mac initialValue() {
+            try {
+                Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+                mac.init(key);
+
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Unable to initialise " + HMAC_ALGORITHM, e);
+            }
+        }
+
+    };
+
+    /**
+     * @param maxEntries - the maximum number of verifications to cache.
+     * @param timeToLive - how long a verification remains valid.
+     * @param unit - the unit of the time to live.
+     */
+    public CredentialCache(final int maxEntries, final long timeToLive, final TimeUnit unit) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be greater than 0");
+        }
+
+        byte[] keyBytes = new byte[KEY_LENGTH];
+        new SecureRandom().nextBytes(keyBytes);
+        this.key = new SecretKeySpec(keyBytes, HMAC_ALGORITHM);
+        this.timeToLive = unit.toNanos(timeToLive);
+        this.entries = new LinkedHashMap<String, Verification>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 4315106474196487366L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Verification> eldest) {
+                return size() > maxEntries;
+            }
+
+        };
+    }
+
+    /**
+     * Check if the supplied username and password have previously been successfully verified.
+     *
+     * @param username - the name of the user being authenticated.
+     * @param password - the password supplied by the user.
+     * @return true if a matching verification is cached and has not expired.
+     */
+    public boolean isVerified(final String username, final String password) {
+        Verification verification;
+        synchronized (entries) {
+            verification = entries.get(username);
+            if (verification != null && verification.expired(System.nanoTime())) {
+                entries.remove(username);
+                verification = null;
+            }
+        }
+
+        if (verification != null && MessageDigest.isEqual(verification.digest, digest(username, password))) {
+            hits.incrementAndGet();
+            return true;
+        }
+
+        misses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @param username - the name of the user.
+     * @return the generation to pass to {@link #verified(String, String, long)}, to be read before the password is verified.
+     */
+    public long generation(final String username) {
+        return generations.get(username);
+    }
+
+    /**
+     * Record that the supplied username and password have been successfully verified against the {@link IdentityManager}.
+     *
+     * @param username - the name of the user that was authenticated.
+     * @param password - the password that was verified.
+     * @param generation - the {@link #generation(String)} read before the password was verified.
+     */
+    public void verified(final String username, final String password, final long generation) {
+        Verification verification = new Verification(digest(username, password), System.nanoTime() + timeToLive);
+        synchronized (entries) {
+            // Discarded if the credential was updated or invalidated while verifying.
+            if (generations.get(username) == generation) {
+                entries.put(username, verification);
+            }
+        }
+    }
+
+    public void invalidate(final String username) {
+        synchronized (entries) {
+            generations.invalidated(username);
+            entries.remove(username);
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            generations.invalidatedAll();
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public void agentAdded(final String loginName) {
+        // Nothing can be cached for a new agent.
+    }
+
+    public void credentialUpdated(final String loginName, final Object credential) {
+        invalidate(loginName);
+    }
+
+    public void runAsUpdated(final IdentityType authenticatedIdentity, final IdentityType authorizedAs, final boolean added) {
+        // Verifications do not depend on run as relationships.
+    }
+
+    private byte[] digest(final String username, final String password) {
+        Mac mac = this.mac.get();
+        mac.update(username.getBytes(UTF_8));
+        mac.update((byte) 0x00);
+
+        byte[] passwordBytes = password.getBytes(UTF_8);
+        try {
+            return mac.doFinal(passwordBytes);
+        } finally {
+            Arrays.fill(passwordBytes, (byte) 0x00);
+        }
+    }
+
+    private static final class Verification {
+
+        private final byte[] digest;
+        private final long expires;
+
+        private Verification(final byte[] digest, final long expires) {
+            this.digest = digest;
+            this.expires = expires;
+        }
+
+        private boolean expired(final long now) {
+            return now - expires >= 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,224 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.picketlink.idm.credential.Password;
+import org.picketlink.idm.model.IdentityType;
+
+/**
+ * A bounded cache of the hex encoded { username : realm : password } hashes required to serve a
+ * {@link org.jboss.sasl.callback.DigestHashCallback} for DIGEST-MD5 authentication.
+ *
+ * The stores behind the {@link org.picketlink.idm.IdentityManager} do not hold this hash so it is derived whenever the
+ * cleartext password is available, that is when a {@link Password} is set through {@link IdentityManagement} or after a
+ * successful password verification. The hash is calculated once for each of the configured realms so no MD5 calculation
+ * is needed during a DIGEST-MD5 authentication. Once the maximum size is reached the least recently used hash is evicted.
+ *
+ * Hashes calculated from a verified password are only cached if the credential of the user has not been updated or
+ * invalidated since {@link #generation(String)} was read before the verification, so hashes of a replaced password are
+ * never cached after the hashes of its replacement.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class DigestHashCache implements IdentityChangeListener {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String[] realms;
+    private final Map<String, String> hashes;
+    private final InvalidationGenerations generations = new InvalidationGenerations();
+
+    public DigestHashCache(final int maxEntries, final String... realms) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be greater than 0");
+        }
+        if (realms.length == 0) {
+            throw new IllegalArgumentException("At least one realm must be specified.");
+        }
+
+        this.realms = realms.clone();
+        this.hashes = new LinkedHashMap<String, String>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = -1979233542616575264L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxEntries;
+            }
+
+        };
+    }
+
+    /**
+     * Get the hex encoded { username : realm : password } hash.
+     *
+     * @param username - the name of the user.
+     * @param realm - the realm being authenticated against.
+     * @return the hex encoded hash or null if it is not available.
+     */
+    public String getHexHash(final String username, final String realm) {
+        String key = key(username, realm);
+        synchronized (hashes) {
+            return hashes.get(key);
+        }
+    }
+
+    /**
+     * @param username - the name of the user.
+     * @return the generation to pass to {@link #passwordVerified(String, String, long)}, to be read before the password is
+     *         verified.
+     */
+    public long generation(final String username) {
+        return generations.get(username);
+    }
+
+    /**
+     * Notification that a password has been successfully verified, if any of the hashes for the user are not already cached
+     * they are calculated.
+     *
+     * @param username - the name of the user.
+     * @param password - the verified password.
+     * @param generation - the {@link #generation(String)} read before the password was verified.
+     */
+    public void passwordVerified(final String username, final String password, final long generation) {
+        if (generations.get(username) == generation && isCached(username) == false) {
+            cache(username, password.toCharArray(), generation);
+        }
+    }
+
+    public void invalidate(final String username) {
+        synchronized (hashes) {
+            generations.invalidated(username);
+            for (String current : realms) {
+                hashes.remove(key(username, current));
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (hashes) {
+            generations.invalidatedAll();
+            hashes.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (hashes) {
+            return hashes.size();
+        }
+    }
+
+    public void agentAdded(final String loginName) {
+        // Hashes are calculated once the credential is set.
+    }
+
+    public void credentialUpdated(final String loginName, final Object credential) {
+        long generation;
+        synchronized (hashes) {
+            invalidate(loginName);
+            generation = generations.get(loginName);
+        }
+
+        if (credential instanceof Password) {
+            // Take a copy as the value will be cleared once the hashes are calculated.
+            char[] password = ((Password) credential).getValue();
+            cache(loginName, Arrays.copyOf(password, password.length), generation);
+        }
+    }
+
+    public void runAsUpdated(final IdentityType authenticatedIdentity, final IdentityType authorizedAs, final boolean added) {
+        // Digest hashes do not depend on run as relationships.
+    }
+
+    private boolean isCached(final String username) {
+        synchronized (hashes) {
+            for (String current : realms) {
+                if (hashes.containsKey(key(username, current)) == false) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private void cache(final String username, final char[] password, final long generation) {
+        ByteBuffer passwordBytes = UTF_8.encode(CharBuffer.wrap(password));
+        Arrays.fill(password, (char) 0x00);
+
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            byte[] usernameBytes = username.getBytes(UTF_8);
+
+            // Calculated outside of the lock, the hashes for all realms are then cached together.
+            String[] hexHashes = new String[realms.length];
+            for (int i = 0; i < realms.length; i++) {
+                md5.update(usernameBytes);
+                md5.update((byte) ':');
+                md5.update(realms[i].getBytes(UTF_8));
+                md5.update((byte) ':');
+                md5.update(passwordBytes.duplicate());
+
+                hexHashes[i] = toHex(md5.digest());
+            }
+            synchronized (hashes) {
+                // Discarded if the credential was updated or invalidated while calculating.
+                if (generations.get(username) == generation) {
+                    for (int i = 0; i < realms.length; i++) {
+                        hashes.put(key(username, realms[i]), hexHashes[i]);
+                    }
+                }
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Unable to obtain MD5 MessageDigest", e);
+        } finally {
+            if (passwordBytes.hasArray()) {
+                Arrays.fill(passwordBytes.array(), (byte) 0x00);
+            }
+        }
+    }
+
+    private static String key(final String username, final String realm) {
+        return realm + '\0' + username;
+    }
+
+    private static String toHex(final byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX[(bytes[i] >> 4) & 0x0F];
+            hex[i * 2 + 1] = HEX[bytes[i] & 0x0F];
+        }
+
+        return new String(hex);
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+/**
+ * SPI to be notified of the callbacks handled by the {@link PicketLinkCallbackHandler} and the time taken by each call it
+ * makes to the {@link org.picketlink.idm.IdentityManager}.
+ *
+ * Notifications are made on the thread handling the callbacks so implementations must be thread safe and should not block
+ * or allocate.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public interface HandlerMetricsListener {
+
+    enum CallbackType {
+        VERIFY_PASSWORD, DIGEST_HASH, AUTHORIZE, SCRAM_VERIFIER, OTHER
+    }
+
+    enum Result {
+        VERIFIED, REJECTED, UNSUPPORTED
+    }
+
+    enum StoreOperation {
+        VALIDATE_CREDENTIALS, GET_AGENT, RUN_AS_QUERY
+    }
+
+    /**
+     * Notification that a callback has been handled.
+     *
+     * @param type - the type of the callback.
+     * @param result - the result of handling the callback.
+     */
+    void callbackHandled(final CallbackType type, final Result result);
+
+    /**
+     * Notification of a completed call to the {@link org.picketlink.idm.IdentityManager}.
+     *
+     * @param operation - the operation that was called.
+     * @param durationNanos - the time taken in nanoseconds.
+     */
+    void storeOperation(final StoreOperation operation, final long durationNanos);
+
+    /**
+     * Notification that no call was made to the {@link org.picketlink.idm.IdentityManager} as the result of an identical
+     * call already in flight was shared, see {@link RequestCoalescer}.
+     *
+     * @param operation - the operation that was coalesced.
+     */
+    void storeOperationCoalesced(final StoreOperation operation);
+
+}
@@ -0,0 +1,62 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import org.picketlink.idm.model.IdentityType;
+
+/**
+ * A listener to be notified of changes made through {@link IdentityManagement} so that any state held by the integration
+ * can be kept consistent with the underlying store.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public interface IdentityChangeListener {
+
+    /**
+     * Notification that a new agent has been added.
+     *
+     * @param loginName - the login name of the agent.
+     */
+    void agentAdded(final String loginName);
+
+    /**
+     * Notification that the credential of the specified agent has been updated.
+     *
+     * @param loginName - the login name of the agent.
+     * @param credential - the credential that was set, as passed to
+     *        {@link org.picketlink.idm.IdentityManager#updateCredential(org.picketlink.idm.model.Agent, Object)}.
+     */
+    void credentialUpdated(final String loginName, final Object credential);
+
+    /**
+     * Notification that a {@link RunAsRelationship} between the two identities has been added or removed.
+     *
+     * Changes received from other nodes by the {@link InvalidationBus} only identify agents, for any other relationship both
+     * identities are null and any state depending on run as relationships should be discarded.
+     *
+     * @param authenticatedIdentity - the identity that is authenticated.
+     * @param authorizedAs - the identity it is authorized to run as.
+     * @param added - true if the relationship was added, false if it was removed.
+     */
+    void runAsUpdated(final IdentityType authenticatedIdentity, final IdentityType authorizedAs, final boolean added);
+
+}
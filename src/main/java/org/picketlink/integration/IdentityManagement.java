@@ -0,0 +1,91 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.picketlink.idm.IdentityManager;
+import org.picketlink.idm.model.Agent;
+
+/**
+ * Wrapper around an {@link IdentityManager} for the administrative operations that the integration needs to be aware of,
+ * registered {@link IdentityChangeListener}s are notified after each change is applied to the store.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class IdentityManagement {
+
+    private final IdentityManager identityManager;
+    private final List<IdentityChangeListener> listeners = new CopyOnWriteArrayList<IdentityChangeListener>();
+
+    public IdentityManagement(final IdentityManager identityManager) {
+        this.identityManager = identityManager;
+    }
+
+    public void addListener(final IdentityChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(final IdentityChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    public void addAgent(final Agent agent) {
+        identityManager.add(agent);
+
+        for (IdentityChangeListener current : listeners) {
+            current.agentAdded(agent.getLoginName());
+        }
+    }
+
+    public void updateCredential(final Agent agent, final Object credential) {
+        identityManager.updateCredential(agent, credential);
+
+        for (IdentityChangeListener current : listeners) {
+            current.credentialUpdated(agent.getLoginName(), credential);
+        }
+    }
+
+    public void addRunAsRelationship(final RunAsRelationship relationship) {
+        identityManager.add(relationship);
+
+        runAsUpdated(relationship, true);
+    }
+
+    public void removeRunAsRelationship(final RunAsRelationship relationship) {
+        identityManager.remove(relationship);
+
+        runAsUpdated(relationship, false);
+    }
+
+    public IdentityManager getIdentityManager() {
+        return identityManager;
+    }
+
+    private void runAsUpdated(final RunAsRelationship relationship, final boolean added) {
+        for (IdentityChangeListener current : listeners) {
+            current.runAsUpdated(relationship.getAuthenticatedIdentity(), relationship.getAuthorizedAs(), added);
+        }
+    }
+
+}
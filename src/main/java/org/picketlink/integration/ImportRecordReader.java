@@ -0,0 +1,246 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming reader of the records for the {@link BulkImporter}, one record per line.
+ *
+ * CSV records are {@code user,<loginName>,<password>} or {@code runas,<authenticatedIdentity>,<authorizedAs>}, values may be
+ * double quoted with embedded quotes doubled, blank lines and lines starting with '#' are skipped. Surrounding whitespace
+ * is removed from the type and identity values but a password is read exactly as written. NDJSON records are flat
+ * objects with a "type" of "user" or "runas" and the same field names, e.g.
+ * {@code {"type":"user","loginName":"Jack","password":"Jack_Password"}}.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+final class ImportRecordReader {
+
+    static final String USER = "user";
+    static final String RUN_AS = "runas";
+
+    private final BufferedReader reader;
+    private final BulkImporter.Format format;
+    private int lineNumber;
+
+    ImportRecordReader(final Reader reader, final BulkImporter.Format format) {
+        this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        this.format = format;
+    }
+
+    /**
+     * Read the next record.
+     *
+     * @return the type followed by the two values of the record or null at the end of the input.
+     * @throws MalformedRecordException if the line is not a valid record, reading can continue with the next line.
+     * @throws IOException if the input can not be read.
+     */
+    String[] next() throws IOException {
+        String line;
+        String trimmed;
+        do {
+            line = reader.readLine();
+            if (line == null) {
+                return null;
+            }
+            lineNumber++;
+            // The line itself is not trimmed, whitespace at either end may be part of a password.
+            trimmed = line.trim();
+        } while (trimmed.length() == 0 || (format == BulkImporter.Format.CSV && trimmed.charAt(0) == '#'));
+
+        String[] record = format == BulkImporter.Format.CSV ? parseCsv(line) : parseJson(trimmed);
+        if (record == null || record[1] == null || record[2] == null
+                || (USER.equals(record[0]) == false && RUN_AS.equals(record[0]) == false)) {
+            throw new MalformedRecordException(lineNumber);
+        }
+
+        return record;
+    }
+
+    int getLineNumber() {
+        return lineNumber;
+    }
+
+    private String[] parseCsv(final String line) {
+        List<String> values = new ArrayList<String>(3);
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        current.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    current.append(c);
+                }
+            } else if (c == '"' && current.length() == 0) {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(current.toString());
+                current.setLength(0);
+            } else {
+                current.append(c);
+            }
+        }
+        values.add(current.toString());
+
+        if (quoted || values.size() != 3) {
+            return null;
+        }
+
+        String type = values.get(0).trim();
+        if (USER.equals(type)) {
+            return new String[] { type, values.get(1).trim(), values.get(2) };
+        }
+
+        return new String[] { type, values.get(1).trim(), values.get(2).trim() };
+    }
+
+    private String[] parseJson(final String line) {
+        Map<String, String> fields = new HashMap<String, String>();
+        int[] position = { 0 };
+        try {
+            expect(line, position, '{');
+            if (peek(line, position) != '}') {
+                do {
+                    String name = readString(line, position);
+                    expect(line, position, ':');
+                    fields.put(name, readString(line, position));
+                } while (consume(line, position, ','));
+            }
+            expect(line, position, '}');
+            if (position[0] != line.length()) {
+                return null;
+            }
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        String type = fields.get("type");
+        if (USER.equals(type)) {
+            return new String[] { type, fields.get("loginName"), fields.get("password") };
+        }
+
+        return new String[] { type, fields.get("authenticatedIdentity"), fields.get("authorizedAs") };
+    }
+
+    private static char peek(final String line, final int[] position) {
+        while (position[0] < line.length() && Character.isWhitespace(line.charAt(position[0]))) {
+            position[0]++;
+        }
+        if (position[0] == line.length()) {
+            throw new IllegalArgumentException();
+        }
+
+        return line.charAt(position[0]);
+    }
+
+    private static boolean consume(final String line, final int[] position, final char expected) {
+        if (peek(line, position) == expected) {
+            position[0]++;
+            return true;
+        }
+
+        return false;
+    }
+
+    private static void expect(final String line, final int[] position, final char expected) {
+        if (consume(line, position, expected) == false) {
+            throw new IllegalArgumentException();
+        }
+    }
+
+    private static String readString(final String line, final int[] position) {
+        expect(line, position, '"');
+        StringBuilder value = new StringBuilder();
+        while (true) {
+            if (position[0] >= line.length()) {
+                throw new IllegalArgumentException();
+            }
+            char c = line.charAt(position[0]++);
+            if (c == '"') {
+                return value.toString();
+            } else if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+
+            if (position[0] >= line.length()) {
+                throw new IllegalArgumentException();
+            }
+            char escaped = line.charAt(position[0]++);
+            switch (escaped) {
+                case 'b':
+                    value.append('\b');
+                    break;
+                case 'f':
+                    value.append('\f');
+                    break;
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'u':
+                    if (position[0] + 4 > line.length()) {
+                        throw new IllegalArgumentException();
+                    }
+                    value.append((char) Integer.parseInt(line.substring(position[0], position[0] + 4), 16));
+                    position[0] += 4;
+                    break;
+                default:
+                    // '"', '\\' and '/'
+                    value.append(escaped);
+            }
+        }
+    }
+
+    /**
+     * Thrown for a line that is not a valid record, the line has been consumed so reading can continue.
+     */
+    static final class MalformedRecordException extends IOException {
+
+        private static final long serialVersionUID = 2465304957183218867L;
+
+        private MalformedRecordException(final int lineNumber) {
+            super("Malformed record at line " + lineNumber);
+        }
+
+    }
+
+}
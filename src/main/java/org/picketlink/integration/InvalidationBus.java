@@ -0,0 +1,358 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.picketlink.idm.model.IdentityType;
+
+/**
+ * Broadcasts the changes made through {@link IdentityManagement} on this node to the other nodes of a cluster so that their
+ * caches can be invalidated, and notifies the local listeners of the changes made on other nodes.
+ *
+ * The bus is registered as a listener with the {@link IdentityManagement} of this node and the caches to be invalidated
+ * are registered as listeners with the bus as well as with the {@link IdentityManagement}. Only the login names are sent,
+ * so {@link IdentityChangeListener#credentialUpdated(String, Object)} is notified without the credential.
+ *
+ * Remote events are only ever used to invalidate, a change to a relationship is notified with both identities null so the
+ * listeners discard or reload their run as state from the store rather than trusting a grant received over the network.
+ * Each message is signed with an HMAC using a key shared by all nodes of the cluster, messages that do not verify are
+ * dropped and counted.
+ *
+ * Events are coalesced, once an event is published it is held for the coalescing delay and any further events published in
+ * that time are sent with it in as few messages as the transport allows. Repeated events for the same login name or pair of
+ * login names within the delay are sent once, only the latest change to a relationship is sent.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class InvalidationBus implements IdentityChangeListener {
+
+    private static final int MAGIC = 0x504C4956;
+    // Magic, node ID and event count.
+    private static final int HEADER_LENGTH = 14;
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_LENGTH = 32;
+    private static final int MIN_KEY_LENGTH = 16;
+
+    private static final byte AGENT_ADDED = 1;
+    private static final byte CREDENTIAL_UPDATED = 2;
+    private static final byte RUN_AS_ADDED = 3;
+    private static final byte RUN_AS_REMOVED = 4;
+
+    private final InvalidationTransport transport;
+    private final SecretKeySpec key;
+    private final ScheduledExecutorService executor;
+    private final long coalesceDelay;
+    private final long nodeId = new SecureRandom().nextLong();
+    private final List<IdentityChangeListener> listeners = new CopyOnWriteArrayList<IdentityChangeListener>();
+    private final Map<String, byte[]> pending = new LinkedHashMap<String, byte[]>();
+    private boolean flushScheduled;
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong messagesReceived = new AtomicLong();
+    private final AtomicLong sendFailures = new AtomicLong();
+    private final AtomicLong messagesRejected = new AtomicLong();
+
+    private final ThreadLocal<Mac> mac = new ThreadLocal<Mac>() {
+
+        @Override
+        protected Mac initialValue() {
+            try {
+                Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+                mac.init(key);
+
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Unable to initialise " + HMAC_ALGORITHM, e);
+            }
+        }
+
+    };
+
+    /**
+     * @param transport - the transport to broadcast on.
+     * @param sharedKey - the key shared by all nodes used to sign and verify messages, at least 16 bytes.
+     * @param executor - the executor to send the coalesced events on.
+     * @param coalesceDelay - how long to hold events before sending.
+     * @param unit - the unit of the delay.
+     */
+    public InvalidationBus(final InvalidationTransport transport, final byte[] sharedKey,
+            final ScheduledExecutorService executor, final long coalesceDelay, final TimeUnit unit) {
+        if (sharedKey == null || sharedKey.length < MIN_KEY_LENGTH) {
+            throw new IllegalArgumentException("sharedKey must be at least " + MIN_KEY_LENGTH + " bytes");
+        }
+
+        this.transport = transport;
+        this.key = new SecretKeySpec(sharedKey, HMAC_ALGORITHM);
+        this.executor = executor;
+        this.coalesceDelay = unit.toNanos(coalesceDelay);
+
+        transport.setReceiver(new InvalidationTransport.Receiver() {
+
+            public void received(final byte[] message) {
+                receive(message);
+            }
+        });
+    }
+
+    /**
+     * Add a listener to be notified of changes made on other nodes.
+     *
+     * @param listener - the listener to add.
+     */
+    public void addListener(final IdentityChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(final IdentityChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    public void agentAdded(final String loginName) {
+        publish("A" + loginName, encode(AGENT_ADDED, loginName, null));
+    }
+
+    public void credentialUpdated(final String loginName, final Object credential) {
+        publish("C" + loginName, encode(CREDENTIAL_UPDATED, loginName, null));
+    }
+
+    public void runAsUpdated(final IdentityType authenticatedIdentity, final IdentityType authorizedAs, final boolean added) {
+        // Other nodes only reload, so the identities are not sent and a pending removal is not replaced by an add.
+        synchronized (pending) {
+            byte[] current = pending.get("R");
+            boolean removed = added == false || (current != null && current[0] == RUN_AS_REMOVED);
+            publish("R", encode(removed ? RUN_AS_REMOVED : RUN_AS_ADDED, null, null));
+        }
+    }
+
+    /**
+     * Send any pending events immediately.
+     */
+    public void flush() {
+        List<byte[]> events;
+        synchronized (pending) {
+            events = new ArrayList<byte[]>(pending.values());
+            pending.clear();
+            flushScheduled = false;
+        }
+
+        int maxMessageSize = transport.getMaxMessageSize();
+        List<byte[]> message = new ArrayList<byte[]>();
+        int length = HEADER_LENGTH + MAC_LENGTH;
+        for (byte[] current : events) {
+            if (message.isEmpty() == false
+                    && (length + current.length > maxMessageSize || message.size() == 0xFFFF)) {
+                send(message, length);
+                message.clear();
+                length = HEADER_LENGTH + MAC_LENGTH;
+            }
+            message.add(current);
+            length += current.length;
+        }
+        if (message.isEmpty() == false) {
+            send(message, length);
+        }
+    }
+
+    /**
+     * Send any pending events and close the transport.
+     */
+    public void close() {
+        flush();
+        transport.close();
+    }
+
+    public long getPublishedCount() {
+        return published.get();
+    }
+
+    /**
+     * @return the number of events not sent as a later event for the same login names replaced them.
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    public long getMessagesSent() {
+        return messagesSent.get();
+    }
+
+    public long getMessagesReceived() {
+        return messagesReceived.get();
+    }
+
+    public long getSendFailures() {
+        return sendFailures.get();
+    }
+
+    /**
+     * @return the number of messages dropped as they were malformed or their signature did not verify.
+     */
+    public long getMessagesRejected() {
+        return messagesRejected.get();
+    }
+
+    private void publish(final String key, final byte[] event) {
+        published.incrementAndGet();
+        synchronized (pending) {
+            if (pending.remove(key) != null) {
+                coalesced.incrementAndGet();
+            }
+            pending.put(key, event);
+
+            if (flushScheduled == false) {
+                flushScheduled = true;
+                executor.schedule(new Runnable() {
+
+                    public void run() {
+                        flush();
+                    }
+                }, coalesceDelay, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private void send(final List<byte[]> events, final int length) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeLong(nodeId);
+            out.writeShort(events.size());
+            for (byte[] current : events) {
+                out.write(current);
+            }
+            out.flush();
+            out.write(mac.get().doFinal(bytes.toByteArray()));
+
+            transport.send(bytes.toByteArray());
+            messagesSent.incrementAndGet();
+        } catch (IOException e) {
+            // The caches of the other nodes fall back to expiring their entries.
+            sendFailures.incrementAndGet();
+        }
+    }
+
+    private void receive(final byte[] message) {
+        if (verify(message) == false) {
+            messagesRejected.incrementAndGet();
+            return;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(message, 0, message.length - MAC_LENGTH));
+            if (in.readInt() != MAGIC) {
+                messagesRejected.incrementAndGet();
+                return;
+            } else if (in.readLong() == nodeId) {
+                return;
+            }
+            messagesReceived.incrementAndGet();
+
+            int count = in.readUnsignedShort();
+            for (int i = 0; i < count; i++) {
+                byte type = in.readByte();
+                String first = readLoginName(in);
+                // Relationship events carry no identities.
+                readLoginName(in);
+                for (IdentityChangeListener current : listeners) {
+                    switch (type) {
+                        case AGENT_ADDED:
+                            current.agentAdded(first);
+                            break;
+                        case CREDENTIAL_UPDATED:
+                            current.credentialUpdated(first, null);
+                            break;
+                        case RUN_AS_ADDED:
+                        case RUN_AS_REMOVED:
+                            current.runAsUpdated(null, null, type == RUN_AS_ADDED);
+                            break;
+                        default:
+                            // Unknown event types from a later version are ignored.
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // A truncated message, any events already read have been applied.
+        }
+    }
+
+    private boolean verify(final byte[] message) {
+        if (message.length < HEADER_LENGTH + MAC_LENGTH) {
+            return false;
+        }
+
+        Mac mac = this.mac.get();
+        mac.update(message, 0, message.length - MAC_LENGTH);
+
+        return MessageDigest.isEqual(mac.doFinal(), Arrays.copyOfRange(message, message.length - MAC_LENGTH,
+                message.length));
+    }
+
+    private static byte[] encode(final byte type, final String first, final String second) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(type);
+            writeLoginName(out, first);
+            writeLoginName(out, second);
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to encode event.", e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static void writeLoginName(final DataOutputStream out, final String loginName) throws IOException {
+        out.writeBoolean(loginName != null);
+        if (loginName != null) {
+            out.writeUTF(loginName);
+        }
+    }
+
+    private static String readLoginName(final DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.integration;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Striped counters of the invalidations made for each user, a cache reads the generation for the user before the value to
+ * cache is verified or derived and discards the value if the generation has since changed.
+ *
+ * Users sharing a stripe may cause a value to be discarded unnecessarily but a stale value is never cached. Updates to the
+ * counters are expected to be made while holding the lock of the cache so they are ordered with the puts they guard.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+final class InvalidationGenerations {
+
+    private static final int STRIPES = 64;
+
+    private final AtomicLongArray generations = new AtomicLongArray(STRIPES);
+
+    long get(final String username) {
+        return generations.get(stripe(username));
+    }
+
+    void invalidated(final String username) {
+        generations.incrementAndGet(stripe(username));
+    }
+
+    void invalidatedAll() {
+        for (int i = 0; i < STRIPES; i++) {
+            generations.incrementAndGet(i);
+        }
+    }
+
+    private static int stripe(final String username) {
+        int hash = username.hashCode();
+
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+}
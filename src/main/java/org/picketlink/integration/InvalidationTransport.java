@@ -0,0 +1,72 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.io.IOException;
+
+/**
+ * SPI for the transport used by the {@link InvalidationBus} to broadcast messages to the other nodes of a cluster.
+ *
+ * Delivery is best effort, a transport may lose messages so caches updated by the bus should still expire their entries.
+ * Messages sent by a node may also be delivered back to the same node.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public interface InvalidationTransport {
+
+    /**
+     * Receiver of the messages broadcast by other nodes.
+     */
+    interface Receiver {
+
+        /**
+         * @param message - the message received, the receiver may retain the array.
+         */
+        void received(final byte[] message);
+
+    }
+
+    /**
+     * Set the receiver for messages from other nodes, called once before the first message is sent.
+     *
+     * @param receiver - the receiver.
+     */
+    void setReceiver(final Receiver receiver);
+
+    /**
+     * Broadcast a message to the other nodes.
+     *
+     * @param message - the message to send.
+     * @throws IOException if the message can not be sent.
+     */
+    void send(final byte[] message) throws IOException;
+
+    /**
+     * The maximum size of a message this transport can send.
+     *
+     * @return the maximum message size in bytes.
+     */
+    int getMaxMessageSize();
+
+    void close();
+
+}
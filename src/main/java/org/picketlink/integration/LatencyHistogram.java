@@ -0,0 +1,129 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of latencies in nanoseconds.
+ *
+ * In the same way as HdrHistogram values are counted in buckets where each power of two range is split into a fixed number
+ * of linear sub buckets, this gives a bounded relative error of 1 / {@value #SUB_BUCKET_COUNT} across the full range of
+ * values. Recording a value is a couple of bit operations and an atomic increment so never blocks or allocates.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = 64 - SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((BUCKET_COUNT + 1) * SUB_BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalValue = new AtomicLong();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    public void record(final long value) {
+        long recorded = value < 0 ? 0 : value;
+        counts.incrementAndGet(indexOf(recorded));
+        totalCount.incrementAndGet();
+        totalValue.addAndGet(recorded);
+
+        long currentMax = maxValue.get();
+        while (recorded > currentMax && maxValue.compareAndSet(currentMax, recorded) == false) {
+            currentMax = maxValue.get();
+        }
+    }
+
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    public long getMax() {
+        return maxValue.get();
+    }
+
+    public double getMean() {
+        long count = totalCount.get();
+
+        return count == 0 ? 0 : (double) totalValue.get() / count;
+    }
+
+    /**
+     * Get the value at the given percentile, the value returned is the upper bound of the bucket the percentile falls in.
+     *
+     * @param percentile - the percentile between 0 and 100.
+     * @return the value at the percentile or 0 if no values have been recorded.
+     */
+    public long getValueAtPercentile(final double percentile) {
+        long count = totalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(count * Math.min(percentile, 100.0) / 100.0));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValueAt(i), maxValue.get());
+            }
+        }
+
+        return maxValue.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+        totalValue.set(0);
+        maxValue.set(0);
+    }
+
+    private static int indexOf(final long value) {
+        int magnitude = 64 - Long.numberOfLeadingZeros(value >>> SUB_BUCKET_BITS);
+        int subBucket = (int) (value >>> Math.max(0, magnitude - 1)) & (SUB_BUCKET_COUNT - 1);
+        if (magnitude == 0) {
+            subBucket = (int) value;
+        }
+
+        return magnitude * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    private static long highestValueAt(final int index) {
+        int magnitude = index / SUB_BUCKET_COUNT;
+        long subBucket = index % SUB_BUCKET_COUNT;
+        if (magnitude == 0) {
+            return subBucket;
+        }
+
+        int shift = magnitude - 1;
+        long base = (1L << (SUB_BUCKET_BITS + shift));
+
+        return base + (subBucket << shift) + (1L << shift) - 1;
+    }
+
+}
@@ -0,0 +1,305 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Throttles password verification once too many failures have been seen for a username or for a client source within a
+ * sliding window, throttled attempts are rejected without calling the {@link org.picketlink.idm.IdentityManager}.
+ *
+ * The client source, e.g. the remote address, is supplied by adding {@link #CLIENT_SOURCE} to the properties used to create
+ * the {@link javax.security.sasl.SaslServer} and creating the {@link javax.security.auth.callback.CallbackHandler} for the
+ * exchange with {@link PicketLinkCallbackHandler#createCallbackHandler(java.util.Map)}.
+ *
+ * Failures are counted in fixed size tables so memory is bounded regardless of the number of distinct keys, each key
+ * hashes to a small set of slots and when all are in use the slot with the lowest count is evicted. Each slot holds a
+ * fingerprint of the key with the failure counts for the current and previous window packed into a single long updated by
+ * compare and set, the count over the sliding window is estimated by weighting the previous window by the portion of it
+ * still inside the sliding window. Counts decay to nothing two windows after the last failure.
+ *
+ * A successful verification clears the count for the username. Attempts rejected as the source is throttled are counted
+ * against the source but not the username, a source that keeps trying remains throttled while a username being attacked
+ * recovers as soon as the attack is throttled. Attempts rejected only as the username is throttled are not counted against
+ * the source, so a source is not throttled just for trying a username throttled by somebody else.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class LoginThrottle {
+
+    /**
+     * The SASL property to hold the client source, the value is converted to a String.
+     */
+    public static final String CLIENT_SOURCE = "org.picketlink.integration.client_source";
+
+    private final SlidingWindowCounter usernames;
+    private final SlidingWindowCounter sources;
+    private final int maxUsernameFailures;
+    private final int maxSourceFailures;
+
+    private final AtomicLong throttled = new AtomicLong();
+
+    /**
+     * @param maxUsernameFailures - the number of failures for a username within the window after which it is throttled.
+     * @param maxSourceFailures - the number of failures from a source within the window after which it is throttled.
+     * @param window - the length of the sliding window.
+     * @param unit - the unit of the window.
+     * @param maxEntries - the number of keys to track for each of usernames and sources.
+     */
+    public LoginThrottle(final int maxUsernameFailures, final int maxSourceFailures, final long window, final TimeUnit unit,
+            final int maxEntries) {
+        if (maxUsernameFailures < 1 || maxUsernameFailures > SlidingWindowCounter.MAX_COUNT || maxSourceFailures < 1
+                || maxSourceFailures > SlidingWindowCounter.MAX_COUNT) {
+            throw new IllegalArgumentException("Failure limits must be between 1 and " + SlidingWindowCounter.MAX_COUNT);
+        }
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be greater than 0");
+        }
+
+        this.maxUsernameFailures = maxUsernameFailures;
+        this.maxSourceFailures = maxSourceFailures;
+        this.usernames = new SlidingWindowCounter(maxEntries, unit.toNanos(window));
+        this.sources = new SlidingWindowCounter(maxEntries, unit.toNanos(window));
+    }
+
+    /**
+     * Check if an attempt to verify the password of the user should be rejected, an attempt rejected as the source is
+     * throttled is counted as a further failure for the source.
+     *
+     * @param username - the name of the user being authenticated.
+     * @param source - the client source or null if not known.
+     * @return true if the attempt should be rejected.
+     */
+    public boolean isThrottled(final String username, final String source) {
+        long now = System.nanoTime();
+        boolean sourceThrottled = source != null && sources.count(source, now) >= maxSourceFailures;
+        if (sourceThrottled || usernames.count(username, now) >= maxUsernameFailures) {
+            if (sourceThrottled) {
+                sources.increment(source, now);
+            }
+            throttled.incrementAndGet();
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Record a failed verification.
+     *
+     * @param username - the name of the user that failed to authenticate.
+     * @param source - the client source or null if not known.
+     */
+    public void failed(final String username, final String source) {
+        long now = System.nanoTime();
+        usernames.increment(username, now);
+        if (source != null) {
+            sources.increment(source, now);
+        }
+    }
+
+    /**
+     * Record a successful verification.
+     *
+     * @param username - the name of the user that was authenticated.
+     */
+    public void succeeded(final String username) {
+        usernames.clear(username);
+    }
+
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    /**
+     * A fixed size table of approximate sliding window counters.
+     */
+    private static final class SlidingWindowCounter {
+
+        private static final int MAX_COUNT = 0xFFF;
+        private static final int WAYS = 4;
+
+        // Slot layout: fingerprint (24 bits) | window (16 bits) | current count (12 bits) | previous count (12 bits)
+        private static final int FINGERPRINT_SHIFT = 40;
+        private static final int WINDOW_SHIFT = 24;
+        private static final int CURRENT_SHIFT = 12;
+        private static final long WINDOW_MASK = 0xFFFF;
+
+        private final AtomicLongArray slots;
+        private final int setMask;
+        private final long windowNanos;
+
+        private SlidingWindowCounter(final int maxEntries, final long windowNanos) {
+            int sets = 1;
+            while (sets * WAYS < maxEntries) {
+                sets <<= 1;
+            }
+
+            this.slots = new AtomicLongArray(sets * WAYS);
+            this.setMask = sets - 1;
+            this.windowNanos = Math.max(1, windowNanos);
+        }
+
+        private int count(final String key, final long now) {
+            long hash = hash(key);
+            long fingerprint = fingerprint(hash);
+            int base = base(hash);
+            for (int i = 0; i < WAYS; i++) {
+                long slot = slots.get(base + i);
+                if (slot != 0 && slotFingerprint(slot) == fingerprint) {
+                    return estimate(slot, now);
+                }
+            }
+
+            return 0;
+        }
+
+        private void increment(final String key, final long now) {
+            long hash = hash(key);
+            long fingerprint = fingerprint(hash);
+            int base = base(hash);
+            long window = window(now);
+
+            while (true) {
+                int index = -1;
+                long slot = 0;
+                int lowest = Integer.MAX_VALUE;
+                for (int i = 0; i < WAYS; i++) {
+                    long current = slots.get(base + i);
+                    if (current != 0 && slotFingerprint(current) == fingerprint) {
+                        index = base + i;
+                        slot = current;
+                        break;
+                    }
+                    // Otherwise replace the empty or lowest slot, an expired slot estimates to 0.
+                    int estimate = current == 0 ? -1 : estimate(current, now);
+                    if (estimate < lowest) {
+                        index = base + i;
+                        slot = current;
+                        lowest = estimate;
+                    }
+                }
+
+                long updated;
+                if (slot != 0 && slotFingerprint(slot) == fingerprint) {
+                    long current = Math.min(MAX_COUNT, current(slot, window) + 1);
+                    updated = pack(fingerprint, window, current, previous(slot, window));
+                } else {
+                    updated = pack(fingerprint, window, 1, 0);
+                }
+
+                if (slots.compareAndSet(index, slot, updated)) {
+                    return;
+                }
+            }
+        }
+
+        private void clear(final String key) {
+            long hash = hash(key);
+            long fingerprint = fingerprint(hash);
+            int base = base(hash);
+            for (int i = 0; i < WAYS; i++) {
+                long slot = slots.get(base + i);
+                if (slot != 0 && slotFingerprint(slot) == fingerprint) {
+                    // If the slot has changed it was updated concurrently and the update is kept.
+                    slots.compareAndSet(base + i, slot, 0);
+                    return;
+                }
+            }
+        }
+
+        private int estimate(final long slot, final long now) {
+            long window = window(now);
+            // System.nanoTime() may be negative, floor so the position within the window is never negative.
+            double elapsed = (double) Math.floorMod(now, windowNanos) / windowNanos;
+
+            return (int) (current(slot, window) + previous(slot, window) * (1 - elapsed));
+        }
+
+        /**
+         * @return the count of the slot for the supplied window.
+         */
+        private static long current(final long slot, final long window) {
+            return age(slot, window) == 0 ? (slot >>> CURRENT_SHIFT) & MAX_COUNT : 0;
+        }
+
+        /**
+         * @return the count of the slot for the window before the supplied window.
+         */
+        private static long previous(final long slot, final long window) {
+            long age = age(slot, window);
+            if (age == 0) {
+                return slot & MAX_COUNT;
+            }
+
+            return age == 1 ? (slot >>> CURRENT_SHIFT) & MAX_COUNT : 0;
+        }
+
+        private static long age(final long slot, final long window) {
+            return (window - ((slot >>> WINDOW_SHIFT) & WINDOW_MASK)) & WINDOW_MASK;
+        }
+
+        private long window(final long now) {
+            return Math.floorDiv(now, windowNanos) & WINDOW_MASK;
+        }
+
+        private int base(final long hash) {
+            return ((int) hash & setMask) * WAYS;
+        }
+
+        private static long pack(final long fingerprint, final long window, final long current, final long previous) {
+            return (fingerprint << FINGERPRINT_SHIFT) | (window << WINDOW_SHIFT) | (current << CURRENT_SHIFT) | previous;
+        }
+
+        private static long slotFingerprint(final long slot) {
+            return slot >>> FINGERPRINT_SHIFT;
+        }
+
+        private static long fingerprint(final long hash) {
+            // Taken from the high bits so independent of the set index, never 0 so a used slot is never 0.
+            long fingerprint = hash >>> FINGERPRINT_SHIFT;
+
+            return fingerprint == 0 ? 1 : fingerprint;
+        }
+
+        private static long hash(final String key) {
+            // 64 bit FNV-1a over the characters followed by the MurmurHash3 finalizer.
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < key.length(); i++) {
+                hash ^= key.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb9fe1a85ec53L;
+            hash ^= hash >>> 33;
+
+            return hash;
+        }
+
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * An {@link InvalidationTransport} connecting nodes within a single JVM, messages are delivered synchronously on the
+ * sending thread to every other member of the group, intended for testing.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class LoopbackTransport implements InvalidationTransport {
+
+    private final Set<LoopbackTransport> group;
+    private volatile Receiver receiver;
+
+    /**
+     * Create the first member of a new group.
+     */
+    public LoopbackTransport() {
+        this(new CopyOnWriteArraySet<LoopbackTransport>());
+    }
+
+    private LoopbackTransport(final Set<LoopbackTransport> group) {
+        this.group = group;
+        group.add(this);
+    }
+
+    /**
+     * Create a further member of the same group.
+     *
+     * @return the new member.
+     */
+    public LoopbackTransport join() {
+        return new LoopbackTransport(group);
+    }
+
+    public void setReceiver(final Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    public void send(final byte[] message) {
+        for (LoopbackTransport current : group) {
+            Receiver receiver = current.receiver;
+            if (current != this && receiver != null) {
+                receiver.received(message.clone());
+            }
+        }
+    }
+
+    public int getMaxMessageSize() {
+        return 65507;
+    }
+
+    public void close() {
+        group.remove(this);
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link InvalidationTransport} using UDP multicast, each message is sent as a single datagram.
+ *
+ * Messages are limited to a size that fits an Ethernet frame so are not fragmented, UDP delivery is not guaranteed and
+ * lost messages are not retransmitted. A message that can not be received or that the {@link Receiver} fails to handle is
+ * counted by {@link #getReceiveFailureCount()} and the receiver thread carries on with the next message.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class MulticastTransport implements InvalidationTransport {
+
+    private static final int MAX_MESSAGE_SIZE = 1400;
+
+    private final InetAddress group;
+    private final int port;
+    private final MulticastSocket socket;
+    private final AtomicLong receiveFailures = new AtomicLong();
+
+    private volatile boolean closed;
+
+    /**
+     * @param group - the multicast group address.
+     * @param port - the port to send to and receive on.
+     * @param timeToLive - the multicast time to live, 1 to stay within the local network.
+     * @throws IOException if the group can not be joined.
+     */
+    public MulticastTransport(final InetAddress group, final int port, final int timeToLive) throws IOException {
+        this.group = group;
+        this.port = port;
+        this.socket = new MulticastSocket(port);
+        socket.setTimeToLive(timeToLive);
+        socket.joinGroup(group);
+    }
+
+    public void setReceiver(final Receiver receiver) {
+        Thread thread = new Thread(new Runnable() {
+
+            public void run() {
+                byte[] buffer = new byte[MAX_MESSAGE_SIZE];
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                while (closed == false) {
+                    try {
+                        packet.setLength(buffer.length);
+                        socket.receive(packet);
+                        receiver.received(Arrays.copyOf(buffer, packet.getLength()));
+                    } catch (IOException e) {
+                        // Either closed or a transient failure, a lost message is expected on this transport.
+                        if (closed == false) {
+                            receiveFailures.incrementAndGet();
+                        }
+                    } catch (RuntimeException e) {
+                        // A failure handling one message must not stop the thread receiving any further invalidations.
+                        receiveFailures.incrementAndGet();
+                    }
+                }
+            }
+        }, "picketlink-invalidation-receiver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void send(final byte[] message) throws IOException {
+        socket.send(new DatagramPacket(message, message.length, group, port));
+    }
+
+    /**
+     * @return the number of messages that could not be received or that the {@link Receiver} failed to handle.
+     */
+    public long getReceiveFailureCount() {
+        return receiveFailures.get();
+    }
+
+    public int getMaxMessageSize() {
+        return MAX_MESSAGE_SIZE;
+    }
+
+    public void close() {
+        closed = true;
+        try {
+            socket.leaveGroup(group);
+        } catch (IOException e) {
+            // The socket is closed regardless.
+        }
+        socket.close();
+    }
+
+}
@@ -22,8 +22,10 @@
 package org.picketlink.integration;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.CallbackHandler;
@@ -40,6 +42,9 @@ import org.picketlink.idm.credential.Password;
 import org.picketlink.idm.credential.UsernamePasswordCredentials;
 import org.picketlink.idm.model.IdentityType;
 import org.picketlink.idm.query.RelationshipQuery;
+import org.picketlink.integration.HandlerMetricsListener.CallbackType;
+import org.picketlink.integration.HandlerMetricsListener.Result;
+import org.picketlink.integration.HandlerMetricsListener.StoreOperation;
 
 /**
  * A CallbackHandler that can delegate to a PicketLink {@link IdentityManager}.
@@ -50,62 +55,446 @@ public class PicketLinkCallbackHandler implements CallbackHandler {
 
     private final IdentityManager identityManager;
 
+    private CredentialCache credentialCache;
+    private AuthorizationCache authorizationCache;
+    private RunAsIndex runAsIndex;
+    private DigestHashCache digestHashCache;
+    private ScramVerifierCache scramVerifierCache;
+    private HandlerMetricsListener metricsListener;
+    private UnknownAgentFilter unknownAgentFilter;
+    private RequestCoalescer requestCoalescer;
+    private LoginThrottle loginThrottle;
+    private VerificationPool verificationPool;
+    private ResumptionTokens resumptionTokens;
+    private AuditLog auditLog;
+
     public PicketLinkCallbackHandler(final IdentityManager identityManager) {
         this.identityManager = identityManager;
     }
 
+    /**
+     * Set an optional {@link CredentialCache} to hold successful password verifications.
+     *
+     * @param credentialCache - the cache to use or null to always verify against the {@link IdentityManager}.
+     */
+    public void setCredentialCache(final CredentialCache credentialCache) {
+        this.credentialCache = credentialCache;
+    }
+
+    /**
+     * Set an optional {@link AuthorizationCache} to hold run as authorization decisions.
+     *
+     * @param authorizationCache - the cache to use or null to always check against the {@link IdentityManager}.
+     */
+    public void setAuthorizationCache(final AuthorizationCache authorizationCache) {
+        this.authorizationCache = authorizationCache;
+    }
+
+    /**
+     * Set an optional {@link RunAsIndex} to answer run as authorization checks from, if set it is used in preference to
+     * both the {@link AuthorizationCache} and the {@link IdentityManager}. Only the index takes group and role grants and
+     * transitive delegation into account, without it only direct grants between agents are checked.
+     *
+     * @param runAsIndex - the index to use or null to check against the {@link IdentityManager}.
+     */
+    public void setRunAsIndex(final RunAsIndex runAsIndex) {
+        this.runAsIndex = runAsIndex;
+    }
+
+    /**
+     * Set an optional {@link DigestHashCache} to serve {@link DigestHashCallback}s from, without this DIGEST-MD5 is not
+     * supported.
+     *
+     * Successfully verified passwords are also used to populate the cache.
+     *
+     * @param digestHashCache - the cache to use or null to disable DIGEST-MD5 support.
+     */
+    public void setDigestHashCache(final DigestHashCache digestHashCache) {
+        this.digestHashCache = digestHashCache;
+    }
+
+    /**
+     * Set an optional {@link ScramVerifierCache} to serve {@link ScramVerifierCallback}s from, without this SCRAM-SHA-256 is
+     * not supported.
+     *
+     * Successfully verified passwords are also used to populate the cache. The outcome of each SCRAM-SHA-256 exchange is
+     * reported with a {@link ScramProofCallback} and is counted and audited as for a password verification.
+     *
+     * @param scramVerifierCache - the cache to use or null to disable SCRAM-SHA-256 support.
+     */
+    public void setScramVerifierCache(final ScramVerifierCache scramVerifierCache) {
+        this.scramVerifierCache = scramVerifierCache;
+    }
+
+    /**
+     * Set an optional {@link HandlerMetricsListener} to be notified of each callback handled and the time taken by each call
+     * to the {@link IdentityManager}.
+     *
+     * @param metricsListener - the listener to notify or null to disable metrics.
+     */
+    public void setMetricsListener(final HandlerMetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+    }
+
+    /**
+     * Set an optional {@link UnknownAgentFilter} used to reject unknown users without accessing the {@link IdentityManager}.
+     *
+     * @param unknownAgentFilter - the filter to use or null to always check against the {@link IdentityManager}.
+     */
+    public void setUnknownAgentFilter(final UnknownAgentFilter unknownAgentFilter) {
+        this.unknownAgentFilter = unknownAgentFilter;
+    }
+
+    /**
+     * Set an optional {@link RequestCoalescer} so that concurrent identical password verifications and agent lookups share a
+     * single call to the {@link IdentityManager}.
+     *
+     * @param requestCoalescer - the coalescer to use or null to call the {@link IdentityManager} for every request.
+     */
+    public void setRequestCoalescer(final RequestCoalescer requestCoalescer) {
+        this.requestCoalescer = requestCoalescer;
+    }
+
+    /**
+     * Set an optional {@link LoginThrottle} to reject password verification and SCRAM-SHA-256 exchanges for usernames and
+     * client sources with too many recent failures.
+     *
+     * @param loginThrottle - the throttle to use or null to verify every attempt.
+     */
+    public void setLoginThrottle(final LoginThrottle loginThrottle) {
+        this.loginThrottle = loginThrottle;
+    }
+
+    /**
+     * Set an optional {@link VerificationPool} to verify passwords on so that the cost of verification is isolated from the
+     * thread calling the handler.
+     *
+     * @param verificationPool - the pool to use or null to verify passwords on the calling thread.
+     */
+    public void setVerificationPool(final VerificationPool verificationPool) {
+        this.verificationPool = verificationPool;
+    }
+
+    /**
+     * Set optional {@link ResumptionTokens} so that a password beginning with {@link ResumptionTokens#TOKEN_PREFIX} is
+     * verified as a resumption token before it is verified against the {@link IdentityManager}, and so that a
+     * {@link ResumptionTokenCallback} can be handled once an exchange has completed to issue a token to the client.
+     *
+     * @param resumptionTokens - the tokens to verify against or null to verify every password against the store.
+     */
+    public void setResumptionTokens(final ResumptionTokens resumptionTokens) {
+        this.resumptionTokens = resumptionTokens;
+    }
+
+    /**
+     * Set an optional {@link AuditLog} to publish each authentication and run as decision to.
+     *
+     * @param auditLog - the log to publish to or null to disable auditing.
+     */
+    public void setAuditLog(final AuditLog auditLog) {
+        this.auditLog = auditLog;
+    }
+
+    /**
+     * Create a {@link CallbackHandler} for a single authentication exchange that passes the client source to the
+     * {@link LoginThrottle} and, for an exchange authenticated with a resumption token, authorizes the identity bound in
+     * the token without checking the store. Once the exchange has completed the handler can also be used to handle a
+     * {@link ResumptionTokenCallback}.
+     *
+     * @param saslProps - the properties used to create the {@link javax.security.sasl.SaslServer}, the client source is
+     *        read from {@link LoginThrottle#CLIENT_SOURCE} and the mechanism to audit from {@link AuditLog#MECHANISM}.
+     * @return a new {@link CallbackHandler}
+     */
+    public CallbackHandler createCallbackHandler(final Map<String, ?> saslProps) {
+        final ExchangeState exchange = new ExchangeState(saslProps);
+
+        return new CallbackHandler() {
+
+            public void handle(Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+                PicketLinkCallbackHandler.this.handle(callbacks, exchange);
+            }
+        };
+    }
+
     public void handle(Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+        handle(callbacks, null);
+    }
 
-        List<Callback> toRespondTo = new ArrayList<Callback>(1);
+    /**
+     * @param exchange - the state of the exchange the callbacks belong to or null if not known.
+     */
+    void handle(final Callback[] callbacks, final ExchangeState exchange) throws IOException,
+            UnsupportedCallbackException {
+        Dispatch dispatch = Dispatch.acquire();
+        try {
+            handle(callbacks, exchange, dispatch);
+        } finally {
+            dispatch.release();
+        }
+    }
 
+    private void handle(final Callback[] callbacks, final ExchangeState exchange, final Dispatch toRespondTo)
+            throws IOException, UnsupportedCallbackException {
+        String source = exchange == null ? null : exchange.source;
+        ResumptionTokens.Resumption resumed = exchange == null ? null : exchange.resumed;
         String username = null;
+        String realm = null;
+        long start;
 
+        // Single pass to classify the callbacks, the type is recorded so the callbacks are not checked again.
         for (Callback current : callbacks) {
             if (current instanceof NameCallback) {
                 username = ((NameCallback) current).getDefaultName();
             } else if (current instanceof VerifyPasswordCallback) {
-                toRespondTo.add(current);
-            } else if (current instanceof DigestHashCallback) {
-                toRespondTo.add(current);
+                toRespondTo.add(current, CallbackType.VERIFY_PASSWORD);
+            } else if (current instanceof DigestHashCallback && digestHashCache != null) {
+                toRespondTo.add(current, CallbackType.DIGEST_HASH);
             } else if (current instanceof AuthorizeCallback) {
-                toRespondTo.add(current);
+                toRespondTo.add(current, CallbackType.AUTHORIZE);
+            } else if ((current instanceof ScramVerifierCallback || current instanceof ScramProofCallback)
+                    && scramVerifierCache != null) {
+                toRespondTo.add(current, CallbackType.SCRAM_VERIFIER);
             } else if (current instanceof RealmCallback) {
-                // TODO - Add support for this as we could choose a realm.
+                // Realm selection is handled by RealmRouter, here the realm is only used to select the digest hash.
+                realm = ((RealmCallback) current).getDefaultText();
+            } else if (current instanceof ResumptionTokenCallback && resumptionTokens != null) {
+                issueToken((ResumptionTokenCallback) current, exchange);
             } else {
+                callbackHandled(typeOf(current), Result.UNSUPPORTED);
                 throw new UnsupportedCallbackException(current, current.getClass().getSimpleName() + " not supported.");
             }
         }
 
-        for (Callback current : toRespondTo) {
-            if (current instanceof VerifyPasswordCallback) {
-                if (username == null) {
-                    throw new IOException("Attempt to verify password with no user specified.");
-                }
+        for (int i = 0; i < toRespondTo.count; i++) {
+            Callback current = toRespondTo.callbacks[i];
+            switch (toRespondTo.types[i]) {
+                case VERIFY_PASSWORD:
+                    start = auditLog == null ? 0 : System.nanoTime();
+                    if (username == null) {
+                        throw new IOException("Attempt to verify password with no user specified.");
+                    }
 
-                VerifyPasswordCallback vpc = (VerifyPasswordCallback) current;
-                Password password = new Password(vpc.getPassword());
-                UsernamePasswordCredentials upc = new UsernamePasswordCredentials(username, password);
+                    if (loginThrottle != null && loginThrottle.isThrottled(username, source)) {
+                        decided(CallbackType.VERIFY_PASSWORD, Result.REJECTED, username, null, realm, exchange, start);
+                        throw new ThrottledException();
+                    }
 
-                identityManager.validateCredentials(upc);
-                // Don't need to go into any more detail, it is either valid or it is not.
-                vpc.setVerified(upc.getStatus() == Status.VALID);
-            } else if (current instanceof AuthorizeCallback) {
-                AuthorizeCallback acb = (AuthorizeCallback) current;
-                acb.setAuthorized(authorizedAs(acb.getAuthenticationID(), acb.getAuthorizationID()));
-            } else {
-                throw new UnsupportedCallbackException(current, current.getClass().getSimpleName() + " not supported.");
+                    VerifyPasswordCallback vpc = (VerifyPasswordCallback) current;
+                    // Read before verifying so a verifier for a password replaced meanwhile is not cached.
+                    long scramGeneration = scramVerifierCache == null ? 0 : scramVerifierCache.generation(username);
+                    long digestGeneration = digestHashCache == null ? 0 : digestHashCache.generation(username);
+                    long tokenGeneration = resumptionTokens == null ? 0 : resumptionTokens.generation(username);
+                    boolean verified = false;
+                    if (resumptionTokens != null && ResumptionTokens.isToken(vpc.getPassword())) {
+                        resumed = resumptionTokens.verify(vpc.getPassword(), username);
+                        if (exchange != null) {
+                            exchange.resumed = resumed;
+                        }
+                        verified = resumed != null;
+                    }
+                    if (verified == false) {
+                        // Not a valid token, it may still be a password that happens to begin with the prefix.
+                        verified = verifyPassword(username, vpc.getPassword());
+                    }
+                    if (verified && exchange != null) {
+                        exchange.authenticationId = username;
+                        exchange.tokenGeneration = tokenGeneration;
+                    }
+                    if (verified && digestHashCache != null && resumed == null) {
+                        digestHashCache.passwordVerified(username, vpc.getPassword(), digestGeneration);
+                    }
+                    if (verified && scramVerifierCache != null && resumed == null) {
+                        scramVerifierCache.passwordVerified(username, vpc.getPassword(), scramGeneration);
+                    }
+                    if (loginThrottle != null) {
+                        if (verified) {
+                            loginThrottle.succeeded(username);
+                        } else {
+                            loginThrottle.failed(username, source);
+                        }
+                    }
+                    vpc.setVerified(verified);
+                    decided(CallbackType.VERIFY_PASSWORD, verified ? Result.VERIFIED : Result.REJECTED, username, null, realm,
+                            exchange, start);
+                    break;
+                case DIGEST_HASH:
+                    start = auditLog == null ? 0 : System.nanoTime();
+                    if (username == null || realm == null) {
+                        throw new IOException("Attempt to obtain digest hash with no user or realm specified.");
+                    }
+
+                    String hexHash = digestHashCache.getHexHash(username, realm);
+                    if (hexHash == null) {
+                        decided(CallbackType.DIGEST_HASH, Result.REJECTED, username, null, realm, exchange, start);
+                        throw new IOException("No digest hash available for user.");
+                    }
+                    ((DigestHashCallback) current).setHexHash(hexHash);
+                    decided(CallbackType.DIGEST_HASH, Result.VERIFIED, username, null, realm, exchange, start);
+                    break;
+                case SCRAM_VERIFIER:
+                    start = auditLog == null ? 0 : System.nanoTime();
+                    if (username == null) {
+                        throw new IOException("Attempt to handle SCRAM callback with no user specified.");
+                    }
+
+                    if (current instanceof ScramProofCallback) {
+                        // The outcome of the exchange, the verifier alone does not authenticate the user.
+                        boolean proven = ((ScramProofCallback) current).isVerified();
+                        if (proven && exchange != null) {
+                            exchange.authenticationId = username;
+                        }
+                        if (loginThrottle != null) {
+                            if (proven) {
+                                loginThrottle.succeeded(username);
+                            } else {
+                                loginThrottle.failed(username, source);
+                            }
+                        }
+                        decided(CallbackType.SCRAM_VERIFIER, proven ? Result.VERIFIED : Result.REJECTED, username, null,
+                                realm, exchange, start);
+                        break;
+                    }
+
+                    if (loginThrottle != null && loginThrottle.isThrottled(username, source)) {
+                        decided(CallbackType.SCRAM_VERIFIER, Result.REJECTED, username, null, realm, exchange, start);
+                        throw new ThrottledException();
+                    }
+                    if (resumptionTokens != null && exchange != null) {
+                        // The proof is verified against this verifier so no token is issued if it is replaced meanwhile.
+                        exchange.tokenGeneration = resumptionTokens.generation(username);
+                    }
+                    // Without a verifier the mechanism fails the exchange without revealing if the user exists.
+                    ((ScramVerifierCallback) current).setVerifier(scramVerifierCache.getVerifier(username));
+                    break;
+                case AUTHORIZE:
+                    start = auditLog == null ? 0 : System.nanoTime();
+                    AuthorizeCallback acb = (AuthorizeCallback) current;
+                    boolean authorized;
+                    if (resumed != null && resumed.authorizes(acb.getAuthenticationID(), acb.getAuthorizationID())) {
+                        authorized = true;
+                    } else {
+                        authorized = authorizedAs(acb.getAuthenticationID(), acb.getAuthorizationID());
+                    }
+                    acb.setAuthorized(authorized);
+                    if (authorized && exchange != null && acb.getAuthenticationID().equals(exchange.authenticationId)) {
+                        exchange.authorizationId = acb.getAuthorizedID();
+                    }
+                    decided(CallbackType.AUTHORIZE, authorized ? Result.VERIFIED : Result.REJECTED, acb.getAuthenticationID(),
+                            acb.getAuthorizationID(), realm, exchange, start);
+                    break;
+                default:
+                    callbackHandled(typeOf(current), Result.UNSUPPORTED);
+                    throw new UnsupportedCallbackException(current, current.getClass().getSimpleName() + " not supported.");
+            }
+        }
+    }
+
+    private void issueToken(final ResumptionTokenCallback callback, final ExchangeState exchange) throws IOException {
+        if (exchange == null || exchange.authorizationId == null) {
+            throw new IOException("No completed authentication to issue a resumption token for.");
+        }
+
+        String token = resumptionTokens.issue(exchange.authenticationId, exchange.authorizationId, exchange.tokenGeneration);
+        if (token == null) {
+            throw new IOException("Credential updated or resumption tokens revoked since the authentication.");
+        }
+        callback.setToken(token);
+    }
+
+    private boolean verifyPassword(final String username, final String password) throws IOException {
+        if (unknownAgentFilter != null && unknownAgentFilter.mightExist(username) == false) {
+            return false;
+        }
+
+        if (credentialCache != null && credentialCache.isVerified(username, password)) {
+            return true;
+        }
+        // Read before verifying so a verification of a password replaced meanwhile is not cached.
+        long generation = credentialCache == null ? 0 : credentialCache.generation(username);
+
+        boolean verified;
+        if (requestCoalescer == null) {
+            verified = validate(username, password);
+        } else {
+            PasswordValidation validation = new PasswordValidation(username, password);
+            verified = requestCoalescer.verify(username, password, validation);
+            if (validation.executed == false) {
+                storeOperationCoalesced(StoreOperation.VALIDATE_CREDENTIALS);
+            }
+        }
+        if (verified && credentialCache != null) {
+            credentialCache.verified(username, password, generation);
+        }
+
+        return verified;
+    }
+
+    private boolean validate(final String username, final String password) throws IOException {
+        if (verificationPool == null) {
+            return validateCredentials(username, password);
+        }
+
+        return verificationPool.verify(new Callable<Boolean>() {
+
+            public Boolean call() {
+                return Boolean.valueOf(validateCredentials(username, password));
             }
+        });
+    }
+
+    private boolean validateCredentials(final String username, final String password) {
+        // The IDM API requires the password as a char[], this copy is cleared as soon as validation is complete.
+        char[] passwordChars = password.toCharArray();
+        try {
+            UsernamePasswordCredentials upc = new UsernamePasswordCredentials(username, new Password(passwordChars));
+
+            long start = metricsListener == null ? 0 : System.nanoTime();
+            identityManager.validateCredentials(upc);
+            storeOperation(StoreOperation.VALIDATE_CREDENTIALS, start);
+            // Don't need to go into any more detail, it is either valid or it is not.
+            return upc.getStatus() == Status.VALID;
+        } finally {
+            Arrays.fill(passwordChars, (char) 0x00);
         }
     }
 
-    private boolean authorizedAs(final String authenticationId, final String requestedAuthorization) {
+    private boolean authorizedAs(final String authenticationId, final String requestedAuthorization)
+            throws IOException {
         if (authenticationId.equals(requestedAuthorization)) {
             // Assuming all users are allowed to run as themselves.
             return true;
         }
 
-        IdentityType authenticatedIdentity = identityManager.getAgent(authenticationId);
-        IdentityType authorizationIdentity = identityManager.getAgent(requestedAuthorization);
+        if (runAsIndex != null) {
+            return runAsIndex.isAuthorized(authenticationId, requestedAuthorization);
+        }
+
+        if (authorizationCache == null) {
+            return queryAuthorizedAs(authenticationId, requestedAuthorization);
+        }
+
+        Boolean cached = authorizationCache.get(authenticationId, requestedAuthorization);
+        if (cached != null) {
+            return cached.booleanValue();
+        }
+
+        long generation = authorizationCache.generation(authenticationId);
+        boolean authorized = queryAuthorizedAs(authenticationId, requestedAuthorization);
+        authorizationCache.put(authenticationId, requestedAuthorization, authorized, generation);
+
+        return authorized;
+    }
+
+    private boolean queryAuthorizedAs(final String authenticationId, final String requestedAuthorization)
+            throws IOException {
+        if (unknownAgentFilter != null
+                && (unknownAgentFilter.mightExist(authenticationId) == false || unknownAgentFilter
+                        .mightExist(requestedAuthorization) == false)) {
+            return false;
+        }
+
+        IdentityType authenticatedIdentity = getAgent(authenticationId);
+        IdentityType authorizationIdentity = getAgent(requestedAuthorization);
 
         if (authenticatedIdentity == null || authorizationIdentity == null) {
             /*
@@ -120,7 +509,9 @@ public class PicketLinkCallbackHandler implements CallbackHandler {
         query.setParameter(RunAsRelationship.AUTHENTICATED_IDENTITY, authenticatedIdentity);
         query.setParameter(RunAsRelationship.AUTHORIZED_AS, authorizationIdentity);
 
+        long start = metricsListener == null ? 0 : System.nanoTime();
         List<RunAsRelationship> result = query.getResultList();
+        storeOperation(StoreOperation.RUN_AS_QUERY, start);
 
         if (result.size() == 0) {
             return false;
@@ -131,4 +522,222 @@ public class PicketLinkCallbackHandler implements CallbackHandler {
         throw new IllegalStateException("An unexpected number of relationship mappings were returned.");
     }
 
+    private IdentityType getAgent(final String loginName) throws IOException {
+        if (requestCoalescer == null) {
+            return loadAgent(loginName);
+        }
+
+        AgentLookup lookup = new AgentLookup(loginName);
+        IdentityType agent = requestCoalescer.getAgent(loginName, lookup);
+        if (lookup.executed == false) {
+            storeOperationCoalesced(StoreOperation.GET_AGENT);
+        }
+
+        return agent;
+    }
+
+    private IdentityType loadAgent(final String loginName) {
+        long start = metricsListener == null ? 0 : System.nanoTime();
+        IdentityType agent = identityManager.getAgent(loginName);
+        storeOperation(StoreOperation.GET_AGENT, start);
+        if (agent == null && unknownAgentFilter != null) {
+            unknownAgentFilter.agentNotFound(loginName);
+        }
+
+        return agent;
+    }
+
+    private void callbackHandled(final CallbackType type, final Result result) {
+        if (metricsListener != null) {
+            metricsListener.callbackHandled(type, result);
+        }
+    }
+
+    /**
+     * Notification of an authentication or run as decision for both metrics and auditing.
+     */
+    private void decided(final CallbackType type, final Result result, final String user, final String authorizationId,
+            final String realm, final ExchangeState exchange, final long start) {
+        callbackHandled(type, result);
+        if (auditLog != null) {
+            if (exchange == null) {
+                auditLog.publish(type, result, user, authorizationId, realm, null, null, System.nanoTime() - start);
+            } else {
+                auditLog.publish(type, result, user, authorizationId, realm == null ? exchange.realm : realm,
+                        exchange.mechanism, exchange.source, System.nanoTime() - start);
+            }
+        }
+    }
+
+    private void storeOperation(final StoreOperation operation, final long start) {
+        if (metricsListener != null) {
+            metricsListener.storeOperation(operation, System.nanoTime() - start);
+        }
+    }
+
+    private void storeOperationCoalesced(final StoreOperation operation) {
+        if (metricsListener != null) {
+            metricsListener.storeOperationCoalesced(operation);
+        }
+    }
+
+    private static CallbackType typeOf(final Callback callback) {
+        if (callback instanceof VerifyPasswordCallback) {
+            return CallbackType.VERIFY_PASSWORD;
+        } else if (callback instanceof DigestHashCallback) {
+            return CallbackType.DIGEST_HASH;
+        } else if (callback instanceof AuthorizeCallback) {
+            return CallbackType.AUTHORIZE;
+        } else if (callback instanceof ScramVerifierCallback || callback instanceof ScramProofCallback) {
+            return CallbackType.SCRAM_VERIFIER;
+        }
+
+        return CallbackType.OTHER;
+    }
+
+    /**
+     * Thrown when an attempt is rejected by the {@link LoginThrottle}, no stack trace is filled in as the rejection needs to be
+     * cheaper than the verification it avoids.
+     */
+    private static final class ThrottledException extends IOException {
+
+        private static final long serialVersionUID = -2853126318536946043L;
+
+        private ThrottledException() {
+            super("Too many failed authentication attempts.");
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+
+    }
+
+    /**
+     * A password validation to be coalesced, executed is only set if this instance was the one called.
+     */
+    private final class PasswordValidation implements Callable<Boolean> {
+
+        private final String username;
+        private final String password;
+        private boolean executed;
+
+        private PasswordValidation(final String username, final String password) {
+            this.username = username;
+            this.password = password;
+        }
+
+        public Boolean call() throws IOException {
+            executed = true;
+
+            return Boolean.valueOf(validate(username, password));
+        }
+
+    }
+
+    /**
+     * An agent lookup to be coalesced, executed is only set if this instance was the one called.
+     */
+    private final class AgentLookup implements Callable<IdentityType> {
+
+        private final String loginName;
+        private boolean executed;
+
+        private AgentLookup(final String loginName) {
+            this.loginName = loginName;
+        }
+
+        public IdentityType call() {
+            executed = true;
+
+            return loadAgent(loginName);
+        }
+
+    }
+
+    /**
+     * State held for a single authentication exchange across the separate calls made to the handler.
+     */
+    static final class ExchangeState {
+
+        private final String source;
+        private final String mechanism;
+        private String realm;
+        private ResumptionTokens.Resumption resumed;
+        // Set once the identity is verified and then authorized, the identities a resumption token can be issued for.
+        private String authenticationId;
+        private String authorizationId;
+        // The ResumptionTokens generation read before the credential was verified.
+        private long tokenGeneration;
+
+        ExchangeState(final Map<String, ?> saslProps) {
+            source = property(saslProps, LoginThrottle.CLIENT_SOURCE);
+            mechanism = property(saslProps, AuditLog.MECHANISM);
+        }
+
+        /**
+         * @param realm - the realm selected for the exchange, for auditing where the callbacks do not name the realm.
+         */
+        void setRealm(final String realm) {
+            this.realm = realm;
+        }
+
+        private static String property(final Map<String, ?> saslProps, final String name) {
+            Object value = saslProps == null ? null : saslProps.get(name);
+
+            return value == null ? null : value.toString();
+        }
+
+    }
+
+    /**
+     * Per thread scratch space holding the callbacks to respond to so that nothing is allocated for each call to
+     * {@link PicketLinkCallbackHandler#handle(Callback[])}.
+     */
+    private static final class Dispatch {
+
+        private static final ThreadLocal<Dispatch> CURRENT = new ThreadLocal<Dispatch>() {
+
+            @Override
+            protected Dispatch initialValue() {
+                return new Dispatch();
+            }
+
+        };
+
+        private Callback[] callbacks = new Callback[4];
+        private CallbackType[] types = new CallbackType[4];
+        private int count;
+        private boolean inUse;
+
+        private static Dispatch acquire() {
+            Dispatch dispatch = CURRENT.get();
+            if (dispatch.inUse) {
+                // Only expected if handle is re-entered on the same thread.
+                dispatch = new Dispatch();
+            }
+            dispatch.inUse = true;
+
+            return dispatch;
+        }
+
+        private void add(final Callback callback, final CallbackType type) {
+            if (count == callbacks.length) {
+                callbacks = Arrays.copyOf(callbacks, count * 2);
+                types = Arrays.copyOf(types, count * 2);
+            }
+            callbacks[count] = callback;
+            types[count++] = type;
+        }
+
+        private void release() {
+            // Don't hold on to the callbacks once they have been handled.
+            Arrays.fill(callbacks, 0, count, null);
+            count = 0;
+            inUse = false;
+        }
+
+    }
+
 }
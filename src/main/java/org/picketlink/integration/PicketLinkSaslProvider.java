@@ -0,0 +1,42 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.security.Provider;
+
+/**
+ * A {@link Provider} for the SASL mechanisms implemented by this integration that are not available from the JDK or
+ * JBoss SASL, currently SCRAM-SHA-256.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class PicketLinkSaslProvider extends Provider {
+
+    private static final long serialVersionUID = 5547187413834478152L;
+
+    public PicketLinkSaslProvider() {
+        super("PicketLinkSasl", 1.0, "PicketLink Integration SASL Provider");
+        put("SaslServerFactory." + ScramSha256SaslServer.MECHANISM, ScramSaslFactory.class.getName());
+        put("SaslClientFactory." + ScramSha256SaslServer.MECHANISM, ScramSaslFactory.class.getName());
+    }
+
+}
@@ -0,0 +1,43 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import org.picketlink.idm.IdentityManager;
+
+/**
+ * Factory for the {@link IdentityManager} of a named realm, normally backed by a single shared
+ * <code>org.picketlink.idm.internal.IdentityManagerFactory</code>.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public interface RealmIdentityManagerFactory {
+
+    /**
+     * Create the {@link IdentityManager} for the specified realm.
+     *
+     * @param realm - the name of the realm.
+     * @return the {@link IdentityManager} for the realm.
+     * @throws IllegalArgumentException if the realm does not exist.
+     */
+    IdentityManager createIdentityManager(final String realm);
+
+}
@@ -0,0 +1,307 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.sasl.RealmCallback;
+
+import org.picketlink.idm.IdentityManager;
+
+/**
+ * Routes callbacks to a {@link PicketLinkCallbackHandler} for the realm selected using the {@link RealmCallback}.
+ *
+ * The {@link IdentityManager} and {@link PicketLinkCallbackHandler} for each realm are created on first use from a shared
+ * {@link RealmIdentityManagerFactory} and held in a bounded pool, once the pool is full the least recently used realm is
+ * evicted. If the names of the realms are configured a realm not included is rejected without calling the factory. Each
+ * realm is created outside of any lock shared with other realms, concurrent requests for the same realm wait for a single
+ * creation.
+ *
+ * Realms not used within the idle timeout are evicted by {@link #evictIdle()}, this is called as realms are created but
+ * otherwise should be scheduled using {@link #schedule(ScheduledExecutorService, long, TimeUnit)} or called periodically
+ * by the caller. {@link #realmEvicted(String, PicketLinkCallbackHandler)} can be overridden to release the resources of
+ * an evicted realm, e.g. to remove any {@link IdentityChangeListener}s registered when it was created.
+ *
+ * A single router is shared, {@link #createCallbackHandler()} should be called to obtain the {@link CallbackHandler} for each
+ * {@link javax.security.sasl.SaslServer} as the realm selected is remembered for the remaining callbacks of the exchange,
+ * e.g. the final {@link javax.security.sasl.AuthorizeCallback} which is not accompanied by a {@link RealmCallback}.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class RealmRouter {
+
+    private final RealmIdentityManagerFactory factory;
+    private final String defaultRealm;
+    private final int maxRealms;
+    private final long idleTimeout;
+    private final Set<String> realmNames;
+    private final ConcurrentMap<String, RealmEntry> realms = new ConcurrentHashMap<String, RealmEntry>();
+    private final ConcurrentMap<String, FutureTask<RealmEntry>> creating =
+            new ConcurrentHashMap<String, FutureTask<RealmEntry>>();
+
+    public RealmRouter(final RealmIdentityManagerFactory factory, final String defaultRealm, final int maxRealms,
+            final long idleTimeout, final TimeUnit unit) {
+        this(factory, defaultRealm, maxRealms, idleTimeout, unit, null);
+    }
+
+    /**
+     * @param factory - the factory to create the {@link IdentityManager} for each realm.
+     * @param defaultRealm - the realm to use if no realm is selected.
+     * @param maxRealms - the maximum number of realms to pool.
+     * @param idleTimeout - how long a realm can remain unused before it can be evicted.
+     * @param unit - the unit of the idle timeout.
+     * @param realmNames - the names of the realms that can be selected or null to call the factory for any realm selected.
+     */
+    public RealmRouter(final RealmIdentityManagerFactory factory, final String defaultRealm, final int maxRealms,
+            final long idleTimeout, final TimeUnit unit, final Set<String> realmNames) {
+        if (maxRealms < 1) {
+            throw new IllegalArgumentException("maxRealms must be greater than 0");
+        }
+
+        this.factory = factory;
+        this.defaultRealm = defaultRealm;
+        this.maxRealms = maxRealms;
+        this.idleTimeout = unit.toNanos(idleTimeout);
+        this.realmNames = realmNames == null ? null : Collections.unmodifiableSet(new HashSet<String>(realmNames));
+    }
+    /**
+     * Create a {@link CallbackHandler} for a single authentication exchange.
+     *
+     * @return a new {@link CallbackHandler}
+     */
+    public CallbackHandler createCallbackHandler() {
+        return createCallbackHandler(null);
+    }
+
+    /**
+     * Create a {@link CallbackHandler} for a single authentication exchange that passes the client source to the
+     * {@link LoginThrottle} of the realm.
+     *
+     * @param saslProps - the properties used to create the {@link javax.security.sasl.SaslServer}, the client source is
+     *        read from {@link LoginThrottle#CLIENT_SOURCE} and the mechanism to audit from {@link AuditLog#MECHANISM}.
+     * @return a new {@link CallbackHandler}
+     */
+    public CallbackHandler createCallbackHandler(final Map<String, ?> saslProps) {
+        final PicketLinkCallbackHandler.ExchangeState exchange = new PicketLinkCallbackHandler.ExchangeState(saslProps);
+
+        return new CallbackHandler() {
+
+            private String realm;
+
+            public void handle(Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+                for (Callback current : callbacks) {
+                    if (current instanceof RealmCallback) {
+                        String selected = ((RealmCallback) current).getDefaultText();
+                        realm = selected == null || selected.length() == 0 ? defaultRealm : selected;
+                    }
+                }
+
+                exchange.setRealm(realm == null ? defaultRealm : realm);
+                getCallbackHandler(realm == null ? defaultRealm : realm).handle(callbacks, exchange);
+            }
+        };
+    }
+
+    /**
+     * Get the {@link PicketLinkCallbackHandler} for the specified realm, creating it if not already pooled.
+     *
+     * @param realm - the name of the realm.
+     * @return the {@link PicketLinkCallbackHandler} for the realm.
+     * @throws IOException if the {@link IdentityManager} for the realm can not be created.
+     */
+    public PicketLinkCallbackHandler getCallbackHandler(final String realm) throws IOException {
+        RealmEntry entry = realms.get(realm);
+        if (entry == null) {
+            entry = createEntry(realm);
+        }
+        entry.lastAccess = System.nanoTime();
+
+        return entry.callbackHandler;
+    }
+
+    /**
+     * Evict any realms that have not been used within the idle timeout.
+     *
+     * @return the number of realms evicted.
+     */
+    public int evictIdle() {
+        long now = System.nanoTime();
+        int evicted = 0;
+        Iterator<Map.Entry<String, RealmEntry>> it = realms.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, RealmEntry> current = it.next();
+            if (now - current.getValue().lastAccess > idleTimeout && realms.remove(current.getKey(), current.getValue())) {
+                realmEvicted(current.getKey(), current.getValue().callbackHandler);
+                evicted++;
+            }
+        }
+
+        return evicted;
+    }
+
+    /**
+     * Schedule idle realms to be evicted periodically.
+     *
+     * @param executor - the executor to run the eviction on.
+     * @param period - the period between evictions.
+     * @param unit - the unit of the period.
+     * @return the {@link ScheduledFuture} which can be used to cancel the eviction.
+     */
+    public ScheduledFuture<?> schedule(final ScheduledExecutorService executor, final long period, final TimeUnit unit) {
+        return executor.scheduleAtFixedRate(new Runnable() {
+
+            public void run() {
+                evictIdle();
+            }
+        }, period, period, unit);
+    }
+
+    public int size() {
+        return realms.size();
+    }
+
+    /**
+     * Create the {@link PicketLinkCallbackHandler} for a realm, can be overridden to configure the caches and filters of the
+     * handler.
+     *
+     * @param realm - the name of the realm.
+     * @param identityManager - the {@link IdentityManager} for the realm.
+     * @return the new {@link PicketLinkCallbackHandler}
+     */
+    protected PicketLinkCallbackHandler createCallbackHandler(final String realm, final IdentityManager identityManager) {
+        return new PicketLinkCallbackHandler(identityManager);
+    }
+
+    /**
+     * Notification that a realm has been evicted, can be overridden to release anything associated with the handler when it
+     * was created by {@link #createCallbackHandler(String, IdentityManager)}.
+     *
+     * @param realm - the name of the realm.
+     * @param callbackHandler - the {@link PicketLinkCallbackHandler} of the evicted realm.
+     */
+    protected void realmEvicted(final String realm, final PicketLinkCallbackHandler callbackHandler) {
+    }
+
+    private RealmEntry createEntry(final String realm) throws IOException {
+        if (realmNames != null && realmNames.contains(realm) == false) {
+            throw new IOException("Unknown realm " + realm);
+        }
+
+        FutureTask<RealmEntry> task = new FutureTask<RealmEntry>(new Callable<RealmEntry>() {
+
+            public RealmEntry call() {
+                return addEntry(realm);
+            }
+        });
+        FutureTask<RealmEntry> existing = creating.putIfAbsent(realm, task);
+        if (existing == null) {
+            try {
+                task.run();
+            } finally {
+                creating.remove(realm, task);
+            }
+            existing = task;
+        }
+
+        try {
+            return existing.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to obtain IdentityManager for realm " + realm, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for realm " + realm);
+        }
+    }
+
+    private RealmEntry addEntry(final String realm) {
+        // A caller can miss the entry in realms and then the creation in creating, as the entry is added to realms before the
+        // creation is removed it is found here.
+        RealmEntry entry = realms.get(realm);
+        if (entry != null) {
+            return entry;
+        }
+
+        entry = new RealmEntry(createCallbackHandler(realm, factory.createIdentityManager(realm)));
+
+        evictIdle();
+        List<Map.Entry<String, RealmEntry>> evicted = new ArrayList<Map.Entry<String, RealmEntry>>();
+        synchronized (realms) {
+            while (realms.size() >= maxRealms) {
+                Map.Entry<String, RealmEntry> oldest = evictLeastRecentlyUsed();
+                if (oldest != null) {
+                    evicted.add(oldest);
+                }
+            }
+            realms.put(realm, entry);
+        }
+        for (Map.Entry<String, RealmEntry> current : evicted) {
+            realmEvicted(current.getKey(), current.getValue().callbackHandler);
+        }
+
+        return entry;
+    }
+
+    /**
+     * @return the entry evicted or null if it was removed concurrently by {@link #evictIdle()}.
+     */
+    private Map.Entry<String, RealmEntry> evictLeastRecentlyUsed() {
+        Map.Entry<String, RealmEntry> oldest = null;
+        for (Map.Entry<String, RealmEntry> current : realms.entrySet()) {
+            if (oldest == null || current.getValue().lastAccess - oldest.getValue().lastAccess < 0) {
+                oldest = current;
+            }
+        }
+
+        return oldest != null && realms.remove(oldest.getKey(), oldest.getValue()) ? oldest : null;
+    }
+
+    private static final class RealmEntry {
+
+        private final PicketLinkCallbackHandler callbackHandler;
+        private volatile long lastAccess = System.nanoTime();
+
+        private RealmEntry(final PicketLinkCallbackHandler callbackHandler) {
+            this.callbackHandler = callbackHandler;
+        }
+
+    }
+
+}
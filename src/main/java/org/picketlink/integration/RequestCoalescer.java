@@ -0,0 +1,198 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.picketlink.idm.model.IdentityType;
+
+/**
+ * Coalesces concurrent identical calls to the {@link org.picketlink.idm.IdentityManager} so that only one call is in flight
+ * at a time for each key and all callers waiting on that key share its result.
+ *
+ * Agent lookups are keyed by login name, password verifications are keyed by an HMAC of the username and password using a
+ * key generated for this instance so the password itself is never held as a key. Nothing is cached, once a call completes
+ * the next request for the same key results in a new call.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class RequestCoalescer {
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final SecretKeySpec key;
+    private final ConcurrentMap<String, FutureTask<IdentityType>> agentLookups =
+            new ConcurrentHashMap<String, FutureTask<IdentityType>>();
+    private final ConcurrentMap<Verification, FutureTask<Boolean>> verifications =
+            new ConcurrentHashMap<Verification, FutureTask<Boolean>>();
+
+    private final ThreadLocal<Mac> mac = new ThreadLocal<Mac>() {
+
+        @Override
+        protected Mac initialValue() {
+            try {
+                Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+                mac.init(key);
+
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Unable to initialise " + HMAC_ALGORITHM, e);
+            }
+        }
+
+    };
+
+    public RequestCoalescer() {
+        byte[] keyBytes = new byte[32];
+        new SecureRandom().nextBytes(keyBytes);
+        this.key = new SecretKeySpec(keyBytes, HMAC_ALGORITHM);
+    }
+
+    /**
+     * Look up an agent, sharing the result of any identical lookup already in flight.
+     *
+     * @param loginName - the login name of the agent.
+     * @param lookup - the lookup to call if no identical lookup is in flight.
+     * @return the result of the lookup.
+     * @throws IOException if thrown by the lookup.
+     */
+    public IdentityType getAgent(final String loginName, final Callable<IdentityType> lookup) throws IOException {
+        return execute(agentLookups, loginName, lookup);
+    }
+
+    /**
+     * Verify a password, sharing the result of any identical verification already in flight.
+     *
+     * @param username - the name of the user being authenticated.
+     * @param password - the password supplied by the user.
+     * @param verification - the verification to call if no identical verification is in flight.
+     * @return the result of the verification.
+     * @throws IOException if thrown by the verification.
+     */
+    public boolean verify(final String username, final String password, final Callable<Boolean> verification)
+            throws IOException {
+        return execute(verifications, new Verification(digest(username, password)), verification).booleanValue();
+    }
+
+    /**
+     * @return the number of calls currently in flight.
+     */
+    public int getInFlightCount() {
+        return agentLookups.size() + verifications.size();
+    }
+
+    private static <K, V> V execute(final ConcurrentMap<K, FutureTask<V>> inFlight, final K key, final Callable<V> call)
+            throws IOException {
+        FutureTask<V> task = inFlight.get(key);
+        if (task == null) {
+            FutureTask<V> newTask = new FutureTask<V>(call);
+            task = inFlight.putIfAbsent(key, newTask);
+            if (task == null) {
+                task = newTask;
+                try {
+                    newTask.run();
+                } finally {
+                    inFlight.remove(key, newTask);
+                }
+            }
+        }
+
+        return get(task);
+    }
+
+    private static <V> V get(final FutureTask<V> task) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    // The result is shared with other callers so continue to wait for it.
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalStateException(cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private byte[] digest(final String username, final String password) {
+        Mac mac = this.mac.get();
+        mac.update(username.getBytes(UTF_8));
+        mac.update((byte) 0x00);
+
+        byte[] passwordBytes = password.getBytes(UTF_8);
+        try {
+            return mac.doFinal(passwordBytes);
+        } finally {
+            Arrays.fill(passwordBytes, (byte) 0x00);
+        }
+    }
+
+    private static final class Verification {
+
+        private final byte[] digest;
+        private final int hashCode;
+
+        private Verification(final byte[] digest) {
+            this.digest = digest;
+            this.hashCode = Arrays.hashCode(digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            return obj instanceof Verification && Arrays.equals(digest, ((Verification) obj).digest);
+        }
+
+    }
+
+}
@@ -0,0 +1,419 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.picketlink.idm.model.IdentityType;
+
+/**
+ * Issues and verifies signed resumption tokens so that a client reconnecting after a successful authentication can
+ * present the token in place of its password and skip both credential validation and run as resolution.
+ *
+ * A token binds the authentication ID, authorization ID, realm and expiry and is signed with an HMAC using a key held by
+ * this instance, tokens are only accepted by the instance that issued them. The key can be rotated with
+ * {@link #rotateKey()}, tokens signed with the previous key remain valid until they expire so the rotation period should
+ * not be shorter than the time to live.
+ *
+ * Registered as an {@link IdentityChangeListener} outstanding tokens are revoked when they could grant more than the store
+ * now allows, updating a credential revokes the tokens of that user and removing a {@link RunAsRelationship} increments
+ * the revocation epoch revoking all tokens as the relationship may have been inherited through a group or delegation.
+ * As a revocation only applies to tokens already issued the {@link #generation(String)} of the user is read before the
+ * credential is verified and no token is issued if the tokens of the user have been revoked since.
+ *
+ * Once an exchange using a handler obtained from {@link PicketLinkCallbackHandler#createCallbackHandler(Map)} has completed
+ * a token is issued by handling a {@link ResumptionTokenCallback} with the same handler, the application returns it to the
+ * client. Tokens are presented as the password of a PLAIN authentication to a {@link PicketLinkCallbackHandler} with these
+ * tokens set, a password that is not a valid token is verified against the store as any other password. Run as resolution
+ * is only skipped for handlers obtained from {@link PicketLinkCallbackHandler#createCallbackHandler(Map)} as the
+ * authorization is checked by a later callback.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class ResumptionTokens implements IdentityChangeListener {
+
+    /**
+     * The prefix identifying a password as a resumption token.
+     */
+    public static final String TOKEN_PREFIX = "$resume$";
+
+    private static final byte VERSION = 1;
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final int KEY_LENGTH = 32;
+    private static final int MAC_LENGTH = 32;
+
+    private final String realm;
+    private final long timeToLive;
+    private final SecureRandom random = new SecureRandom();
+    private final AtomicLong epoch = new AtomicLong();
+    // Guarded by revocations, as is the revocation epoch, so a token is never issued concurrently with a revocation.
+    private final Map<String, Long> revocations = new LinkedHashMap<String, Long>();
+    private final InvalidationGenerations generations = new InvalidationGenerations();
+
+    private volatile SigningKey currentKey;
+    private volatile SigningKey previousKey;
+
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param realm - the name of the realm tokens are issued for.
+     * @param timeToLive - how long an issued token remains valid.
+     * @param unit - the unit of the time to live.
+     */
+    public ResumptionTokens(final String realm, final long timeToLive, final TimeUnit unit) {
+        if (timeToLive < 1) {
+            throw new IllegalArgumentException("timeToLive must be greater than 0");
+        }
+
+        this.realm = realm;
+        this.timeToLive = unit.toMillis(timeToLive);
+        this.currentKey = new SigningKey(0, random);
+    }
+
+    /**
+     * @param loginName - the login name of the user.
+     * @return the generation to pass to {@link #issue(String, String, long)}, to be read before the credential of the user
+     *         is verified.
+     */
+    public long generation(final String loginName) {
+        return generations.get(loginName);
+    }
+
+    /**
+     * Issue a token for an identity that has just completed a full authentication.
+     *
+     * @param authenticationId - the ID of the authenticated identity.
+     * @param authorizationId - the authorization ID the identity was authorized as.
+     * @return the token to be presented as the password on reconnection.
+     */
+    public String issue(final String authenticationId, final String authorizationId) {
+        return issue(authenticationId, authorizationId, generation(authenticationId));
+    }
+
+    /**
+     * Issue a token for an identity authenticated earlier in the exchange.
+     *
+     * @param authenticationId - the ID of the authenticated identity.
+     * @param authorizationId - the authorization ID the identity was authorized as.
+     * @param generation - the {@link #generation(String)} read before the credential of the identity was verified.
+     * @return the token to be presented as the password on reconnection or null if the tokens of the identity have been
+     *         revoked since the generation was read.
+     */
+    public String issue(final String authenticationId, final String authorizationId, final long generation) {
+        SigningKey key = currentKey;
+        long tokenEpoch;
+        long now;
+        synchronized (revocations) {
+            if (generations.get(authenticationId) != generation) {
+                return null;
+            }
+            tokenEpoch = epoch.get();
+            now = System.currentTimeMillis();
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + MAC_LENGTH);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(VERSION);
+            out.writeInt(key.id);
+            out.writeLong(tokenEpoch);
+            out.writeLong(now);
+            out.writeLong(now + timeToLive);
+            StateSnapshot.writeString(out, realm);
+            StateSnapshot.writeString(out, authenticationId);
+            StateSnapshot.writeString(out, authorizationId);
+            out.write(key.sign(bytes.toByteArray()));
+        } catch (IOException e) {
+            // Not possible writing to a byte array.
+            throw new IllegalStateException(e);
+        }
+        issued.incrementAndGet();
+
+        return TOKEN_PREFIX + Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+    }
+
+    /**
+     * Verify a token presented by the named user.
+     *
+     * @param token - the token including the {@link #TOKEN_PREFIX}.
+     * @param authenticationId - the ID of the identity presenting the token.
+     * @return the verified {@link Resumption} or null if the token is not valid for the identity.
+     */
+    public Resumption verify(final String token, final String authenticationId) {
+        Resumption resumption = parse(token);
+        if (resumption == null || resumption.authenticationId.equals(authenticationId) == false) {
+            rejected.incrementAndGet();
+            return null;
+        }
+
+        resumed.incrementAndGet();
+        return resumption;
+    }
+
+    /**
+     * Generate a new signing key, tokens signed by the previous key remain valid until they expire.
+     */
+    public synchronized void rotateKey() {
+        previousKey = currentKey;
+        currentKey = new SigningKey(previousKey.id + 1, random);
+    }
+
+    /**
+     * Schedule the signing key to be rotated periodically.
+     *
+     * @param executor - the executor to run the rotation on.
+     * @param period - the period between rotations, this should not be shorter than the time to live.
+     * @param unit - the unit of the period.
+     * @return the {@link ScheduledFuture} which can be used to cancel the rotation.
+     */
+    public ScheduledFuture<?> schedule(final ScheduledExecutorService executor, final long period, final TimeUnit unit) {
+        return executor.scheduleAtFixedRate(new Runnable() {
+
+            public void run() {
+                rotateKey();
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Revoke all tokens issued to the named user so far.
+     *
+     * @param loginName - the login name of the user.
+     */
+    public void revoke(final String loginName) {
+        synchronized (revocations) {
+            long now = System.currentTimeMillis();
+            generations.invalidated(loginName);
+            // Re-insert so the map stays ordered by revocation time.
+            revocations.remove(loginName);
+            revocations.put(loginName, Long.valueOf(now));
+
+            // Revocations older than the time to live can no longer match an unexpired token.
+            Iterator<Long> it = revocations.values().iterator();
+            while (it.hasNext() && now - it.next().longValue() > timeToLive) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Revoke all tokens issued so far by incrementing the revocation epoch.
+     */
+    public void revokeAll() {
+        synchronized (revocations) {
+            generations.invalidatedAll();
+            epoch.incrementAndGet();
+        }
+    }
+
+    public long getEpoch() {
+        return epoch.get();
+    }
+
+    public long getIssuedCount() {
+        return issued.get();
+    }
+
+    public long getResumedCount() {
+        return resumed.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public void agentAdded(final String loginName) {
+        // A new agent has no tokens to revoke.
+    }
+
+    public void credentialUpdated(final String loginName, final Object credential) {
+        revoke(loginName);
+    }
+
+    public void runAsUpdated(final IdentityType authenticatedIdentity, final IdentityType authorizedAs, final boolean added) {
+        // A new grant can not make an issued token grant more than it should, a remote change is not known to be an add.
+        if (added == false || authenticatedIdentity == null) {
+            revokeAll();
+        }
+    }
+
+    static boolean isToken(final String password) {
+        return password.startsWith(TOKEN_PREFIX);
+    }
+
+    private Resumption parse(final String token) {
+        if (isToken(token) == false) {
+            return null;
+        }
+
+        byte[] bytes;
+        try {
+            bytes = Base64.getUrlDecoder().decode(token.substring(TOKEN_PREFIX.length()));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (bytes.length <= MAC_LENGTH) {
+            return null;
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, bytes.length - MAC_LENGTH);
+            if (buffer.get() != VERSION) {
+                return null;
+            }
+
+            SigningKey key = keyFor(buffer.getInt());
+            if (key == null) {
+                return null;
+            }
+            byte[] expected = key.sign(bytes, bytes.length - MAC_LENGTH);
+            byte[] actual = new byte[MAC_LENGTH];
+            System.arraycopy(bytes, bytes.length - MAC_LENGTH, actual, 0, MAC_LENGTH);
+            if (MessageDigest.isEqual(expected, actual) == false) {
+                return null;
+            }
+
+            long tokenEpoch = buffer.getLong();
+            long issuedAt = buffer.getLong();
+            long expires = buffer.getLong();
+            String tokenRealm = StateSnapshot.readString(buffer);
+            String authenticationId = StateSnapshot.readString(buffer);
+            String authorizationId = StateSnapshot.readString(buffer);
+
+            if (tokenEpoch != epoch.get() || System.currentTimeMillis() >= expires || realm.equals(tokenRealm) == false
+                    || isRevoked(authenticationId, issuedAt)) {
+                return null;
+            }
+
+            return new Resumption(authenticationId, authorizationId);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private SigningKey keyFor(final int id) {
+        SigningKey key = currentKey;
+        if (key.id == id) {
+            return key;
+        }
+        key = previousKey;
+
+        return key != null && key.id == id ? key : null;
+    }
+
+    private boolean isRevoked(final String loginName, final long issuedAt) {
+        Long revokedAt;
+        synchronized (revocations) {
+            revokedAt = revocations.get(loginName);
+        }
+
+        return revokedAt != null && issuedAt <= revokedAt.longValue();
+    }
+
+    /**
+     * The identities bound by a verified token.
+     */
+    public static final class Resumption {
+
+        private final String authenticationId;
+        private final String authorizationId;
+
+        private Resumption(final String authenticationId, final String authorizationId) {
+            this.authenticationId = authenticationId;
+            this.authorizationId = authorizationId;
+        }
+
+        public String getAuthenticationId() {
+            return authenticationId;
+        }
+
+        public String getAuthorizationId() {
+            return authorizationId;
+        }
+
+        boolean authorizes(final String authenticationId, final String authorizationId) {
+            return this.authenticationId.equals(authenticationId) && this.authorizationId.equals(authorizationId);
+        }
+
+    }
+
+    private static final class SigningKey {
+
+        private final int id;
+        private final SecretKeySpec spec;
+
+        private final ThreadLocal<Mac> mac = new ThreadLocal<Mac>() {
+
+            @Override
+            protected Mac initialValue() {
+                try {
+                    Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+                    mac.init(spec);
+
+                    return mac;
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException("Unable to initialise " + HMAC_ALGORITHM, e);
+                }
+            }
+
+        };
+
+        private SigningKey(final int id, final SecureRandom random) {
+            byte[] keyBytes = new byte[KEY_LENGTH];
+            random.nextBytes(keyBytes);
+            this.id = id;
+            this.spec = new SecretKeySpec(keyBytes, HMAC_ALGORITHM);
+        }
+
+        private byte[] sign(final byte[] bytes) {
+            return sign(bytes, bytes.length);
+        }
+
+        private byte[] sign(final byte[] bytes, final int length) {
+            Mac mac = this.mac.get();
+            mac.update(bytes, 0, length);
+
+            return mac.doFinal();
+        }
+
+    }
+
+}
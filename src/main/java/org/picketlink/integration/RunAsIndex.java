@@ -0,0 +1,854 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.picketlink.idm.IdentityManager;
+import org.picketlink.idm.model.Agent;
+import org.picketlink.idm.model.Grant;
+import org.picketlink.idm.model.GroupMembership;
+import org.picketlink.idm.model.IdentityType;
+
+/**
+ * An in-memory index of all {@link RunAsRelationship}s so that run as checks can be answered without querying the
+ * {@link IdentityManager}.
+ *
+ * A relationship can grant run as to or from a {@link org.picketlink.idm.model.Group} or {@link org.picketlink.idm.model.Role}
+ * as well as an {@link Agent}, a grant from a group or role applies to all of its member agents and a grant to a group or
+ * role allows running as any of its members. Group membership is taken from {@link GroupMembership} and role membership
+ * from {@link Grant} relationships where the member is an agent. Optionally grants can be transitive, with a maximum depth
+ * greater than 1 an agent that can run as another agent can also run as anyone that agent can run as up to that number of
+ * hops.
+ *
+ * Identities are interned to int IDs, the relationships and memberships between them are held as sorted int arrays and for
+ * each agent the closure of identities it can run as is precomputed and held as an open addressed int set, groups and
+ * roles are held in the closure rather than expanded to their members so a grant to a large group does not require an
+ * entry per member. A check is therefore a probe of the set for the requested agent and each group or role it is a member
+ * of without any allocation.
+ *
+ * Relationships added or removed through {@link IdentityManagement} are applied incrementally, only the closures of the
+ * agents that could be affected are recomputed. Changes to group or role membership are not notified so {@link #reload()}
+ * or {@link #reloadInBackground()} should be called after those, a reload builds a replacement index and swaps it in so
+ * checks in progress are never blocked. Relationships added or removed while the replacement is being built are recorded
+ * and replayed onto it before it is swapped in.
+ *
+ * If created with a {@link StateSnapshot} containing an index that index is used immediately and the index is reloaded in
+ * the background.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class RunAsIndex implements IdentityChangeListener {
+
+    private final IdentityManager identityManager;
+    private final Executor executor;
+    private final int maxDepth;
+    private final AtomicBoolean reloadPending = new AtomicBoolean();
+    // The changes made during each reload in progress, guarded by this.
+    private final List<List<Change>> reloadsInProgress = new ArrayList<List<Change>>();
+
+    private volatile Graph graph;
+
+    public RunAsIndex(final IdentityManager identityManager) {
+        this(identityManager, null);
+    }
+
+    public RunAsIndex(final IdentityManager identityManager, final Executor executor) {
+        this(identityManager, executor, 1);
+    }
+
+    /**
+     * @param identityManager - the {@link IdentityManager} to load the relationships from.
+     * @param executor - the {@link Executor} to use for background reloads, can be null.
+     * @param maxDepth - the maximum number of run as hops, 1 for direct grants only.
+     */
+    public RunAsIndex(final IdentityManager identityManager, final Executor executor, final int maxDepth) {
+        this(identityManager, executor, maxDepth, null);
+    }
+
+    /**
+     * @param identityManager - the {@link IdentityManager} to load the relationships from.
+     * @param executor - the {@link Executor} to use for background reloads, can be null.
+     * @param maxDepth - the maximum number of run as hops, 1 for direct grants only.
+     * @param snapshot - an optional {@link StateSnapshot} to restore the index from, the index is included when the snapshot
+     *        is next written.
+     */
+    public RunAsIndex(final IdentityManager identityManager, final Executor executor, final int maxDepth,
+            final StateSnapshot snapshot) {
+        if (maxDepth < 1) {
+            throw new IllegalArgumentException("maxDepth must be greater than 0");
+        }
+
+        this.identityManager = identityManager;
+        this.executor = executor;
+        this.maxDepth = maxDepth;
+
+        Graph restored = null;
+        if (snapshot != null) {
+            restored = Graph.restore(snapshot.getSection(StateSnapshot.RUN_AS_INDEX), maxDepth);
+        }
+        if (restored == null) {
+            reload();
+        } else {
+            graph = restored;
+            reloadInBackground();
+        }
+        if (snapshot != null) {
+            snapshot.register(this);
+        }
+    }
+
+    /**
+     * Check if the authenticated agent is permitted to run as the requested agent.
+     *
+     * @param authenticationId - the login name of the authenticated agent.
+     * @param authorizationId - the login name of the agent to run as.
+     * @return true if the authenticated agent has been granted run as the requested agent.
+     */
+    public boolean isAuthorized(final String authenticationId, final String authorizationId) {
+        return graph.isAuthorized(authenticationId, authorizationId);
+    }
+
+    /**
+     * Get the run as relationships granted directly from the identity.
+     *
+     * The index holds each relationship as a pair of interned IDs, the returned {@link RunAsRelationship}s are created by
+     * this call and only look up the identity they grant run as from the {@link IdentityManager} when it is first asked for.
+     *
+     * @param authenticatedIdentity - the identity the relationships are granted from.
+     * @return the relationships, empty if the identity has not been granted run as anyone.
+     */
+    public synchronized List<RunAsRelationship> getRelationships(final IdentityType authenticatedIdentity) {
+        Graph current = graph;
+        int[] targets = current.targetsOf(authenticatedIdentity);
+        List<RunAsRelationship> relationships = new ArrayList<RunAsRelationship>(targets.length);
+        for (int target : targets) {
+            relationships.add(new IndexedRunAsRelationship(identityManager, authenticatedIdentity, current.keys[target],
+                    current.agents.get(target)));
+        }
+
+        return relationships;
+    }
+
+    /**
+     * Rebuild the index from the {@link IdentityManager} on the calling thread.
+     */
+    public void reload() {
+        reloadPending.set(false);
+        List<Change> changes = new ArrayList<Change>();
+        synchronized (this) {
+            reloadsInProgress.add(changes);
+        }
+        try {
+            Graph newGraph = load();
+            synchronized (this) {
+                for (Change current : changes) {
+                    apply(newGraph, current.authenticatedIdentity, current.authorizedAs, current.added);
+                }
+                graph = newGraph;
+            }
+        } finally {
+            synchronized (this) {
+                reloadsInProgress.remove(changes);
+            }
+        }
+    }
+
+    private Graph load() {
+        Graph newGraph = new Graph(maxDepth);
+
+        for (RunAsRelationship current : identityManager.createRelationshipQuery(RunAsRelationship.class).getResultList()) {
+            int subject = newGraph.node(current.getAuthenticatedIdentity());
+            int target = newGraph.node(current.getAuthorizedAs());
+            if (subject > 0 && target > 0) {
+                newGraph.queueDirect(subject, target);
+            }
+        }
+        for (GroupMembership current : identityManager.createRelationshipQuery(GroupMembership.class).getResultList()) {
+            if (current.getMember() != null && current.getGroup() != null) {
+                newGraph.queueMembership(newGraph.node(current.getMember()), newGraph.node(current.getGroup()));
+            }
+        }
+        for (Grant current : identityManager.createRelationshipQuery(Grant.class).getResultList()) {
+            if (current.getAssignee() instanceof Agent && current.getRole() != null) {
+                newGraph.queueMembership(newGraph.node(current.getAssignee()), newGraph.node(current.getRole()));
+            }
+        }
+        newGraph.publishAll();
+
+        return newGraph;
+    }
+
+    /**
+     * Request that the index is rebuilt using the {@link Executor} this index was created with, if no {@link Executor} was
+     * provided the index is rebuilt on the calling thread.
+     */
+    public void reloadInBackground() {
+        if (executor == null) {
+            reload();
+        } else if (reloadPending.compareAndSet(false, true)) {
+            executor.execute(new Runnable() {
+
+                public void run() {
+                    if (reloadPending.get()) {
+                        reload();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the number of run as relationships in the index.
+     */
+    public int size() {
+        return graph.directCount;
+    }
+
+    synchronized void writeSnapshot(final DataOutputStream out) throws IOException {
+        graph.writeTo(out);
+    }
+
+    public void agentAdded(final String loginName) {
+        // Relationships for a new agent are notified as they are added.
+    }
+
+    public void credentialUpdated(final String loginName, final Object credential) {
+        // The index does not depend on credentials.
+    }
+
+    public synchronized void runAsUpdated(final IdentityType authenticatedIdentity, final IdentityType authorizedAs,
+            final boolean added) {
+        if (authenticatedIdentity == null || authorizedAs == null) {
+            // Not known in detail, e.g. a change made on another node.
+            reloadInBackground();
+            return;
+        }
+
+        apply(graph, authenticatedIdentity, authorizedAs, added);
+        for (List<Change> current : reloadsInProgress) {
+            current.add(new Change(authenticatedIdentity, authorizedAs, added));
+        }
+    }
+
+    private static void apply(final Graph current, final IdentityType authenticatedIdentity, final IdentityType authorizedAs,
+            final boolean added) {
+        int subject = current.node(authenticatedIdentity);
+        int target = current.node(authorizedAs);
+        if (subject <= 0 || target <= 0) {
+            return;
+        }
+
+        BitSet affected;
+        if (added) {
+            current.addDirect(subject, target);
+            affected = current.affectedBy(subject);
+        } else {
+            // Identify the affected agents while the relationship is still part of the graph.
+            affected = current.affectedBy(subject);
+            current.removeDirect(subject, target);
+        }
+
+        for (int agent = affected.nextSetBit(0); agent >= 0; agent = affected.nextSetBit(agent + 1)) {
+            current.publishClosure(agent);
+        }
+    }
+
+    /**
+     * A relationship added or removed while a reload was in progress.
+     */
+    private static final class Change {
+
+        private final IdentityType authenticatedIdentity;
+        private final IdentityType authorizedAs;
+        private final boolean added;
+
+        private Change(final IdentityType authenticatedIdentity, final IdentityType authorizedAs, final boolean added) {
+            this.authenticatedIdentity = authenticatedIdentity;
+            this.authorizedAs = authorizedAs;
+            this.added = added;
+        }
+
+    }
+
+    /**
+     * A {@link RunAsRelationship} created from the index, the identity it grants run as is held as the key it was interned
+     * with until it is first requested.
+     */
+    private static final class IndexedRunAsRelationship extends RunAsRelationship {
+
+        private static final long serialVersionUID = 4207592531947398150L;
+
+        private final transient IdentityManager identityManager;
+        private final String authorizedAsKey;
+        private final boolean authorizedAsAgent;
+
+        private IndexedRunAsRelationship(final IdentityManager identityManager, final IdentityType authenticatedIdentity,
+                final String authorizedAsKey, final boolean authorizedAsAgent) {
+            this.identityManager = identityManager;
+            this.authorizedAsKey = authorizedAsKey;
+            this.authorizedAsAgent = authorizedAsAgent;
+            setAuthenticatedIdentity(authenticatedIdentity);
+        }
+
+        @Override
+        public IdentityType getAuthorizedAs() {
+            IdentityType authorizedAs = super.getAuthorizedAs();
+            if (authorizedAs == null && identityManager != null) {
+                if (authorizedAsAgent) {
+                    authorizedAs = identityManager.getAgent(authorizedAsKey);
+                } else {
+                    authorizedAs = identityManager.lookupIdentityById(IdentityType.class, authorizedAsKey);
+                }
+                setAuthorizedAs(authorizedAs);
+            }
+
+            return authorizedAs;
+        }
+
+    }
+
+    /**
+     * The graph of identities, the maps of IDs and the published closures and memberships are read concurrently, everything
+     * else is only accessed when building the graph or while holding the lock on the {@link RunAsIndex}.
+     *
+     * Each adjacency is an array of rows indexed by ID, a row is a sorted int[] of the related IDs or null if there are none.
+     * Rows are never modified once set, a change replaces the row, so the rows of memberOf are also published as the
+     * memberships.
+     */
+    private static final class Graph {
+
+        private static final int[] NONE = new int[0];
+
+        private final int maxDepth;
+
+        private final Map<String, Integer> agentIds = new ConcurrentHashMap<String, Integer>();
+        private final Map<String, Integer> otherIds = new ConcurrentHashMap<String, Integer>();
+        private volatile AtomicReferenceArray<int[]> closures = new AtomicReferenceArray<int[]>(16);
+        private volatile AtomicReferenceArray<int[]> memberships = new AtomicReferenceArray<int[]>(16);
+
+        private final BitSet agents = new BitSet();
+        // The login name of each agent or the ID of any other identity, indexed by the interned ID.
+        private String[] keys = new String[16];
+        private int[][] direct = new int[16][];
+        private int[][] reverseDirect = new int[16][];
+        private int[][] members = new int[16][];
+        private int[][] memberOf = new int[16][];
+        // Pairs queued while building the graph, turned into rows by publishAll().
+        private PairList queuedDirect = new PairList();
+        private PairList queuedMemberships = new PairList();
+        private int nextId = 1;
+        private volatile int directCount;
+
+        private Graph(final int maxDepth) {
+            this.maxDepth = maxDepth;
+        }
+
+        /**
+         * Restore a graph written by {@link #writeTo(DataOutputStream)}.
+         *
+         * @return the restored graph or null if the section is missing or invalid.
+         */
+        private static Graph restore(final ByteBuffer section, final int maxDepth) {
+            if (section == null) {
+                return null;
+            }
+
+            try {
+                Graph graph = new Graph(maxDepth);
+                // Identities were written in ID order so interning them again allocates the same IDs.
+                int identities = section.getInt();
+                for (int i = 0; i < identities; i++) {
+                    boolean agent = section.get() != 0;
+                    String key = StateSnapshot.readString(section);
+                    if (agent) {
+                        graph.agents.set(graph.intern(graph.agentIds, key));
+                    } else {
+                        graph.intern(graph.otherIds, key);
+                    }
+                }
+                int relationships = section.getInt();
+                for (int i = 0; i < relationships; i++) {
+                    graph.queueDirect(graph.checkId(section.getInt()), graph.checkId(section.getInt()));
+                }
+                int memberships = section.getInt();
+                for (int i = 0; i < memberships; i++) {
+                    graph.queueMembership(graph.checkId(section.getInt()), graph.checkId(section.getInt()));
+                }
+                graph.publishAll();
+
+                return graph;
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+
+        private int checkId(final int id) {
+            if (id < 1 || id >= nextId) {
+                throw new IllegalStateException("Unknown identity " + id);
+            }
+
+            return id;
+        }
+
+        private void writeTo(final DataOutputStream out) throws IOException {
+            out.writeInt(nextId - 1);
+            for (int i = 1; i < nextId; i++) {
+                out.writeByte(agents.get(i) ? 1 : 0);
+                StateSnapshot.writeString(out, keys[i]);
+            }
+            writePairs(out, direct, nextId);
+            writePairs(out, memberOf, nextId);
+        }
+
+        private static void writePairs(final DataOutputStream out, final int[][] rows, final int limit) throws IOException {
+            int count = 0;
+            for (int i = 1; i < limit; i++) {
+                count += row(rows, i).length;
+            }
+
+            out.writeInt(count);
+            for (int i = 1; i < limit; i++) {
+                for (int value : row(rows, i)) {
+                    out.writeInt(i);
+                    out.writeInt(value);
+                }
+            }
+        }
+
+        private boolean isAuthorized(final String authenticationId, final String authorizationId) {
+            Integer authenticated = agentIds.get(authenticationId);
+            Integer authorizedAs = authenticated == null ? null : agentIds.get(authorizationId);
+            if (authorizedAs == null) {
+                return false;
+            }
+
+            int[] closure = get(closures, authenticated.intValue());
+            if (closure == null) {
+                return false;
+            }
+            if (IntSet.contains(closure, authorizedAs.intValue())) {
+                return true;
+            }
+
+            int[] groups = get(memberships, authorizedAs.intValue());
+            if (groups != null) {
+                for (int current : groups) {
+                    if (IntSet.contains(closure, current)) {
+                        return true;
+                    }
+                }
+            }
+
+            return false;
+        }
+
+        private static int[] get(final AtomicReferenceArray<int[]> array, final int index) {
+            return index < array.length() ? array.get(index) : null;
+        }
+
+        /**
+         * Get the ID of the identity, interning it if not already known.
+         *
+         * @return the ID or 0 if the identity can not be identified.
+         */
+        private int node(final IdentityType identityType) {
+            if (identityType instanceof Agent) {
+                String loginName = ((Agent) identityType).getLoginName();
+                if (loginName == null) {
+                    return 0;
+                }
+                int id = intern(agentIds, loginName);
+                agents.set(id);
+
+                return id;
+            } else if (identityType != null && identityType.getId() != null) {
+                return intern(otherIds, identityType.getId());
+            }
+
+            return 0;
+        }
+
+        /**
+         * @return the IDs the identity has been granted run as directly, without interning the identity.
+         */
+        private int[] targetsOf(final IdentityType identityType) {
+            Integer id = null;
+            if (identityType instanceof Agent) {
+                String loginName = ((Agent) identityType).getLoginName();
+                id = loginName == null ? null : agentIds.get(loginName);
+            } else if (identityType != null && identityType.getId() != null) {
+                id = otherIds.get(identityType.getId());
+            }
+
+            return id == null ? NONE : row(direct, id.intValue());
+        }
+
+        private int intern(final Map<String, Integer> ids, final String key) {
+            Integer id = ids.get(key);
+            if (id == null) {
+                id = Integer.valueOf(nextId++);
+                ensureCapacity(id.intValue());
+                keys[id.intValue()] = key;
+                ids.put(key, id);
+            }
+
+            return id.intValue();
+        }
+
+        private void ensureCapacity(final int id) {
+            if (id >= closures.length()) {
+                int length = closures.length() * 2;
+                while (id >= length) {
+                    length *= 2;
+                }
+                keys = Arrays.copyOf(keys, length);
+                direct = Arrays.copyOf(direct, length);
+                reverseDirect = Arrays.copyOf(reverseDirect, length);
+                members = Arrays.copyOf(members, length);
+                memberOf = Arrays.copyOf(memberOf, length);
+                closures = copy(closures, length);
+                memberships = copy(memberships, length);
+            }
+        }
+
+        private static AtomicReferenceArray<int[]> copy(final AtomicReferenceArray<int[]> original, final int length) {
+            AtomicReferenceArray<int[]> copy = new AtomicReferenceArray<int[]>(length);
+            for (int i = 0; i < original.length(); i++) {
+                copy.set(i, original.get(i));
+            }
+
+            return copy;
+        }
+
+        private void queueDirect(final int subject, final int target) {
+            queuedDirect.add(subject, target);
+        }
+
+        private void queueMembership(final int agent, final int group) {
+            if (agent > 0 && group > 0 && agents.get(agent)) {
+                queuedMemberships.add(agent, group);
+            }
+        }
+
+        private void addDirect(final int subject, final int target) {
+            if (insert(direct, subject, target)) {
+                insert(reverseDirect, target, subject);
+                directCount++;
+            }
+        }
+
+        private void removeDirect(final int subject, final int target) {
+            if (delete(direct, subject, target)) {
+                delete(reverseDirect, target, subject);
+                directCount--;
+            }
+        }
+
+        private static boolean insert(final int[][] rows, final int key, final int value) {
+            int[] row = rows[key];
+            if (row == null) {
+                rows[key] = new int[] { value };
+                return true;
+            }
+
+            int index = Arrays.binarySearch(row, value);
+            if (index >= 0) {
+                return false;
+            }
+            index = -index - 1;
+            int[] updated = new int[row.length + 1];
+            System.arraycopy(row, 0, updated, 0, index);
+            updated[index] = value;
+            System.arraycopy(row, index, updated, index + 1, row.length - index);
+            rows[key] = updated;
+
+            return true;
+        }
+
+        private static boolean delete(final int[][] rows, final int key, final int value) {
+            int[] row = rows[key];
+            int index = row == null ? -1 : Arrays.binarySearch(row, value);
+            if (index < 0) {
+                return false;
+            }
+
+            if (row.length == 1) {
+                rows[key] = null;
+            } else {
+                int[] updated = new int[row.length - 1];
+                System.arraycopy(row, 0, updated, 0, index);
+                System.arraycopy(row, index + 1, updated, index, updated.length - index);
+                rows[key] = updated;
+            }
+
+            return true;
+        }
+
+        private static int[] row(final int[][] rows, final int key) {
+            int[] row = key < rows.length ? rows[key] : null;
+
+            return row == null ? NONE : row;
+        }
+
+        /**
+         * @return the agents represented by the identity, i.e. the agent itself or the members of a group or role.
+         */
+        private int[] agentsOf(final int node) {
+            return agents.get(node) ? new int[] { node } : row(members, node);
+        }
+
+        private int[] subjectsOf(final int agent) {
+            int[] groups = row(memberOf, agent);
+            int[] subjects = Arrays.copyOf(groups, groups.length + 1);
+            subjects[groups.length] = agent;
+
+            return subjects;
+        }
+
+        private void publishAll() {
+            directCount = queuedDirect.toRows(direct, reverseDirect);
+            queuedMemberships.toRows(memberOf, members);
+            queuedDirect = null;
+            queuedMemberships = null;
+
+            BitSet subjects = new BitSet(nextId);
+            for (int i = 1; i < nextId; i++) {
+                if (direct[i] != null) {
+                    for (int agent : agentsOf(i)) {
+                        subjects.set(agent);
+                    }
+                }
+                if (memberOf[i] != null) {
+                    memberships.set(i, memberOf[i]);
+                }
+            }
+            for (int i = subjects.nextSetBit(0); i >= 0; i = subjects.nextSetBit(i + 1)) {
+                publishClosure(i);
+            }
+        }
+
+        private void publishClosure(final int agent) {
+            BitSet reachable = new BitSet(nextId);
+            BitSet visited = new BitSet(nextId);
+            visited.set(agent);
+            int[] frontier = new int[] { agent };
+            int frontierSize = 1;
+
+            for (int depth = 1; depth <= maxDepth && frontierSize > 0; depth++) {
+                int[] next = NONE;
+                int nextSize = 0;
+                for (int i = 0; i < frontierSize; i++) {
+                    for (int subject : subjectsOf(frontier[i])) {
+                        for (int target : row(direct, subject)) {
+                            reachable.set(target);
+                            if (depth < maxDepth) {
+                                for (int hop : agentsOf(target)) {
+                                    if (visited.get(hop) == false) {
+                                        visited.set(hop);
+                                        if (nextSize == next.length) {
+                                            next = Arrays.copyOf(next, Math.max(8, nextSize * 2));
+                                        }
+                                        next[nextSize++] = hop;
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+                frontier = next;
+                frontierSize = nextSize;
+            }
+
+            closures.set(agent, reachable.isEmpty() ? null : IntSet.build(reachable));
+        }
+
+        /**
+         * Find the agents whose closure could change if the grants of the subject change, that is the agents of the subject
+         * and any agents that can reach them within one less than the maximum depth.
+         */
+        private BitSet affectedBy(final int subject) {
+            BitSet affected = new BitSet(nextId);
+            int[] frontier = agentsOf(subject);
+            for (int current : frontier) {
+                affected.set(current);
+            }
+
+            for (int depth = 1; depth < maxDepth && frontier.length > 0; depth++) {
+                BitSet next = new BitSet(nextId);
+                for (int current : frontier) {
+                    for (int target : subjectsOf(current)) {
+                        for (int source : row(reverseDirect, target)) {
+                            for (int agent : agentsOf(source)) {
+                                if (affected.get(agent) == false) {
+                                    affected.set(agent);
+                                    next.set(agent);
+                                }
+                            }
+                        }
+                    }
+                }
+                frontier = IntSet.toArray(next);
+            }
+
+            return affected;
+        }
+
+    }
+
+    /**
+     * A growable list of pairs of positive ints packed into longs so a bulk load can sort them instead of inserting into
+     * rows one at a time.
+     */
+    private static final class PairList {
+
+        private long[] pairs = new long[16];
+        private int size;
+
+        private void add(final int key, final int value) {
+            if (size == pairs.length) {
+                pairs = Arrays.copyOf(pairs, size * 2);
+            }
+            pairs[size++] = pack(key, value);
+        }
+
+        /**
+         * Set the rows of both adjacencies from the pairs, duplicates are discarded.
+         *
+         * @return the number of distinct pairs.
+         */
+        private int toRows(final int[][] forward, final int[][] reverse) {
+            Arrays.sort(pairs, 0, size);
+            int distinct = 0;
+            for (int i = 0; i < size; i++) {
+                if (distinct == 0 || pairs[i] != pairs[distinct - 1]) {
+                    pairs[distinct++] = pairs[i];
+                }
+            }
+            size = distinct;
+            group(pairs, size, forward);
+
+            long[] swapped = new long[size];
+            for (int i = 0; i < size; i++) {
+                swapped[i] = pack((int) pairs[i], (int) (pairs[i] >>> 32));
+            }
+            Arrays.sort(swapped);
+            group(swapped, size, reverse);
+
+            return size;
+        }
+
+        private static void group(final long[] sorted, final int size, final int[][] rows) {
+            int start = 0;
+            while (start < size) {
+                int key = (int) (sorted[start] >>> 32);
+                int end = start + 1;
+                while (end < size && (int) (sorted[end] >>> 32) == key) {
+                    end++;
+                }
+
+                int[] row = new int[end - start];
+                for (int i = start; i < end; i++) {
+                    row[i - start] = (int) sorted[i];
+                }
+                rows[key] = row;
+                start = end;
+            }
+        }
+
+        private static long pack(final int key, final int value) {
+            return ((long) key << 32) | value;
+        }
+
+    }
+
+    /**
+     * Static helpers for open addressed sets of positive ints held in an int[], 0 marks an empty slot.
+     */
+    private static final class IntSet {
+
+        private static int[] build(final BitSet values) {
+            int capacity = 2;
+            while (capacity < values.cardinality() * 2) {
+                capacity <<= 1;
+            }
+
+            int[] table = new int[capacity];
+            int mask = capacity - 1;
+            for (int current = values.nextSetBit(0); current >= 0; current = values.nextSetBit(current + 1)) {
+                int slot = mix(current) & mask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = current;
+            }
+
+            return table;
+        }
+
+        private static boolean contains(final int[] table, final int value) {
+            int mask = table.length - 1;
+            int slot = mix(value) & mask;
+            while (table[slot] != 0) {
+                if (table[slot] == value) {
+                    return true;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            return false;
+        }
+
+        private static int[] toArray(final BitSet values) {
+            if (values.isEmpty()) {
+                return Graph.NONE;
+            }
+
+            int[] array = new int[values.cardinality()];
+            int i = 0;
+            for (int current = values.nextSetBit(0); current >= 0; current = values.nextSetBit(current + 1)) {
+                array[i++] = current;
+            }
+
+            return array;
+        }
+
+        private static int mix(final int value) {
+            int hash = value * 0x9E3779B9;
+
+            return hash ^ (hash >>> 16);
+        }
+
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.util.Base64;
+
+import javax.security.sasl.SaslException;
+
+/**
+ * The attributes of a single SCRAM message, each attribute is a single letter name and value separated by '=' with the
+ * attributes separated by ','.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+final class ScramMessage {
+
+    private final String[] values = new String[26];
+
+    private ScramMessage() {
+    }
+
+    static ScramMessage parse(final String message) throws SaslException {
+        ScramMessage parsed = new ScramMessage();
+        int start = 0;
+        while (start <= message.length()) {
+            int end = message.indexOf(',', start);
+            end = end < 0 ? message.length() : end;
+            if (end - start < 2 || message.charAt(start + 1) != '=') {
+                throw new SaslException("Invalid SCRAM message.");
+            }
+
+            char name = message.charAt(start);
+            if (name < 'a' || name > 'z' || parsed.values[name - 'a'] != null) {
+                throw new SaslException("Invalid SCRAM attribute '" + name + "'.");
+            }
+            if (name == 'm') {
+                throw new SaslException("Mandatory SCRAM extensions are not supported.");
+            }
+            parsed.values[name - 'a'] = message.substring(start + 2, end);
+            start = end + 1;
+        }
+
+        return parsed;
+    }
+
+    String get(final char name) {
+        return values[name - 'a'];
+    }
+
+    String require(final char name) throws SaslException {
+        String value = values[name - 'a'];
+        if (value == null) {
+            throw new SaslException("SCRAM attribute '" + name + "' is missing.");
+        }
+
+        return value;
+    }
+
+    byte[] requireBase64(final char name) throws SaslException {
+        try {
+            return Base64.getDecoder().decode(require(name));
+        } catch (IllegalArgumentException e) {
+            throw new SaslException("SCRAM attribute '" + name + "' is not valid base64.");
+        }
+    }
+
+    static String base64(final byte[] value) {
+        return Base64.getEncoder().encodeToString(value);
+    }
+
+    /**
+     * Encode a username or authorization ID as a saslname.
+     */
+    static String escape(final String name) {
+        return name.replace("=", "=3D").replace(",", "=2C");
+    }
+
+    /**
+     * Decode a saslname.
+     */
+    static String unescape(final String saslName) throws SaslException {
+        StringBuilder name = new StringBuilder(saslName.length());
+        for (int i = 0; i < saslName.length(); i++) {
+            char c = saslName.charAt(i);
+            if (c == '=') {
+                if (saslName.startsWith("=3D", i)) {
+                    name.append('=');
+                } else if (saslName.startsWith("=2C", i)) {
+                    name.append(',');
+                } else {
+                    throw new SaslException("Invalid SCRAM name encoding.");
+                }
+                i += 2;
+            } else {
+                name.append(c);
+            }
+        }
+
+        return name.toString();
+    }
+
+}
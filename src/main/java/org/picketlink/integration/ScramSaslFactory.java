@@ -0,0 +1,84 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.util.Map;
+
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.sasl.Sasl;
+import javax.security.sasl.SaslClient;
+import javax.security.sasl.SaslClientFactory;
+import javax.security.sasl.SaslException;
+import javax.security.sasl.SaslServer;
+import javax.security.sasl.SaslServerFactory;
+
+/**
+ * The {@link SaslServerFactory} and {@link SaslClientFactory} for SCRAM-SHA-256, registered by
+ * {@link PicketLinkSaslProvider}.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class ScramSaslFactory implements SaslServerFactory, SaslClientFactory {
+
+    private static final String[] MECHANISMS = { ScramSha256SaslServer.MECHANISM };
+    private static final String[] NONE = new String[0];
+
+    public SaslServer createSaslServer(final String mechanism, final String protocol, final String serverName,
+            final Map<String, ?> props, final CallbackHandler cbh) throws SaslException {
+        if (ScramSha256SaslServer.MECHANISM.equals(mechanism) && permitted(props)) {
+            return new ScramSha256SaslServer(cbh);
+        }
+
+        return null;
+    }
+
+    public SaslClient createSaslClient(final String[] mechanisms, final String authorizationId, final String protocol,
+            final String serverName, final Map<String, ?> props, final CallbackHandler cbh) throws SaslException {
+        if (permitted(props)) {
+            for (String current : mechanisms) {
+                if (ScramSha256SaslServer.MECHANISM.equals(current)) {
+                    return new ScramSha256SaslClient(authorizationId, cbh);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    public String[] getMechanismNames(final Map<String, ?> props) {
+        return permitted(props) ? MECHANISMS.clone() : NONE;
+    }
+
+    /**
+     * SCRAM is not plain text and authenticates the server but an observed exchange is open to a dictionary attack and it
+     * neither provides forward secrecy nor passes credentials.
+     */
+    private static boolean permitted(final Map<String, ?> props) {
+        return isSet(props, Sasl.POLICY_NODICTIONARY) == false && isSet(props, Sasl.POLICY_FORWARD_SECRECY) == false
+                && isSet(props, Sasl.POLICY_PASS_CREDENTIALS) == false;
+    }
+
+    private static boolean isSet(final Map<String, ?> props, final String name) {
+        return props != null && "true".equalsIgnoreCase(String.valueOf(props.get(name)));
+    }
+
+}
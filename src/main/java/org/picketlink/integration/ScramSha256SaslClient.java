@@ -0,0 +1,202 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import static org.picketlink.integration.ScramVerifier.UTF_8;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.sasl.Sasl;
+import javax.security.sasl.SaslClient;
+import javax.security.sasl.SaslException;
+
+/**
+ * The client side of the SCRAM-SHA-256 mechanism, RFC 5802 and RFC 7677, without channel binding.
+ *
+ * The username and password are obtained with a {@link NameCallback} and {@link PasswordCallback}, the server is
+ * authenticated by verifying the server signature in the final message.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class ScramSha256SaslClient implements SaslClient {
+
+    private static final int NONCE_LENGTH = 18;
+    private static final int MAX_ITERATIONS = 1000000;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private enum State {
+        INITIAL, FIRST_SENT, FINAL_SENT, COMPLETE, FAILED
+    }
+
+    private final String authorizationId;
+    private final CallbackHandler callbackHandler;
+
+    private State state = State.INITIAL;
+    private char[] password;
+    private String gs2Header;
+    private String clientFirstBare;
+    private String clientNonce;
+    private byte[] serverSignature;
+
+    public ScramSha256SaslClient(final String authorizationId, final CallbackHandler callbackHandler) {
+        this.authorizationId = authorizationId;
+        this.callbackHandler = callbackHandler;
+    }
+
+    public String getMechanismName() {
+        return ScramSha256SaslServer.MECHANISM;
+    }
+
+    public boolean hasInitialResponse() {
+        return true;
+    }
+
+    public byte[] evaluateChallenge(final byte[] challenge) throws SaslException {
+        try {
+            switch (state) {
+                case INITIAL:
+                    return clientFirst();
+                case FIRST_SENT:
+                    return clientFinal(new String(challenge, UTF_8));
+                case FINAL_SENT:
+                    serverFinal(new String(challenge, UTF_8));
+                    return null;
+                default:
+                    throw new SaslException("SCRAM exchange has already "
+                            + (state == State.COMPLETE ? "completed." : "failed."));
+            }
+        } catch (SaslException e) {
+            state = State.FAILED;
+            throw e;
+        } catch (RuntimeException e) {
+            state = State.FAILED;
+            throw new SaslException("Invalid SCRAM message.", e);
+        } finally {
+            if (state != State.FIRST_SENT && password != null) {
+                Arrays.fill(password, (char) 0x00);
+                password = null;
+            }
+        }
+    }
+
+    private byte[] clientFirst() throws SaslException {
+        NameCallback ncb = new NameCallback("Username");
+        PasswordCallback pcb = new PasswordCallback("Password", false);
+        try {
+            callbackHandler.handle(new Callback[] { ncb, pcb });
+        } catch (IOException e) {
+            throw new SaslException("Failed to obtain username and password.", e);
+        } catch (UnsupportedCallbackException e) {
+            throw new SaslException("Failed to obtain username and password.", e);
+        }
+        if (ncb.getName() == null || pcb.getPassword() == null) {
+            throw new SaslException("No username or password available.");
+        }
+        password = pcb.getPassword();
+        pcb.clearPassword();
+
+        byte[] nonce = new byte[NONCE_LENGTH];
+        RANDOM.nextBytes(nonce);
+        clientNonce = ScramMessage.base64(nonce);
+        gs2Header = authorizationId == null ? "n,," : "n,a=" + ScramMessage.escape(authorizationId) + ",";
+        clientFirstBare = "n=" + ScramMessage.escape(ncb.getName()) + ",r=" + clientNonce;
+        state = State.FIRST_SENT;
+
+        return (gs2Header + clientFirstBare).getBytes(UTF_8);
+    }
+
+    private byte[] clientFinal(final String serverFirst) throws SaslException {
+        ScramMessage parsed = ScramMessage.parse(serverFirst);
+        String nonce = parsed.require('r');
+        if (nonce.startsWith(clientNonce) == false || nonce.length() == clientNonce.length()) {
+            throw new SaslException("SCRAM server nonce is not valid.");
+        }
+        byte[] salt = parsed.requireBase64('s');
+        int iterations = Integer.parseInt(parsed.require('i'));
+        if (iterations < 1 || iterations > MAX_ITERATIONS) {
+            throw new SaslException("SCRAM iteration count " + iterations + " is not acceptable.");
+        }
+
+        String clientFinalWithoutProof = "c=" + ScramMessage.base64(gs2Header.getBytes(UTF_8)) + ",r=" + nonce;
+        byte[] authMessage = (clientFirstBare + "," + serverFirst + "," + clientFinalWithoutProof).getBytes(UTF_8);
+
+        byte[] saltedPassword = ScramVerifier.saltedPassword(password, salt, iterations);
+        try {
+            byte[] clientKey = ScramVerifier.hmac(saltedPassword, "Client Key");
+            byte[] clientSignature = ScramVerifier.hmac(ScramVerifier.sha256(clientKey), authMessage);
+            serverSignature = ScramVerifier.hmac(ScramVerifier.hmac(saltedPassword, "Server Key"), authMessage);
+            state = State.FINAL_SENT;
+
+            return (clientFinalWithoutProof + ",p=" + ScramMessage.base64(ScramVerifier.xor(clientKey, clientSignature)))
+                    .getBytes(UTF_8);
+        } finally {
+            Arrays.fill(saltedPassword, (byte) 0x00);
+        }
+    }
+
+    private void serverFinal(final String serverFinal) throws SaslException {
+        ScramMessage parsed = ScramMessage.parse(serverFinal);
+        if (parsed.get('e') != null) {
+            throw new SaslException("SCRAM authentication failed: " + parsed.get('e'));
+        }
+        if (MessageDigest.isEqual(parsed.requireBase64('v'), serverSignature) == false) {
+            throw new SaslException("SCRAM server signature is not valid.");
+        }
+        state = State.COMPLETE;
+    }
+
+    public boolean isComplete() {
+        return state == State.COMPLETE;
+    }
+
+    public byte[] unwrap(final byte[] incoming, final int offset, final int len) throws SaslException {
+        throw new IllegalStateException("SCRAM does not support a security layer.");
+    }
+
+    public byte[] wrap(final byte[] outgoing, final int offset, final int len) throws SaslException {
+        throw new IllegalStateException("SCRAM does not support a security layer.");
+    }
+
+    public Object getNegotiatedProperty(final String propName) {
+        if (state != State.COMPLETE) {
+            throw new IllegalStateException("SCRAM exchange is not complete.");
+        }
+
+        return Sasl.QOP.equals(propName) ? "auth" : null;
+    }
+
+    public void dispose() throws SaslException {
+        if (password != null) {
+            Arrays.fill(password, (char) 0x00);
+            password = null;
+        }
+    }
+
+}
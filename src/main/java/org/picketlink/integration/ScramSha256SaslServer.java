@@ -0,0 +1,262 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import static org.picketlink.integration.ScramVerifier.UTF_8;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.sasl.AuthorizeCallback;
+import javax.security.sasl.Sasl;
+import javax.security.sasl.SaslException;
+import javax.security.sasl.SaslServer;
+
+/**
+ * The server side of the SCRAM-SHA-256 mechanism, RFC 5802 and RFC 7677, without channel binding.
+ *
+ * The {@link ScramVerifier} of the user is obtained with a {@link ScramVerifierCallback}, so no password or PBKDF2
+ * calculation is required to verify the client proof. Where no verifier is available the exchange continues with a
+ * verifier derived from a key held by this class so that it fails at the same point as for a bad password and does not
+ * reveal whether the user exists.
+ *
+ * Once the client proof has been checked the outcome is reported with a {@link ScramProofCallback} so the callback handler
+ * can count failures and audit the result, a callback handler that does not support it is not required to.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class ScramSha256SaslServer implements SaslServer {
+
+    public static final String MECHANISM = "SCRAM-SHA-256";
+
+    private static final int NONCE_LENGTH = 18;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final byte[] UNKNOWN_USER_KEY = new byte[32];
+
+    static {
+        RANDOM.nextBytes(UNKNOWN_USER_KEY);
+    }
+
+    private enum State {
+        INITIAL, CHALLENGED, COMPLETE, FAILED
+    }
+
+    private final CallbackHandler callbackHandler;
+
+    private State state = State.INITIAL;
+    private String gs2Header;
+    private String clientFirstBare;
+    private String serverFirst;
+    private String nonce;
+    private String username;
+    private String requestedAuthorizationId;
+    private String authorizationId;
+    private ScramVerifier verifier;
+
+    public ScramSha256SaslServer(final CallbackHandler callbackHandler) {
+        this.callbackHandler = callbackHandler;
+    }
+
+    public String getMechanismName() {
+        return MECHANISM;
+    }
+
+    public byte[] evaluateResponse(final byte[] response) throws SaslException {
+        try {
+            switch (state) {
+                case INITIAL:
+                    if (response.length == 0) {
+                        // The client did not send an initial response.
+                        return response;
+                    }
+                    return clientFirst(new String(response, UTF_8));
+                case CHALLENGED:
+                    return clientFinal(new String(response, UTF_8));
+                default:
+                    throw new SaslException("SCRAM exchange has already "
+                            + (state == State.COMPLETE ? "completed." : "failed."));
+            }
+        } catch (SaslException e) {
+            state = State.FAILED;
+            throw e;
+        } catch (RuntimeException e) {
+            state = State.FAILED;
+            throw new SaslException("Invalid SCRAM message.", e);
+        }
+    }
+
+    private byte[] clientFirst(final String message) throws SaslException {
+        char flag = message.charAt(0);
+        if (flag == 'p') {
+            throw new SaslException("SCRAM channel binding is not supported.");
+        } else if ((flag != 'n' && flag != 'y') || message.charAt(1) != ',') {
+            throw new SaslException("Invalid SCRAM GS2 header.");
+        }
+
+        int end = message.indexOf(',', 2);
+        if (end < 0) {
+            throw new SaslException("Invalid SCRAM GS2 header.");
+        } else if (end > 2) {
+            if (message.startsWith("a=", 2) == false) {
+                throw new SaslException("Invalid SCRAM GS2 header.");
+            }
+            requestedAuthorizationId = ScramMessage.unescape(message.substring(4, end));
+        }
+        gs2Header = message.substring(0, end + 1);
+        clientFirstBare = message.substring(end + 1);
+
+        ScramMessage parsed = ScramMessage.parse(clientFirstBare);
+        username = ScramMessage.unescape(parsed.require('n'));
+        String clientNonce = parsed.require('r');
+
+        verifier = obtainVerifier(username);
+        if (verifier == null) {
+            verifier = unknownUserVerifier(username);
+        }
+
+        byte[] serverNonce = new byte[NONCE_LENGTH];
+        RANDOM.nextBytes(serverNonce);
+        nonce = clientNonce + ScramMessage.base64(serverNonce);
+        serverFirst = "r=" + nonce + ",s=" + ScramMessage.base64(verifier.getSalt()) + ",i=" + verifier.getIterations();
+        state = State.CHALLENGED;
+
+        return serverFirst.getBytes(UTF_8);
+    }
+
+    private byte[] clientFinal(final String message) throws SaslException {
+        int proofStart = message.lastIndexOf(",p=");
+        if (proofStart < 0) {
+            throw new SaslException("SCRAM client proof is missing.");
+        }
+        String clientFinalWithoutProof = message.substring(0, proofStart);
+
+        ScramMessage parsed = ScramMessage.parse(message);
+        if (Arrays.equals(parsed.requireBase64('c'), gs2Header.getBytes(UTF_8)) == false) {
+            throw new SaslException("SCRAM channel binding does not match.");
+        }
+        if (nonce.equals(parsed.require('r')) == false) {
+            throw new SaslException("SCRAM nonce does not match.");
+        }
+
+        byte[] authMessage = (clientFirstBare + "," + serverFirst + "," + clientFinalWithoutProof).getBytes(UTF_8);
+        byte[] proof = parsed.requireBase64('p');
+        byte[] clientSignature = ScramVerifier.hmac(verifier.getStoredKey(), authMessage);
+        boolean verified = proof.length == clientSignature.length
+                && MessageDigest.isEqual(ScramVerifier.sha256(ScramVerifier.xor(proof, clientSignature)),
+                        verifier.getStoredKey());
+        reportProof(verified);
+        if (verified == false) {
+            throw new SaslException("Authentication failed.");
+        }
+
+        AuthorizeCallback acb = new AuthorizeCallback(username, requestedAuthorizationId == null ? username
+                : requestedAuthorizationId);
+        handle(acb);
+        if (acb.isAuthorized() == false) {
+            throw new SaslException("Authorization failed.");
+        }
+        authorizationId = acb.getAuthorizedID();
+        state = State.COMPLETE;
+
+        return ("v=" + ScramMessage.base64(ScramVerifier.hmac(verifier.getServerKey(), authMessage))).getBytes(UTF_8);
+    }
+
+    private ScramVerifier obtainVerifier(final String username) throws SaslException {
+        ScramVerifierCallback vcb = new ScramVerifierCallback();
+        handle(new NameCallback("Username", username), vcb);
+
+        return vcb.getVerifier();
+    }
+
+    private void reportProof(final boolean verified) throws SaslException {
+        try {
+            callbackHandler.handle(new Callback[] { new NameCallback("Username", username), new ScramProofCallback(verified) });
+        } catch (SaslException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new SaslException("Failed to handle callbacks.", e);
+        } catch (UnsupportedCallbackException e) {
+            // The callback handler does not track the outcome.
+        }
+    }
+
+    private void handle(final Callback... callbacks) throws SaslException {
+        try {
+            callbackHandler.handle(callbacks);
+        } catch (SaslException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new SaslException("Failed to handle callbacks.", e);
+        } catch (UnsupportedCallbackException e) {
+            throw new SaslException("Callback not supported.", e);
+        }
+    }
+
+    /**
+     * A verifier with a salt that is consistent for the username and a StoredKey no client proof can match.
+     */
+    private static ScramVerifier unknownUserVerifier(final String username) {
+        byte[] seed = ScramVerifier.hmac(UNKNOWN_USER_KEY, username);
+
+        return new ScramVerifier(Arrays.copyOf(seed, 16), ScramVerifier.DEFAULT_ITERATIONS, ScramVerifier.sha256(seed),
+                seed);
+    }
+
+    public boolean isComplete() {
+        return state == State.COMPLETE;
+    }
+
+    public String getAuthorizationID() {
+        if (state != State.COMPLETE) {
+            throw new IllegalStateException("SCRAM exchange is not complete.");
+        }
+
+        return authorizationId;
+    }
+
+    public byte[] unwrap(final byte[] incoming, final int offset, final int len) throws SaslException {
+        throw new IllegalStateException("SCRAM does not support a security layer.");
+    }
+
+    public byte[] wrap(final byte[] outgoing, final int offset, final int len) throws SaslException {
+        throw new IllegalStateException("SCRAM does not support a security layer.");
+    }
+
+    public Object getNegotiatedProperty(final String propName) {
+        if (state != State.COMPLETE) {
+            throw new IllegalStateException("SCRAM exchange is not complete.");
+        }
+
+        return Sasl.QOP.equals(propName) ? "auth" : null;
+    }
+
+    public void dispose() throws SaslException {
+        verifier = null;
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The salt, iteration count, StoredKey and ServerKey a server needs to verify a SCRAM-SHA-256 authentication without
+ * holding the password, see RFC 5802 and RFC 7677.
+ *
+ * Deriving a verifier requires the PBKDF2 calculation, once derived a verification only needs a few HMAC calculations.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public final class ScramVerifier {
+
+    public static final int DEFAULT_ITERATIONS = 4096;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final String PBKDF2_ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_LENGTH = 16;
+    private static final int KEY_LENGTH = 32;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final byte[] salt;
+    private final int iterations;
+    private final byte[] storedKey;
+    private final byte[] serverKey;
+
+    ScramVerifier(final byte[] salt, final int iterations, final byte[] storedKey, final byte[] serverKey) {
+        this.salt = salt;
+        this.iterations = iterations;
+        this.storedKey = storedKey;
+        this.serverKey = serverKey;
+    }
+
+    /**
+     * Derive a verifier for the password using a new random salt.
+     *
+     * @param password - the password, it is not modified.
+     * @param iterations - the PBKDF2 iteration count.
+     * @return the new verifier.
+     */
+    public static ScramVerifier derive(final char[] password, final int iterations) {
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+
+        byte[] saltedPassword = saltedPassword(password, salt, iterations);
+        try {
+            byte[] storedKey = sha256(hmac(saltedPassword, "Client Key"));
+            byte[] serverKey = hmac(saltedPassword, "Server Key");
+
+            return new ScramVerifier(salt, iterations, storedKey, serverKey);
+        } finally {
+            Arrays.fill(saltedPassword, (byte) 0x00);
+        }
+    }
+
+    public byte[] getSalt() {
+        return salt.clone();
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    byte[] getStoredKey() {
+        return storedKey;
+    }
+
+    byte[] getServerKey() {
+        return serverKey;
+    }
+
+    static byte[] saltedPassword(final char[] password, final byte[] salt, final int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, KEY_LENGTH * 8);
+        try {
+            return SecretKeyFactory.getInstance(PBKDF2_ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to derive salted password using " + PBKDF2_ALGORITHM, e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    static byte[] hmac(final byte[] key, final String value) {
+        return hmac(key, value.getBytes(UTF_8));
+    }
+
+    static byte[] hmac(final byte[] key, final byte[] value) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key, HMAC_ALGORITHM));
+
+            return mac.doFinal(value);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to calculate " + HMAC_ALGORITHM, e);
+        }
+    }
+
+    static byte[] sha256(final byte[] value) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(value);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to obtain SHA-256 MessageDigest", e);
+        }
+    }
+
+    static byte[] xor(final byte[] first, final byte[] second) {
+        byte[] result = new byte[first.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) (first[i] ^ second[i]);
+        }
+
+        return result;
+    }
+
+}
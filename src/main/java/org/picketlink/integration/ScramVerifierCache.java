@@ -0,0 +1,197 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.picketlink.idm.credential.Password;
+import org.picketlink.idm.model.IdentityType;
+
+/**
+ * A bounded cache of the {@link ScramVerifier} for each user required to serve a {@link ScramVerifierCallback} for
+ * SCRAM-SHA-256 authentication.
+ *
+ * As with the {@link DigestHashCache} the stores do not hold the verifier so it is derived whenever the cleartext password
+ * is available, that is when a {@link Password} is set through {@link IdentityManagement} or after a successful password
+ * verification. The PBKDF2 calculation is made once for each user instead of on each authentication, verifiers expire
+ * after the configured time to live and once the maximum size is reached the least recently used verifier is evicted.
+ *
+ * A verifier derived from a verified password is only cached if the credential of the user has not been updated or
+ * invalidated since {@link #generation(String)} was read before the verification, so a verifier for a replaced password is
+ * never cached after the verifier for its replacement.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class ScramVerifierCache implements IdentityChangeListener {
+
+    private final int iterations;
+    private final long timeToLive;
+    private final Map<String, Cached> verifiers;
+    private final InvalidationGenerations generations = new InvalidationGenerations();
+
+    public ScramVerifierCache(final int maxEntries, final long timeToLive, final TimeUnit unit) {
+        this(maxEntries, ScramVerifier.DEFAULT_ITERATIONS, timeToLive, unit);
+    }
+
+    /**
+     * @param maxEntries - the maximum number of verifiers to cache.
+     * @param iterations - the PBKDF2 iteration count for new verifiers.
+     * @param timeToLive - how long a verifier remains valid.
+     * @param unit - the unit of the time to live.
+     */
+    public ScramVerifierCache(final int maxEntries, final int iterations, final long timeToLive, final TimeUnit unit) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be greater than 0");
+        }
+        if (iterations < 1) {
+            throw new IllegalArgumentException("iterations must be greater than 0");
+        }
+
+        this.iterations = iterations;
+        this.timeToLive = unit.toNanos(timeToLive);
+        this.verifiers = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 2046658745218716262L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+                return size() > maxEntries;
+            }
+
+        };
+    }
+
+    /**
+     * @param username - the name of the user.
+     * @return the verifier for the user or null if it is not available.
+     */
+    public ScramVerifier getVerifier(final String username) {
+        synchronized (verifiers) {
+            Cached cached = verifiers.get(username);
+            if (cached == null) {
+                return null;
+            } else if (System.nanoTime() - cached.expires >= 0) {
+                verifiers.remove(username);
+                return null;
+            }
+
+            return cached.verifier;
+        }
+    }
+
+    /**
+     * @param username - the name of the user.
+     * @return the generation to pass to {@link #passwordVerified(String, String, long)}, to be read before the password is
+     *         verified.
+     */
+    public long generation(final String username) {
+        return generations.get(username);
+    }
+
+    /**
+     * Notification that a password has been successfully verified, if the verifier for the user is not already cached it
+     * is derived.
+     *
+     * @param username - the name of the user.
+     * @param password - the verified password.
+     * @param generation - the {@link #generation(String)} read before the password was verified.
+     */
+    public void passwordVerified(final String username, final String password, final long generation) {
+        if (generations.get(username) == generation && getVerifier(username) == null) {
+            cache(username, password.toCharArray(), generation);
+        }
+    }
+
+    public void invalidate(final String username) {
+        synchronized (verifiers) {
+            generations.invalidated(username);
+            verifiers.remove(username);
+        }
+    }
+
+    public void clear() {
+        synchronized (verifiers) {
+            generations.invalidatedAll();
+            verifiers.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (verifiers) {
+            return verifiers.size();
+        }
+    }
+
+    public void agentAdded(final String loginName) {
+        // Verifiers are derived once the credential is set.
+    }
+
+    public void credentialUpdated(final String loginName, final Object credential) {
+        long generation;
+        synchronized (verifiers) {
+            generations.invalidated(loginName);
+            verifiers.remove(loginName);
+            generation = generations.get(loginName);
+        }
+
+        if (credential instanceof Password) {
+            char[] password = ((Password) credential).getValue();
+            cache(loginName, Arrays.copyOf(password, password.length), generation);
+        }
+    }
+
+    public void runAsUpdated(final IdentityType authenticatedIdentity, final IdentityType authorizedAs, final boolean added) {
+        // Verifiers do not depend on run as relationships.
+    }
+
+    private void cache(final String username, final char[] password, final long generation) {
+        try {
+            // Derived outside of the lock as this is the expensive part.
+            ScramVerifier verifier = ScramVerifier.derive(password, iterations);
+            Cached cached = new Cached(verifier, System.nanoTime() + timeToLive);
+            synchronized (verifiers) {
+                // Discarded if the credential was updated or invalidated while deriving.
+                if (generations.get(username) == generation) {
+                    verifiers.put(username, cached);
+                }
+            }
+        } finally {
+            Arrays.fill(password, (char) 0x00);
+        }
+    }
+
+    private static final class Cached {
+
+        private final ScramVerifier verifier;
+        private final long expires;
+
+        private Cached(final ScramVerifier verifier, final long expires) {
+            this.verifier = verifier;
+            this.expires = expires;
+        }
+
+    }
+
+}
@@ -0,0 +1,44 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import javax.security.auth.callback.Callback;
+
+/**
+ * A {@link Callback} used by the SCRAM-SHA-256 {@link javax.security.sasl.SaslServer} to obtain the {@link ScramVerifier}
+ * of the user named by the accompanying {@link javax.security.auth.callback.NameCallback}.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class ScramVerifierCallback implements Callback {
+
+    private ScramVerifier verifier;
+
+    public ScramVerifier getVerifier() {
+        return verifier;
+    }
+
+    public void setVerifier(final ScramVerifier verifier) {
+        this.verifier = verifier;
+    }
+
+}
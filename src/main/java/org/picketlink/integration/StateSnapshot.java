@@ -0,0 +1,312 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A compact binary snapshot of the hot state of the integration written to a memory mapped file so that after a restart
+ * authentications can be served from the restored state immediately instead of from a cold {@link org.picketlink.idm.IdentityManager}.
+ *
+ * The snapshot is opened when this class is created, components created with the snapshot restore their state from it and
+ * register to be included when it is next written. The {@link RunAsIndex} and {@link UnknownAgentFilter} then revalidate
+ * against the store in the background. Credentials are never written, a {@link CredentialCache} always starts empty and
+ * passwords are verified against the store again after a restart.
+ *
+ * The whole file including the header is signed with an HMAC using a configured key, the HMAC is held at the end of the
+ * file. A missing, truncated, corrupt or modified file is ignored and each component loads from the store as it would
+ * without a snapshot.
+ *
+ * The snapshot should be written on shutdown with {@link #write()} and can also be written periodically with
+ * {@link #schedule(ScheduledExecutorService, long, TimeUnit)}, each write replaces the file atomically. Where the file
+ * system supports it the file is created readable and writable by the owner only.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class StateSnapshot {
+
+    static final int RUN_AS_INDEX = 2;
+    static final int UNKNOWN_AGENT_FILTER = 3;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x504C534E;
+    private static final int VERSION = 3;
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_LENGTH = 32;
+    private static final int MIN_KEY_LENGTH = 16;
+    // Magic, version and section count.
+    private static final int HEADER_LENGTH = 12;
+
+    private final File file;
+    private final SecretKeySpec key;
+    private final Map<Integer, ByteBuffer> sections;
+
+    private volatile RunAsIndex runAsIndex;
+    private volatile UnknownAgentFilter unknownAgentFilter;
+
+    /**
+     * @param file - the file to read the snapshot from and write it to.
+     * @param key - the key to sign and verify the snapshot with, at least 16 bytes.
+     */
+    public StateSnapshot(final File file, final byte[] key) {
+        if (key == null || key.length < MIN_KEY_LENGTH) {
+            throw new IllegalArgumentException("key must be at least " + MIN_KEY_LENGTH + " bytes");
+        }
+
+        this.file = file;
+        this.key = new SecretKeySpec(key, HMAC_ALGORITHM);
+        this.sections = open(file);
+    }
+
+    /**
+     * @return true if a valid snapshot was read from the file.
+     */
+    public boolean isAvailable() {
+        return sections.isEmpty() == false;
+    }
+
+    /**
+     * Write the state of the registered components to the file, replacing any previous snapshot.
+     *
+     * @throws IOException if the snapshot can not be written.
+     */
+    public synchronized void write() throws IOException {
+        Map<Integer, byte[]> content = new HashMap<Integer, byte[]>();
+        RunAsIndex runAsIndex = this.runAsIndex;
+        if (runAsIndex != null) {
+            content.put(RUN_AS_INDEX, serialize(runAsIndex));
+        }
+        UnknownAgentFilter unknownAgentFilter = this.unknownAgentFilter;
+        if (unknownAgentFilter != null) {
+            content.put(UNKNOWN_AGENT_FILTER, serialize(unknownAgentFilter));
+        }
+
+        int length = HEADER_LENGTH + MAC_LENGTH;
+        for (byte[] current : content.values()) {
+            length += 8 + current.length;
+        }
+
+        File temp = createTemp();
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        try {
+            raf.setLength(length);
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(content.size());
+            for (Map.Entry<Integer, byte[]> current : content.entrySet()) {
+                buffer.putInt(current.getKey().intValue());
+                buffer.putInt(current.getValue().length);
+                buffer.put(current.getValue());
+            }
+            buffer.put(mac(buffer, length - MAC_LENGTH));
+            buffer.force();
+        } finally {
+            raf.close();
+        }
+
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Periodically write the snapshot, a failed write is retried at the next period.
+     *
+     * @param executor - the {@link ScheduledExecutorService} to write the snapshot on.
+     * @param period - the period between writes.
+     * @param unit - the unit of the period.
+     * @return the {@link ScheduledFuture} to cancel the writes.
+     */
+    public ScheduledFuture<?> schedule(final ScheduledExecutorService executor, final long period, final TimeUnit unit) {
+        return executor.scheduleWithFixedDelay(new Runnable() {
+
+            public void run() {
+                try {
+                    write();
+                } catch (IOException e) {
+                    // The previous snapshot remains in place.
+                }
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * @return a read only view of the section or null if the snapshot does not contain it.
+     */
+    ByteBuffer getSection(final int tag) {
+        ByteBuffer section = sections.get(tag);
+
+        return section == null ? null : section.asReadOnlyBuffer();
+    }
+
+    void register(final RunAsIndex runAsIndex) {
+        this.runAsIndex = runAsIndex;
+    }
+
+    void register(final UnknownAgentFilter unknownAgentFilter) {
+        this.unknownAgentFilter = unknownAgentFilter;
+    }
+
+    static String readString(final ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+
+        return new String(bytes, UTF_8);
+    }
+
+    static void writeString(final DataOutputStream out, final String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] serialize(final RunAsIndex runAsIndex) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        runAsIndex.writeSnapshot(out);
+        out.flush();
+
+        return bytes.toByteArray();
+    }
+
+    private static byte[] serialize(final UnknownAgentFilter unknownAgentFilter) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        unknownAgentFilter.writeSnapshot(out);
+        out.flush();
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Create an empty temporary file next to the snapshot, readable and writable by the owner only if the file system
+     * supports POSIX permissions.
+     */
+    private File createTemp() throws IOException {
+        Path temp = new File(file.getPath() + ".tmp").toPath();
+        // A file left by a failed write may have been created with other permissions.
+        Files.deleteIfExists(temp);
+        try {
+            Files.createFile(temp, PosixFilePermissions.asFileAttribute(EnumSet.of(PosixFilePermission.OWNER_READ,
+                    PosixFilePermission.OWNER_WRITE)));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(temp);
+        }
+
+        return temp.toFile();
+    }
+
+    private Map<Integer, ByteBuffer> open(final File file) {
+        if (file.isFile() == false || file.length() < HEADER_LENGTH + MAC_LENGTH || file.length() > Integer.MAX_VALUE) {
+            return Collections.emptyMap();
+        }
+
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            MappedByteBuffer buffer;
+            try {
+                // The mapping remains valid after the file is closed.
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+
+            // Nothing is read from the file until the HMAC of everything before it has been verified.
+            int end = buffer.capacity() - MAC_LENGTH;
+            byte[] expected = new byte[MAC_LENGTH];
+            buffer.position(end);
+            buffer.get(expected);
+            if (MessageDigest.isEqual(expected, mac(buffer, end)) == false) {
+                return Collections.emptyMap();
+            }
+
+            buffer.position(0);
+            buffer.limit(end);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return Collections.emptyMap();
+            }
+            int count = buffer.getInt();
+            Map<Integer, ByteBuffer> sections = new HashMap<Integer, ByteBuffer>();
+            for (int i = 0; i < count; i++) {
+                int tag = buffer.getInt();
+                int length = buffer.getInt();
+                ByteBuffer section = buffer.slice();
+                section.limit(length);
+                sections.put(tag, section);
+                buffer.position(buffer.position() + length);
+            }
+
+            return sections;
+        } catch (IOException e) {
+            return Collections.emptyMap();
+        } catch (RuntimeException e) {
+            // Truncated or corrupt content.
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * @return the HMAC of the content of the buffer from the start to the specified end, i.e. the header and the sections.
+     */
+    private byte[] mac(final ByteBuffer buffer, final int end) {
+        ByteBuffer content = buffer.duplicate();
+        content.limit(end);
+        content.position(0);
+
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(key);
+            mac.update(content);
+
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to initialise " + HMAC_ALGORITHM, e);
+        }
+    }
+
+}
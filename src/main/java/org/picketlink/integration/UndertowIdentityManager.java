@@ -0,0 +1,144 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import io.undertow.security.idm.Account;
+import io.undertow.security.idm.Credential;
+import io.undertow.security.idm.IdentityManager;
+import io.undertow.security.idm.PasswordCredential;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.Set;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.sasl.AuthorizeCallback;
+
+import org.jboss.sasl.callback.VerifyPasswordCallback;
+
+/**
+ * An Undertow {@link IdentityManager} that verifies passwords and run as requests using the same
+ * {@link CallbackHandler}, normally a {@link PicketLinkCallbackHandler}, as SASL authentication so that the same caches,
+ * indexes and throttling apply to HTTP authentication.
+ *
+ * Only {@link PasswordCredential}s are supported, the resulting {@link Account} has no roles.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class UndertowIdentityManager implements IdentityManager {
+
+    private final CallbackHandler callbackHandler;
+
+    public UndertowIdentityManager(final CallbackHandler callbackHandler) {
+        this.callbackHandler = callbackHandler;
+    }
+
+    public Account verify(final Account account) {
+        // The account was verified when it was established.
+        return account;
+    }
+
+    public Account verify(final String id, final Credential credential) {
+        if (credential instanceof PasswordCredential == false) {
+            return null;
+        }
+
+        char[] password = ((PasswordCredential) credential).getPassword();
+        VerifyPasswordCallback vpc = new VerifyPasswordCallback(new String(password));
+        if (handle(new NameCallback("Username", id), vpc) && vpc.isVerified()) {
+            return new PicketLinkAccount(id);
+        }
+
+        return null;
+    }
+
+    public Account verify(final Credential credential) {
+        // Credentials that identify the account themselves are not supported.
+        return null;
+    }
+
+    /**
+     * Check if an authenticated account is permitted to run as another identity.
+     *
+     * @param account - the authenticated account.
+     * @param authorizationId - the login name of the identity to run as.
+     * @return the {@link Account} to run as or null if not permitted.
+     */
+    public Account runAs(final Account account, final String authorizationId) {
+        AuthorizeCallback acb = new AuthorizeCallback(account.getPrincipal().getName(), authorizationId);
+        if (handle(acb) && acb.isAuthorized()) {
+            return new PicketLinkAccount(authorizationId);
+        }
+
+        return null;
+    }
+
+    /**
+     * @return true if the callbacks were handled, false if the handler rejected the request e.g. as it was throttled.
+     */
+    private boolean handle(final Callback... callbacks) {
+        try {
+            callbackHandler.handle(callbacks);
+
+            return true;
+        } catch (IOException e) {
+            return false;
+        } catch (UnsupportedCallbackException e) {
+            return false;
+        }
+    }
+
+    private static final class PicketLinkAccount implements Account, Principal, Serializable {
+
+        private static final long serialVersionUID = -2236917562429361406L;
+
+        private final String name;
+
+        private PicketLinkAccount(final String name) {
+            this.name = name;
+        }
+
+        public Principal getPrincipal() {
+            return this;
+        }
+
+        public Set<String> getRoles() {
+            return Collections.emptySet();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+
+    }
+
+}
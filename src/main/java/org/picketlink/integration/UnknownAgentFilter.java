@@ -0,0 +1,255 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.picketlink.idm.IdentityManager;
+import org.picketlink.idm.model.Agent;
+import org.picketlink.idm.model.IdentityType;
+import org.picketlink.idm.query.IdentityQuery;
+
+/**
+ * A filter to reject unknown login names without accessing the {@link IdentityManager}.
+ *
+ * A {@link BloomFilter} is built from the login names of every {@link Agent} in the store, a name not in the filter
+ * definitely does not exist. To catch the false positives of the filter names confirmed as not existing by the store are
+ * held in a short lived bounded negative cache.
+ *
+ * Agents added through {@link IdentityManagement} are added to the filter as they are created, as entries can not be
+ * removed from a {@link BloomFilter} {@link #rebuild()} should be called periodically if agents are removed or the number of
+ * agents grows beyond the expected number. Agents added while a rebuild is in progress are recorded and added to the new
+ * filter before it replaces the current one.
+ *
+ * If created with a {@link StateSnapshot} containing a filter of the same dimensions that filter is used immediately and
+ * rebuilt in the background, until the rebuild completes agents added to the store after the snapshot was written by means
+ * other than {@link IdentityManagement} are rejected.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class UnknownAgentFilter implements IdentityChangeListener {
+
+    private static final int PAGE_SIZE = 1000;
+
+    private final IdentityManager identityManager;
+    private final long expectedAgents;
+    private final double falsePositiveProbability;
+    private final long negativeTimeToLive;
+    private final Map<String, Long> negativeCache;
+
+    private final AtomicLong rejected = new AtomicLong();
+    // The agents added during each rebuild in progress, also the lock for adding to and replacing the filter.
+    private final List<List<String>> rebuildsInProgress = new ArrayList<List<String>>();
+
+    private volatile BloomFilter filter;
+
+    public UnknownAgentFilter(final IdentityManager identityManager, final long expectedAgents,
+            final double falsePositiveProbability, final int maxNegativeEntries, final long negativeTimeToLive,
+            final TimeUnit unit) {
+        this(identityManager, expectedAgents, falsePositiveProbability, maxNegativeEntries, negativeTimeToLive, unit, null,
+                null);
+    }
+
+    /**
+     * @param executor - the {@link Executor} to rebuild a filter restored from the snapshot on, if null the filter is rebuilt
+     *        on the calling thread.
+     * @param snapshot - an optional {@link StateSnapshot} to restore the filter from, the filter is included when the
+     *        snapshot is next written.
+     */
+    public UnknownAgentFilter(final IdentityManager identityManager, final long expectedAgents,
+            final double falsePositiveProbability, final int maxNegativeEntries, final long negativeTimeToLive,
+            final TimeUnit unit, final Executor executor, final StateSnapshot snapshot) {
+        if (maxNegativeEntries < 1) {
+            throw new IllegalArgumentException("maxNegativeEntries must be greater than 0");
+        }
+
+        this.identityManager = identityManager;
+        this.expectedAgents = expectedAgents;
+        this.falsePositiveProbability = falsePositiveProbability;
+        this.negativeTimeToLive = unit.toNanos(negativeTimeToLive);
+        this.negativeCache = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 6408391717302093361L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxNegativeEntries;
+            }
+
+        };
+
+        BloomFilter restored = snapshot == null ? null : restore(snapshot.getSection(StateSnapshot.UNKNOWN_AGENT_FILTER));
+        if (restored == null) {
+            rebuild();
+        } else {
+            filter = restored;
+            if (executor == null) {
+                rebuild();
+            } else {
+                executor.execute(new Runnable() {
+
+                    public void run() {
+                        rebuild();
+                    }
+                });
+            }
+        }
+        if (snapshot != null) {
+            snapshot.register(this);
+        }
+    }
+
+    /**
+     * Check if an agent with the supplied login name might exist.
+     *
+     * @param loginName - the login name to check.
+     * @return false if the agent definitely does not exist, true if it might.
+     */
+    public boolean mightExist(final String loginName) {
+        if (filter.mightContain(loginName) == false) {
+            rejected.incrementAndGet();
+            return false;
+        }
+
+        synchronized (negativeCache) {
+            Long expires = negativeCache.get(loginName);
+            if (expires != null) {
+                if (System.nanoTime() - expires.longValue() < 0) {
+                    rejected.incrementAndGet();
+                    return false;
+                }
+                negativeCache.remove(loginName);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Notification that the store has confirmed that the agent does not exist.
+     *
+     * @param loginName - the login name that was not found.
+     */
+    public void agentNotFound(final String loginName) {
+        Long expires = Long.valueOf(System.nanoTime() + negativeTimeToLive);
+        synchronized (negativeCache) {
+            negativeCache.put(loginName, expires);
+        }
+    }
+
+    /**
+     * Rebuild the filter from the login names of all agents in the store.
+     */
+    public void rebuild() {
+        List<String> added = new ArrayList<String>();
+        synchronized (rebuildsInProgress) {
+            rebuildsInProgress.add(added);
+        }
+        try {
+            BloomFilter newFilter = load();
+            synchronized (rebuildsInProgress) {
+                for (String current : added) {
+                    newFilter.add(current);
+                }
+                filter = newFilter;
+            }
+        } finally {
+            synchronized (rebuildsInProgress) {
+                rebuildsInProgress.remove(added);
+            }
+        }
+
+        synchronized (negativeCache) {
+            negativeCache.clear();
+        }
+    }
+
+    private BloomFilter load() {
+        BloomFilter newFilter = new BloomFilter(expectedAgents, falsePositiveProbability);
+
+        int offset = 0;
+        List<Agent> page;
+        do {
+            IdentityQuery<Agent> query = identityManager.createIdentityQuery(Agent.class);
+            query.setOffset(offset);
+            query.setLimit(PAGE_SIZE);
+            page = query.getResultList();
+            for (Agent current : page) {
+                newFilter.add(current.getLoginName());
+            }
+            offset += page.size();
+        } while (page.size() == PAGE_SIZE);
+
+        return newFilter;
+    }
+
+    void writeSnapshot(final DataOutputStream out) throws IOException {
+        filter.writeTo(out);
+    }
+
+    private BloomFilter restore(final ByteBuffer section) {
+        if (section == null) {
+            return null;
+        }
+
+        BloomFilter restored = new BloomFilter(expectedAgents, falsePositiveProbability);
+        try {
+            return restored.readFrom(section) ? restored : null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public void agentAdded(final String loginName) {
+        synchronized (rebuildsInProgress) {
+            filter.add(loginName);
+            for (List<String> current : rebuildsInProgress) {
+                current.add(loginName);
+            }
+        }
+        synchronized (negativeCache) {
+            negativeCache.remove(loginName);
+        }
+    }
+
+    public void credentialUpdated(final String loginName, final Object credential) {
+        // Credentials do not affect if an agent exists.
+    }
+
+    public void runAsUpdated(final IdentityType authenticatedIdentity, final IdentityType authorizedAs, final boolean added) {
+        // Relationships do not affect if an agent exists.
+    }
+
+}
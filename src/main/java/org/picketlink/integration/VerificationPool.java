@@ -0,0 +1,212 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A dedicated pool of threads for the CPU bound password hash verification performed by
+ * {@link org.picketlink.idm.IdentityManager#validateCredentials(org.picketlink.idm.credential.Credentials)}, isolating the
+ * cost of verification from the threads handling connections.
+ *
+ * The pool has a fixed number of threads, by default one per available processor, and a bounded queue. Once the queue is
+ * full further verifications are rejected immediately and a verification not completed within its deadline is abandoned,
+ * if it has not started it is removed from the queue so no time is spent on a verification nobody is waiting for. The
+ * deadline is taken for each verification, e.g. from the time remaining for the exchange, or defaults to the deadline the
+ * pool was created with. Both
+ * are reported to the caller as an {@link IOException} without a stack trace so shedding load stays cheap.
+ *
+ * Unlike the {@link AsyncCallbackHandler} only the verification is moved to the pool, the remaining callbacks are handled on
+ * the calling thread.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class VerificationPool {
+
+    private final ThreadPoolExecutor executor;
+    private final long deadline;
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+
+    /**
+     * Create a pool with a thread for each available processor.
+     *
+     * @param queueSize - the maximum number of verifications waiting for a thread.
+     * @param deadline - the default maximum time to wait for a verification to complete.
+     * @param unit - the unit of the deadline.
+     */
+    public VerificationPool(final int queueSize, final long deadline, final TimeUnit unit) {
+        this(Runtime.getRuntime().availableProcessors(), queueSize, deadline, unit);
+    }
+
+    /**
+     * @param threads - the number of verification threads.
+     * @param queueSize - the maximum number of verifications waiting for a thread.
+     * @param deadline - the default maximum time to wait for a verification to complete.
+     * @param unit - the unit of the deadline.
+     */
+    public VerificationPool(final int threads, final int queueSize, final long deadline, final TimeUnit unit) {
+        if (threads < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("threads and queueSize must be greater than 0");
+        }
+
+        this.deadline = unit.toNanos(deadline);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+                queueSize), new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(r, "picketlink-verification-" + count.incrementAndGet());
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        }, new ThreadPoolExecutor.AbortPolicy());
+        this.executor.prestartAllCoreThreads();
+    }
+
+    /**
+     * Run the verification on the pool and wait for the result up to the default deadline of the pool.
+     *
+     * @param verification - the verification to run.
+     * @return the result of the verification.
+     * @throws IOException if the verification is rejected or does not complete within the deadline.
+     */
+    public boolean verify(final Callable<Boolean> verification) throws IOException {
+        return verify(verification, deadline, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Run the verification on the pool and wait for the result.
+     *
+     * @param verification - the verification to run.
+     * @param deadline - the maximum time to wait for this verification to complete.
+     * @param unit - the unit of the deadline.
+     * @return the result of the verification.
+     * @throws IOException if the verification is rejected or does not complete within the deadline.
+     */
+    public boolean verify(final Callable<Boolean> verification, final long deadline, final TimeUnit unit)
+            throws IOException {
+        if (deadline <= 0) {
+            // Nobody would wait for the result.
+            expired.incrementAndGet();
+            throw new ShedException("Verification deadline exceeded.");
+        }
+
+        Future<Boolean> result;
+        try {
+            result = executor.submit(verification);
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw new ShedException("Verification queue full.");
+        }
+
+        try {
+            boolean verified = result.get(deadline, unit).booleanValue();
+            completed.incrementAndGet();
+
+            return verified;
+        } catch (TimeoutException e) {
+            // If still queued the verification will not be run, if running it is left to complete.
+            result.cancel(false);
+            executor.remove((Runnable) result);
+            expired.incrementAndGet();
+            throw new ShedException("Verification deadline exceeded.");
+        } catch (CancellationException e) {
+            expired.incrementAndGet();
+            throw new ShedException("Verification cancelled.");
+        } catch (InterruptedException e) {
+            result.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for verification.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Stop the verification threads once queued verifications have completed.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public int getThreadCount() {
+        return executor.getCorePoolSize();
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    /**
+     * Thrown when a verification is shed, no stack trace is filled in as it is thrown when the server is already overloaded.
+     */
+    private static final class ShedException extends IOException {
+
+        private static final long serialVersionUID = 1744934185437215337L;
+
+        private ShedException(final String message) {
+            super(message);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+
+    }
+
+}
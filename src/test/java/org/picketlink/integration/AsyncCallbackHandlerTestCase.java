@@ -0,0 +1,153 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+
+import org.junit.Test;
+
+/**
+ * Test case to verify the bounding of pending requests by the {@link AsyncCallbackHandler}.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class AsyncCallbackHandlerTestCase {
+
+    @Test
+    public void pendingLimitRejects() throws Exception {
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        CallbackHandler blocking = new CallbackHandler() {
+
+            public void handle(Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+
+        ExecutorService executor = AsyncCallbackHandler.createExecutor(2, 10);
+        try {
+            AsyncCallbackHandler handler = new AsyncCallbackHandler(blocking, executor, 2);
+            Callback[] callbacks = new Callback[] { new NameCallback("Username") };
+            CompletableFuture<Callback[]> first = handler.handle(callbacks).toCompletableFuture();
+            CompletableFuture<Callback[]> second = handler.handle(callbacks).toCompletableFuture();
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            assertEquals(2, handler.getPendingCount());
+
+            // Rejected immediately without waiting for a pending request to complete.
+            assertRejected(handler.handle(callbacks).toCompletableFuture());
+            assertEquals(1, handler.getRejectedCount());
+            assertEquals(2, handler.getSubmittedCount());
+
+            release.countDown();
+            assertSame(callbacks, first.get(5, TimeUnit.SECONDS));
+            assertSame(callbacks, second.get(5, TimeUnit.SECONDS));
+            assertEquals(2, handler.getCompletedCount());
+            assertEquals(0, handler.getPendingCount());
+
+            // Capacity is available again once requests complete.
+            assertSame(callbacks, handler.handle(callbacks).toCompletableFuture().get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void executorRejectionReleasesPermit() throws Exception {
+        CallbackHandler delegate = new CallbackHandler() {
+
+            public void handle(Callback[] callbacks) {
+            }
+        };
+        Executor rejecting = new Executor() {
+
+            public void execute(final Runnable command) {
+                throw new RejectedExecutionException("Queue full.");
+            }
+        };
+
+        AsyncCallbackHandler handler = new AsyncCallbackHandler(delegate, rejecting, 1);
+        assertRejected(handler.handle(new Callback[0]).toCompletableFuture());
+        assertRejected(handler.handle(new Callback[0]).toCompletableFuture());
+
+        assertEquals(2, handler.getRejectedCount());
+        assertEquals(0, handler.getSubmittedCount());
+        assertEquals(0, handler.getPendingCount());
+    }
+
+    @Test
+    public void blockingHandlerPropagatesFailure() throws Exception {
+        CallbackHandler failing = new CallbackHandler() {
+
+            public void handle(Callback[] callbacks) throws IOException {
+                throw new IOException("Store unavailable.");
+            }
+        };
+        Executor direct = new Executor() {
+
+            public void execute(final Runnable command) {
+                command.run();
+            }
+        };
+
+        CallbackHandler handler = new AsyncCallbackHandler(failing, direct, 1).asCallbackHandler();
+        try {
+            handler.handle(new Callback[0]);
+            fail("Expected exception not thrown.");
+        } catch (IOException expected) {
+            assertEquals("Store unavailable.", expected.getMessage());
+        }
+    }
+
+    private static void assertRejected(final CompletableFuture<Callback[]> result) throws InterruptedException {
+        assertTrue(result.isDone());
+        try {
+            result.get();
+            fail("Expected exception not thrown.");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+}
@@ -0,0 +1,237 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.picketlink.integration.AuditLog.OverflowPolicy;
+import org.picketlink.integration.HandlerMetricsListener.CallbackType;
+import org.picketlink.integration.HandlerMetricsListener.Result;
+
+/**
+ * Test case to verify writing an {@link AuditLog} and reading it with an {@link AuditLogReader}.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class AuditLogTestCase {
+
+    private static final int SEGMENT_SIZE = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void eventFields() throws Exception {
+        AuditLog log = new AuditLog(folder.getRoot(), 16, SEGMENT_SIZE, 2, OverflowPolicy.BLOCK);
+        assertTrue(log.publish(CallbackType.AUTHORIZE, Result.REJECTED, "Oliver", "Jack", "ManagementRealm", "PLAIN",
+                "127.0.0.1", 1234));
+        log.close();
+
+        List<AuditLogReader.Event> events = readAll(folder.getRoot());
+        assertEquals(1, events.size());
+        AuditLogReader.Event event = events.get(0);
+        assertEquals(CallbackType.AUTHORIZE, event.getType());
+        assertEquals(Result.REJECTED, event.getResult());
+        assertEquals("Oliver", event.getUser());
+        assertEquals("Jack", event.getAuthorizationId());
+        assertEquals("ManagementRealm", event.getRealm());
+        assertEquals("PLAIN", event.getMechanism());
+        assertEquals("127.0.0.1", event.getSource());
+        assertEquals(1234, event.getDurationNanos());
+    }
+
+    @Test
+    public void orderingUnderConcurrentProducers() throws Exception {
+        final int producers = 4;
+        final int eventsEach = 2000;
+        // A small ring so producers regularly block waiting for space.
+        final AuditLog log = new AuditLog(folder.getRoot(), 8, SEGMENT_SIZE, 10, OverflowPolicy.BLOCK);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger rejected = new AtomicInteger();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < producers; i++) {
+            final String user = "Producer" + i;
+            Thread thread = new Thread(new Runnable() {
+
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < eventsEach; j++) {
+                        if (log.publish(CallbackType.VERIFY_PASSWORD, Result.VERIFIED, user, String.valueOf(j), null, null,
+                                null, 0) == false) {
+                            rejected.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread current : threads) {
+            current.join();
+        }
+        log.close();
+
+        assertEquals(0, rejected.get());
+        assertEquals(0, log.getDroppedCount());
+        assertEquals(producers * eventsEach, log.getWrittenCount());
+
+        int[] expected = new int[producers];
+        for (AuditLogReader.Event current : readAll(folder.getRoot())) {
+            int producer = Integer.parseInt(current.getUser().substring("Producer".length()));
+            // The events of each producer are written in the order published.
+            assertEquals(expected[producer]++, Integer.parseInt(current.getAuthorizationId()));
+        }
+        for (int current : expected) {
+            assertEquals(eventsEach, current);
+        }
+    }
+
+    @Test
+    public void dropCounting() throws Exception {
+        int total = 20000;
+        AuditLog log = new AuditLog(folder.getRoot(), 1, SEGMENT_SIZE, 10, OverflowPolicy.DROP);
+        int accepted = 0;
+        for (int i = 0; i < total; i++) {
+            if (log.publish(CallbackType.VERIFY_PASSWORD, Result.VERIFIED, "Jack", null, null, null, null, 0)) {
+                accepted++;
+            }
+        }
+        log.close();
+
+        // Every event is either written or counted as dropped.
+        assertEquals(accepted, log.getWrittenCount());
+        assertEquals(total - accepted, log.getDroppedCount());
+        assertEquals(accepted, readAll(folder.getRoot()).size());
+
+        // Nothing is accepted once closed.
+        assertFalse(log.publish(CallbackType.VERIFY_PASSWORD, Result.VERIFIED, "Jack", null, null, null, null, 0));
+        assertEquals(total - accepted + 1, log.getDroppedCount());
+        assertEquals(0, log.getPendingCount());
+    }
+
+    @Test
+    public void publishAfterCloseDropped() throws Exception {
+        AuditLog log = new AuditLog(folder.getRoot(), 16, SEGMENT_SIZE, 2, OverflowPolicy.BLOCK);
+        log.close();
+
+        assertFalse(log.publish(CallbackType.VERIFY_PASSWORD, Result.VERIFIED, "Jack", null, null, null, null, 0));
+        assertEquals(1, log.getDroppedCount());
+        assertEquals(0, log.getWrittenCount());
+    }
+
+    @Test
+    public void segmentRotationAndRetention() throws Exception {
+        // Four events to each segment, two segments retained.
+        AuditLog log = new AuditLog(folder.getRoot(), 16, AuditLog.HEADER_SIZE + 4 * AuditLog.EVENT_SIZE, 2,
+                OverflowPolicy.BLOCK);
+        for (int i = 0; i < 22; i++) {
+            assertTrue(log.publish(CallbackType.VERIFY_PASSWORD, Result.VERIFIED, "User" + i, null, null, null, null, 0));
+        }
+        log.close();
+
+        File[] segments = AuditLog.listSegments(folder.getRoot());
+        assertEquals(2, segments.length);
+        assertEquals(4, AuditLog.segmentIndex(segments[0]));
+        assertEquals(5, AuditLog.segmentIndex(segments[1]));
+
+        List<AuditLogReader.Event> events = readAll(folder.getRoot());
+        assertEquals(6, events.size());
+        for (int i = 0; i < events.size(); i++) {
+            assertEquals("User" + (16 + i), events.get(i).getUser());
+        }
+
+        // A new log continues from the last segment.
+        log = new AuditLog(folder.getRoot(), 16, AuditLog.HEADER_SIZE + 4 * AuditLog.EVENT_SIZE, 2, OverflowPolicy.BLOCK);
+        log.close();
+        segments = AuditLog.listSegments(folder.getRoot());
+        assertEquals(6, AuditLog.segmentIndex(segments[1]));
+    }
+
+    @Test
+    public void readerFollowsLiveSegment() throws Exception {
+        AuditLog log = new AuditLog(folder.getRoot(), 16, AuditLog.HEADER_SIZE + 4 * AuditLog.EVENT_SIZE, 10,
+                OverflowPolicy.BLOCK);
+        AuditLogReader reader = new AuditLogReader(folder.getRoot());
+        Collector collector = new Collector();
+        assertEquals(0, reader.poll(collector));
+
+        int published = 0;
+        for (int round = 0; round < 4; round++) {
+            // Three events each round so the reader is left part way through a segment.
+            for (int i = 0; i < 3; i++) {
+                log.publish(CallbackType.AUTHORIZE, Result.VERIFIED, "User" + published++, null, null, null, null, 0);
+            }
+            awaitWritten(log, published);
+            reader.poll(collector);
+            assertEquals(published, collector.events.size());
+        }
+        log.close();
+
+        assertEquals(0, reader.poll(collector));
+        for (int i = 0; i < published; i++) {
+            assertEquals("User" + i, collector.events.get(i).getUser());
+        }
+    }
+
+    private static void awaitWritten(final AuditLog log, final long count) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 10000;
+        while (log.getWrittenCount() < count) {
+            assertTrue("Events not written", System.currentTimeMillis() < timeout);
+            Thread.sleep(1);
+        }
+    }
+
+    private static List<AuditLogReader.Event> readAll(final File directory) throws Exception {
+        Collector collector = new Collector();
+        new AuditLogReader(directory).poll(collector);
+
+        return collector.events;
+    }
+
+    private static class Collector implements AuditLogReader.Listener {
+
+        private final List<AuditLogReader.Event> events = new ArrayList<AuditLogReader.Event>();
+
+        public void event(final AuditLogReader.Event event) {
+            events.add(event);
+        }
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.sasl.Sasl;
+import javax.security.sasl.SaslClient;
+import javax.security.sasl.SaslServer;
+
+import org.junit.Test;
+
+/**
+ * Test case to verify the use of an {@link AuthorizationCache} with the {@link PicketLinkCallbackHandler}.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class AuthorizationCacheTestCase extends AbstractTestBase {
+
+    private static final String PLAIN = "PLAIN";
+
+    @Test
+    public void repeatedAuthorizationUsesCache() throws Exception {
+        CountingIdentityManager counting = new CountingIdentityManager(getIdentityManager());
+        AuthorizationCache cache = new AuthorizationCache(100, 5, 5, TimeUnit.MINUTES);
+        PicketLinkCallbackHandler serverCallback = new PicketLinkCallbackHandler(counting.getIdentityManager());
+        serverCallback.setAuthorizationCache(cache);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(authenticate(serverCallback, "Oliver", "Harry"));
+            assertFalse(authenticate(serverCallback, "Harry", "Oliver"));
+        }
+
+        // Both the grant and the denial are only queried once.
+        assertEquals(2, counting.getCount("createRelationshipQuery"));
+        assertEquals(8, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void runAsUpdateInvalidates() throws Exception {
+        addUser("Reggie", "Reggie_Password");
+        addUser("Ronnie", "Ronnie_Password");
+
+        AuthorizationCache cache = new AuthorizationCache(100, 5, 5, TimeUnit.MINUTES);
+        IdentityManagement management = new IdentityManagement(getIdentityManager());
+        management.addListener(cache);
+        PicketLinkCallbackHandler serverCallback = new PicketLinkCallbackHandler(getIdentityManager());
+        serverCallback.setAuthorizationCache(cache);
+
+        assertFalse(authenticate(serverCallback, "Reggie", "Ronnie"));
+        assertEquals(Boolean.FALSE, cache.get("Reggie", "Ronnie"));
+
+        RunAsRelationship relationship = new RunAsRelationship();
+        relationship.setAuthenticatedIdentity(getIdentityManager().getAgent("Reggie"));
+        relationship.setAuthorizedAs(getIdentityManager().getAgent("Ronnie"));
+        management.addRunAsRelationship(relationship);
+        assertNull(cache.get("Reggie", "Ronnie"));
+        assertTrue(authenticate(serverCallback, "Reggie", "Ronnie"));
+
+        management.removeRunAsRelationship(relationship);
+        assertNull(cache.get("Reggie", "Ronnie"));
+        assertFalse(authenticate(serverCallback, "Reggie", "Ronnie"));
+    }
+
+    @Test
+    public void expiredDecisionsIgnored() throws Exception {
+        AuthorizationCache cache = new AuthorizationCache(16, 5, 0, TimeUnit.MINUTES);
+
+        cache.put("Oliver", "Harry", true, cache.generation("Oliver"));
+        cache.put("Harry", "Oliver", false, cache.generation("Harry"));
+        assertEquals(Boolean.TRUE, cache.get("Oliver", "Harry"));
+        assertNull(cache.get("Harry", "Oliver"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void revokedDuringCheckNotCached() throws Exception {
+        AuthorizationCache cache = new AuthorizationCache(16, 5, 5, TimeUnit.MINUTES);
+
+        long generation = cache.generation("Oliver");
+        // The grant is revoked after the store was queried but before the decision is cached.
+        cache.invalidate("Oliver", "Harry");
+        cache.put("Oliver", "Harry", true, generation);
+        assertNull(cache.get("Oliver", "Harry"));
+
+        generation = cache.generation("Sophie");
+        cache.clear();
+        cache.put("Sophie", "Emily", true, generation);
+        assertEquals(0, cache.size());
+
+        cache.put("Oliver", "Harry", true, cache.generation("Oliver"));
+        assertEquals(Boolean.TRUE, cache.get("Oliver", "Harry"));
+    }
+
+    @Test
+    public void unknownIdentitiesClearAll() throws Exception {
+        AuthorizationCache cache = new AuthorizationCache(16, 5, 5, TimeUnit.MINUTES);
+
+        cache.put("Oliver", "Harry", true, cache.generation("Oliver"));
+        cache.put("Sophie", "Emily", true, cache.generation("Sophie"));
+        cache.runAsUpdated(null, null, false);
+        assertEquals(0, cache.size());
+    }
+
+    private boolean authenticate(final CallbackHandler serverCallback, final String username, final String authorizationId)
+            throws Exception {
+        SaslServer server = Sasl.createSaslServer(PLAIN, "TestProtocol", "TestServer", Collections.<String, Object> emptyMap(),
+                serverCallback);
+
+        CallbackHandler clientCallback = new ClientCallbackHandler(username, (username + "_Password").toCharArray());
+        SaslClient client = Sasl.createSaslClient(new String[] { PLAIN }, authorizationId, "TestProtocol", "TestServer",
+                Collections.<String, Object> emptyMap(), clientCallback);
+
+        try {
+            server.evaluateResponse(client.evaluateChallenge(new byte[0]));
+        } catch (IOException e) {
+            assertFalse(server.isComplete());
+            return false;
+        }
+
+        assertTrue(server.isComplete());
+        return true;
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.integration;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Test case to test the {@link BulkAuthorizer} both against the store and against a {@link RunAsIndex}.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class BulkAuthorizerTestCase extends AbstractTestBase {
+
+    private static final List<AuthorizationPair> PAIRS = Arrays.asList(new AuthorizationPair("Oliver", "Harry"),
+            new AuthorizationPair("Harry", "Oliver"), new AuthorizationPair("Jack", "Jack"),
+            new AuthorizationPair("Sophie", "Emily"), new AuthorizationPair("Emily", "Sophie"),
+            new AuthorizationPair("Oliver", "Jack"), new AuthorizationPair("Unknown", "Jack"),
+            new AuthorizationPair("Oliver", "Harry"));
+
+    private static final BitSet EXPECTED = bits(0, 2, 3, 4, 7);
+
+    @Test
+    public void authorizeFromStore() {
+        CountingIdentityManager counting = new CountingIdentityManager(getIdentityManager());
+        BulkAuthorizer authorizer = new BulkAuthorizer(counting.getIdentityManager());
+
+        assertEquals(EXPECTED, authorizer.authorize(PAIRS));
+        // One query for all of the authenticated identities and one for all of their relationships.
+        assertEquals(0, counting.getCount("getAgent"));
+        assertEquals(1, counting.getCount("createIdentityQuery"));
+        assertEquals(1, counting.getCount("createRelationshipQuery"));
+    }
+
+    @Test
+    public void authorizeFromIndex() {
+        RunAsIndex index = new RunAsIndex(getIdentityManager());
+        CountingIdentityManager counting = new CountingIdentityManager(getIdentityManager());
+        BulkAuthorizer authorizer = new BulkAuthorizer(counting.getIdentityManager(), index);
+
+        assertEquals(EXPECTED, authorizer.authorize(PAIRS));
+        assertEquals(0, counting.getCount("getAgent"));
+        assertEquals(0, counting.getCount("createRelationshipQuery"));
+    }
+
+    @Test
+    public void emptyRequest() {
+        BulkAuthorizer authorizer = new BulkAuthorizer(getIdentityManager());
+
+        assertEquals(new BitSet(), authorizer.authorize(Arrays.<AuthorizationPair> asList()));
+    }
+
+    @Test
+    public void unknownIdentitiesNotQueried() {
+        CountingIdentityManager counting = new CountingIdentityManager(getIdentityManager());
+        BulkAuthorizer authorizer = new BulkAuthorizer(counting.getIdentityManager());
+
+        assertEquals(bits(0), authorizer.authorize(Arrays.asList(new AuthorizationPair("Jack", "Jack"),
+                new AuthorizationPair("Unknown", "Jack"))));
+        assertEquals(1, counting.getCount("createIdentityQuery"));
+        // Relationships are not queried if none of the authenticated identities exist.
+        assertEquals(0, counting.getCount("createRelationshipQuery"));
+    }
+
+    private static BitSet bits(final int... indexes) {
+        BitSet bits = new BitSet();
+        for (int current : indexes) {
+            bits.set(current);
+        }
+
+        return bits;
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.picketlink.idm.credential.Credentials.Status;
+import org.picketlink.idm.credential.Password;
+import org.picketlink.idm.credential.UsernamePasswordCredentials;
+
+/**
+ * Test case to test the import of users and {@link RunAsRelationship}s by the {@link BulkImporter}.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class BulkImporterTestCase extends AbstractTestBase {
+
+    private static final String REALM = "ManagementRealm";
+
+    @Test
+    public void usersAndRelationships() throws Exception {
+        CountingIdentityManager counting = new CountingIdentityManager(getIdentityManager());
+        BulkImporter importer = new BulkImporter(counting.getIdentityManager(), 2, 2);
+        DigestHashCache digestHashCache = new DigestHashCache(10, REALM);
+        importer.setDigestHashCache(digestHashCache);
+        final AtomicInteger batches = new AtomicInteger();
+        importer.setBatchWriter(new BulkImporter.BatchWriter() {
+
+            public void write(final Runnable writes) {
+                batches.incrementAndGet();
+                writes.run();
+            }
+        });
+
+        BulkImporter.Progress progress = importer.importFrom(csv("user,BiA,BiA_Password", "user,BiB,BiB_Password",
+                "user,BiC,BiC_Password", "runas,BiA,BiB", "runas,BiB,Jack", "runas,BiC,Unknown"), BulkImporter.Format.CSV);
+        assertEquals(3, progress.getUsers());
+        assertEquals(2, progress.getRelationships());
+        assertEquals(1, progress.getFailed());
+        // Two batches of users and two of relationships.
+        assertEquals(4, batches.get());
+
+        assertTrue(verify("BiB", "BiB_Password"));
+        assertNotNull(digestHashCache.getHexHash("BiC", REALM));
+        RunAsIndex index = new RunAsIndex(getIdentityManager());
+        assertTrue(index.isAuthorized("BiA", "BiB"));
+        assertTrue(index.isAuthorized("BiB", "Jack"));
+        // Only the agents not imported are looked up.
+        assertEquals(2, counting.getCount("getAgent"));
+        assertEquals(0, counting.getCount("lookupIdentityById"));
+    }
+
+    @Test
+    public void cachedIdsBounded() throws Exception {
+        CountingIdentityManager counting = new CountingIdentityManager(getIdentityManager());
+        BulkImporter importer = new BulkImporter(counting.getIdentityManager(), 1, 10);
+        importer.setMaxCachedIds(1);
+
+        BulkImporter.Progress progress = importer.importFrom(csv("user,BcA,BcA_Password", "user,BcB,BcB_Password",
+                "runas,BcA,BcB"), BulkImporter.Format.CSV);
+        assertEquals(1, progress.getRelationships());
+        // With room for one mapping BcA was evicted by BcB, then looking up BcA evicted BcB.
+        assertEquals(2, counting.getCount("getAgent"));
+        assertTrue(new RunAsIndex(getIdentityManager()).isAuthorized("BcA", "BcB"));
+    }
+
+    @Test
+    public void failedBatchCounted() throws Exception {
+        BulkImporter importer = new BulkImporter(getIdentityManager(), 1, 10);
+        importer.setBatchWriter(new BulkImporter.BatchWriter() {
+
+            public void write(final Runnable writes) throws Exception {
+                throw new Exception("Rolled back");
+            }
+        });
+
+        BulkImporter.Progress progress = importer.importFrom(csv("user,BfA,BfA_Password", "user,BfB,BfB_Password"),
+                BulkImporter.Format.CSV);
+        assertEquals(0, progress.getUsers());
+        assertEquals(2, progress.getFailed());
+        assertNull(getIdentityManager().getAgent("BfA"));
+        assertFalse(verify("BfA", "BfA_Password"));
+    }
+
+    private static StringReader csv(final String... lines) {
+        StringBuilder content = new StringBuilder();
+        for (String current : lines) {
+            content.append(current).append('\n');
+        }
+
+        return new StringReader(content.toString());
+    }
+
+    private boolean verify(final String username, final String password) {
+        UsernamePasswordCredentials credentials = new UsernamePasswordCredentials(username,
+                new Password(password.toCharArray()));
+        getIdentityManager().validateCredentials(credentials);
+
+        return credentials.getStatus() == Status.VALID;
+    }
+
+}
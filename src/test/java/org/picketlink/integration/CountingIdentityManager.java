@@ -0,0 +1,84 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.picketlink.idm.IdentityManager;
+
+/**
+ * A wrapper around an {@link IdentityManager} counting the number of calls made to each method so tests can verify how
+ * often the store is accessed.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+class CountingIdentityManager implements InvocationHandler {
+
+    private final IdentityManager delegate;
+    private final ConcurrentMap<String, AtomicInteger> counts = new ConcurrentHashMap<String, AtomicInteger>();
+    private final IdentityManager proxy;
+
+    CountingIdentityManager(final IdentityManager delegate) {
+        this.delegate = delegate;
+        this.proxy = (IdentityManager) Proxy.newProxyInstance(IdentityManager.class.getClassLoader(),
+                new Class<?>[] { IdentityManager.class }, this);
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        AtomicInteger count = counts.get(method.getName());
+        if (count == null) {
+            AtomicInteger newCount = new AtomicInteger();
+            count = counts.putIfAbsent(method.getName(), newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+
+        try {
+            return method.invoke(delegate, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    IdentityManager getIdentityManager() {
+        return proxy;
+    }
+
+    int getCount(final String methodName) {
+        AtomicInteger count = counts.get(methodName);
+
+        return count == null ? 0 : count.get();
+    }
+
+    void reset() {
+        counts.clear();
+    }
+
+}
@@ -0,0 +1,169 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.sasl.Sasl;
+import javax.security.sasl.SaslClient;
+import javax.security.sasl.SaslServer;
+
+import org.junit.Test;
+import org.picketlink.idm.credential.Password;
+
+/**
+ * Test case to verify the use of a {@link CredentialCache} with the {@link PicketLinkCallbackHandler}.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class CredentialCacheTestCase extends AbstractTestBase {
+
+    private static final String PLAIN = "PLAIN";
+
+    @Test
+    public void repeatedAuthUsesCache() throws Exception {
+        CountingIdentityManager counting = new CountingIdentityManager(getIdentityManager());
+        CredentialCache cache = new CredentialCache(100, 5, TimeUnit.MINUTES);
+        PicketLinkCallbackHandler serverCallback = new PicketLinkCallbackHandler(counting.getIdentityManager());
+        serverCallback.setCredentialCache(cache);
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(authenticate(serverCallback, "Jack", "Jack_Password"));
+        }
+
+        assertEquals(1, counting.getCount("validateCredentials"));
+        assertEquals(9, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void badPasswordNotCached() throws Exception {
+        CountingIdentityManager counting = new CountingIdentityManager(getIdentityManager());
+        CredentialCache cache = new CredentialCache(100, 5, TimeUnit.MINUTES);
+        PicketLinkCallbackHandler serverCallback = new PicketLinkCallbackHandler(counting.getIdentityManager());
+        serverCallback.setCredentialCache(cache);
+
+        assertTrue(authenticate(serverCallback, "Oliver", "Oliver_Password"));
+        assertFalse(authenticate(serverCallback, "Oliver", "Harry_Password"));
+        assertFalse(authenticate(serverCallback, "Oliver", "Harry_Password"));
+
+        assertEquals(3, counting.getCount("validateCredentials"));
+        assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void updateCredentialInvalidates() throws Exception {
+        addUser("Freddie", "Freddie_Password");
+
+        CredentialCache cache = new CredentialCache(100, 5, TimeUnit.MINUTES);
+        IdentityManagement management = new IdentityManagement(getIdentityManager());
+        management.addListener(cache);
+        PicketLinkCallbackHandler serverCallback = new PicketLinkCallbackHandler(getIdentityManager());
+        serverCallback.setCredentialCache(cache);
+
+        assertTrue(authenticate(serverCallback, "Freddie", "Freddie_Password"));
+        assertEquals(1, cache.size());
+
+        management.updateCredential(getIdentityManager().getAgent("Freddie"), new Password("Freddie_New_Password".toCharArray()));
+        assertEquals(0, cache.size());
+
+        assertFalse(authenticate(serverCallback, "Freddie", "Freddie_Password"));
+        assertTrue(authenticate(serverCallback, "Freddie", "Freddie_New_Password"));
+    }
+
+    @Test
+    public void leastRecentlyUsedEvicted() throws Exception {
+        CredentialCache cache = new CredentialCache(2, 5, TimeUnit.MINUTES);
+
+        cache.verified("Ruby", "Ruby_Password", cache.generation("Ruby"));
+        cache.verified("Lily", "Lily_Password", cache.generation("Lily"));
+        assertTrue(cache.isVerified("Ruby", "Ruby_Password"));
+        cache.verified("Alfie", "Alfie_Password", cache.generation("Alfie"));
+
+        assertEquals(2, cache.size());
+        assertTrue(cache.isVerified("Ruby", "Ruby_Password"));
+        assertFalse(cache.isVerified("Lily", "Lily_Password"));
+    }
+
+    @Test
+    public void expiredEntriesIgnored() throws Exception {
+        CredentialCache cache = new CredentialCache(2, 0, TimeUnit.MILLISECONDS);
+
+        cache.verified("Ruby", "Ruby_Password", cache.generation("Ruby"));
+        assertFalse(cache.isVerified("Ruby", "Ruby_Password"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void staleVerificationNotCached() throws Exception {
+        CredentialCache cache = new CredentialCache(100, 5, TimeUnit.MINUTES);
+
+        // The credential is updated while the old password is being verified.
+        long generation = cache.generation("Ruby");
+        cache.credentialUpdated("Ruby", new Password("Ruby_New_Password".toCharArray()));
+        cache.verified("Ruby", "Ruby_Password", generation);
+        assertEquals(0, cache.size());
+        assertFalse(cache.isVerified("Ruby", "Ruby_Password"));
+
+        generation = cache.generation("Ruby");
+        cache.clear();
+        cache.verified("Ruby", "Ruby_New_Password", generation);
+        assertEquals(0, cache.size());
+
+        cache.verified("Ruby", "Ruby_New_Password", cache.generation("Ruby"));
+        assertTrue(cache.isVerified("Ruby", "Ruby_New_Password"));
+    }
+
+    private boolean authenticate(final CallbackHandler serverCallback, final String username, final String password)
+            throws Exception {
+        SaslServer server = Sasl.createSaslServer(PLAIN, "TestProtocol", "TestServer", Collections.<String, Object> emptyMap(),
+                serverCallback);
+
+        CallbackHandler clientCallback = new ClientCallbackHandler(username, password.toCharArray());
+        SaslClient client = Sasl.createSaslClient(new String[] { PLAIN }, username, "TestProtocol", "TestServer",
+                Collections.<String, Object> emptyMap(), clientCallback);
+
+        byte[] message = client.evaluateChallenge(new byte[0]);
+
+        try {
+            server.evaluateResponse(message);
+        } catch (IOException e) {
+            assertFalse(server.isComplete());
+            return false;
+        }
+
+        if (server.isComplete() == false) {
+            fail("Expected server to be complete.");
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,212 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.sasl.Sasl;
+import javax.security.sasl.SaslClient;
+import javax.security.sasl.SaslServer;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.picketlink.idm.IdentityManager;
+import org.picketlink.idm.credential.Password;
+
+/**
+ * Test class to test the DIGEST-MD5 SASL mechanism against the single {@link IdentityManager} definition using hashes from a
+ * {@link DigestHashCache}.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class DigestTestCase extends AbstractTestBase {
+
+    private static final String DIGEST = "DIGEST-MD5";
+    private static final String PLAIN = "PLAIN";
+    private static final String REALM = "ManagementRealm";
+
+    private static DigestHashCache digestHashCache;
+
+    @BeforeClass
+    public static void createCache() {
+        digestHashCache = new DigestHashCache(100, REALM);
+    }
+
+    @AfterClass
+    public static void clearCache() {
+        digestHashCache = null;
+    }
+
+    @Before
+    public void setPasswords() {
+        if (digestHashCache.getHexHash("Jack", REALM) != null) {
+            return;
+        }
+
+        IdentityManager identityManager = getIdentityManager();
+        IdentityManagement management = new IdentityManagement(identityManager);
+        management.addListener(digestHashCache);
+
+        for (String current : new String[] { "Jack", "Oliver", "Harry" }) {
+            management.updateCredential(identityManager.getAgent(current), new Password((current + "_Password").toCharArray()));
+        }
+    }
+
+    /**
+     * Test a successful authentication using the digest mechanism.
+     */
+    @Test
+    public void successfulAuth() throws Exception {
+        SaslServer server = createServer();
+
+        CallbackHandler clientCallback = new ClientCallbackHandler("Jack", "Jack_Password".toCharArray());
+        SaslClient client = Sasl.createSaslClient(new String[] { DIGEST }, "Jack", "TestProtocol", "TestServer",
+                Collections.<String, Object> emptyMap(), clientCallback);
+
+        exchange(client, server);
+        assertTrue(server.isComplete());
+        assertTrue(client.isComplete());
+        assertEquals("Jack", server.getAuthorizationID());
+    }
+
+    @Test
+    public void badPassword() throws Exception {
+        SaslServer server = createServer();
+
+        CallbackHandler clientCallback = new ClientCallbackHandler("Jack", "Olivia_Password".toCharArray());
+        SaslClient client = Sasl.createSaslClient(new String[] { DIGEST }, "Jack", "TestProtocol", "TestServer",
+                Collections.<String, Object> emptyMap(), clientCallback);
+
+        try {
+            exchange(client, server);
+            fail("Expected exception not thrown.");
+        } catch (IOException expected) {
+        }
+
+        assertFalse(server.isComplete());
+    }
+
+    @Test
+    public void badUserName() throws Exception {
+        SaslServer server = createServer();
+
+        CallbackHandler clientCallback = new ClientCallbackHandler("Jackson", "Jack_Password".toCharArray());
+        SaslClient client = Sasl.createSaslClient(new String[] { DIGEST }, "Jackson", "TestProtocol", "TestServer",
+                Collections.<String, Object> emptyMap(), clientCallback);
+
+        try {
+            exchange(client, server);
+            fail("Expected exception not thrown.");
+        } catch (IOException expected) {
+        }
+
+        assertFalse(server.isComplete());
+    }
+
+    @Test
+    public void successfulAuthorization() throws Exception {
+        SaslServer server = createServer();
+
+        CallbackHandler clientCallback = new ClientCallbackHandler("Oliver", "Oliver_Password".toCharArray());
+        SaslClient client = Sasl.createSaslClient(new String[] { DIGEST }, "Harry", "TestProtocol", "TestServer",
+                Collections.<String, Object> emptyMap(), clientCallback);
+
+        exchange(client, server);
+        assertTrue(server.isComplete());
+        assertEquals("Harry", server.getAuthorizationID());
+    }
+
+    /**
+     * Test that after a successful plain authentication the hash is available for digest authentication.
+     */
+    @Test
+    public void hashDerivedFromPlain() throws Exception {
+        assertNull(digestHashCache.getHexHash("Ruby", REALM));
+
+        PicketLinkCallbackHandler serverCallback = new PicketLinkCallbackHandler(getIdentityManager());
+        serverCallback.setDigestHashCache(digestHashCache);
+        SaslServer server = Sasl.createSaslServer(PLAIN, "TestProtocol", "TestServer", Collections.<String, Object> emptyMap(),
+                serverCallback);
+
+        CallbackHandler clientCallback = new ClientCallbackHandler("Ruby", "Ruby_Password".toCharArray());
+        SaslClient client = Sasl.createSaslClient(new String[] { PLAIN }, "Ruby", "TestProtocol", "TestServer",
+                Collections.<String, Object> emptyMap(), clientCallback);
+
+        server.evaluateResponse(client.evaluateChallenge(new byte[0]));
+        assertTrue(server.isComplete());
+
+        server = createServer();
+        clientCallback = new ClientCallbackHandler("Ruby", "Ruby_Password".toCharArray());
+        client = Sasl.createSaslClient(new String[] { DIGEST }, "Ruby", "TestProtocol", "TestServer",
+                Collections.<String, Object> emptyMap(), clientCallback);
+
+        exchange(client, server);
+        assertTrue(server.isComplete());
+        assertEquals("Ruby", server.getAuthorizationID());
+    }
+
+    @Test
+    public void staleHashNotCached() throws Exception {
+        long generation = digestHashCache.generation("Emily");
+        // The credential changes while the old password is being verified.
+        digestHashCache.invalidate("Emily");
+        digestHashCache.passwordVerified("Emily", "Emily_Password", generation);
+        assertNull(digestHashCache.getHexHash("Emily", REALM));
+
+        digestHashCache.passwordVerified("Emily", "Emily_Password", digestHashCache.generation("Emily"));
+        assertNotNull(digestHashCache.getHexHash("Emily", REALM));
+    }
+
+    private SaslServer createServer() throws Exception {
+        PicketLinkCallbackHandler serverCallback = new PicketLinkCallbackHandler(getIdentityManager());
+        serverCallback.setDigestHashCache(digestHashCache);
+
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put("com.sun.security.sasl.digest.realm", REALM);
+        props.put("org.jboss.sasl.digest.pre_digested", "true");
+
+        return Sasl.createSaslServer(DIGEST, "TestProtocol", "TestServer", props, serverCallback);
+    }
+
+    private void exchange(final SaslClient client, final SaslServer server) throws Exception {
+        assertFalse(client.hasInitialResponse());
+        byte[] challenge = server.evaluateResponse(new byte[0]);
+        byte[] response = client.evaluateChallenge(challenge);
+        challenge = server.evaluateResponse(response);
+        client.evaluateChallenge(challenge);
+    }
+
+}
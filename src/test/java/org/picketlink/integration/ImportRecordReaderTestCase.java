@@ -0,0 +1,126 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.integration;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+/**
+ * Test case to test the parsing of CSV and NDJSON records by the {@link ImportRecordReader}.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class ImportRecordReaderTestCase {
+
+    @Test
+    public void csvRecords() throws Exception {
+        ImportRecordReader reader = reader(BulkImporter.Format.CSV, "# Users", "", "user,Jack,Jack_Password",
+                "  runas , Oliver , Harry  ");
+
+        assertArrayEquals(new String[] { "user", "Jack", "Jack_Password" }, reader.next());
+        assertEquals(3, reader.getLineNumber());
+        assertArrayEquals(new String[] { "runas", "Oliver", "Harry" }, reader.next());
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void csvPasswordNotTrimmed() throws Exception {
+        ImportRecordReader reader = reader(BulkImporter.Format.CSV, "user, Jack , Jack_Password ", "user,Ruby,\t");
+
+        assertArrayEquals(new String[] { "user", "Jack", " Jack_Password " }, reader.next());
+        assertArrayEquals(new String[] { "user", "Ruby", "\t" }, reader.next());
+    }
+
+    @Test
+    public void csvQuoting() throws Exception {
+        ImportRecordReader reader = reader(BulkImporter.Format.CSV, "user,\"Jack\",\"a,b\"", "user,Ruby,\"say \"\"hi\"\"\"",
+                "user,Lily,\"\"");
+
+        assertArrayEquals(new String[] { "user", "Jack", "a,b" }, reader.next());
+        assertArrayEquals(new String[] { "user", "Ruby", "say \"hi\"" }, reader.next());
+        assertArrayEquals(new String[] { "user", "Lily", "" }, reader.next());
+    }
+
+    @Test
+    public void csvMalformed() throws Exception {
+        ImportRecordReader reader = reader(BulkImporter.Format.CSV, "user,Jack", "user,Jack,a,b", "user,Jack,\"open",
+                "group,Jack,Jack_Password", "user,Ruby,Ruby_Password");
+
+        assertMalformed(reader, 1);
+        assertMalformed(reader, 2);
+        assertMalformed(reader, 3);
+        assertMalformed(reader, 4);
+        // Reading continues after a malformed line.
+        assertArrayEquals(new String[] { "user", "Ruby", "Ruby_Password" }, reader.next());
+    }
+
+    @Test
+    public void jsonRecords() throws Exception {
+        ImportRecordReader reader = reader(BulkImporter.Format.NDJSON,
+                "  {\"type\":\"user\", \"loginName\":\"Jack\", \"password\":\" a,\\\"b\\\"\\u0021 \"}  ",
+                "{\"type\":\"runas\",\"authenticatedIdentity\":\"Oliver\",\"authorizedAs\":\"Harry\"}");
+
+        assertArrayEquals(new String[] { "user", "Jack", " a,\"b\"! " }, reader.next());
+        assertArrayEquals(new String[] { "runas", "Oliver", "Harry" }, reader.next());
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void jsonMalformed() throws Exception {
+        ImportRecordReader reader = reader(BulkImporter.Format.NDJSON, "{\"type\":\"user\",\"loginName\":\"Jack\"}",
+                "{\"type\":\"user\",\"loginName\":\"Jack\",\"password\":\"open}", "{\"type\":\"user\"} trailing",
+                "{\"type\":\"user\",\"loginName\":\"Jack\",\"password\":\"\\u00\"}", "[]",
+                "{\"type\":\"user\",\"loginName\":\"Ruby\",\"password\":\"Ruby_Password\"}");
+
+        for (int i = 1; i <= 5; i++) {
+            assertMalformed(reader, i);
+        }
+        assertArrayEquals(new String[] { "user", "Ruby", "Ruby_Password" }, reader.next());
+    }
+
+    private static ImportRecordReader reader(final BulkImporter.Format format, final String... lines) {
+        StringBuilder input = new StringBuilder();
+        for (String current : lines) {
+            input.append(current).append('\n');
+        }
+
+        return new ImportRecordReader(new StringReader(input.toString()), format);
+    }
+
+    private static void assertMalformed(final ImportRecordReader reader, final int lineNumber) throws IOException {
+        try {
+            reader.next();
+            fail("Expected exception not thrown.");
+        } catch (ImportRecordReader.MalformedRecordException expected) {
+            assertEquals(lineNumber, reader.getLineNumber());
+        }
+    }
+
+}
@@ -0,0 +1,208 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.picketlink.idm.model.IdentityType;
+import org.picketlink.idm.model.SimpleAgent;
+
+/**
+ * Test case to verify the {@link InvalidationBus} using a {@link LoopbackTransport}.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class InvalidationBusTestCase {
+
+    private static final byte[] KEY = "0123456789abcdef0123456789abcdef".getBytes();
+
+    private ScheduledExecutorService executor;
+    private LoopbackTransport senderTransport;
+    private LoopbackTransport receiverTransport;
+    private InvalidationBus sender;
+    private InvalidationBus receiver;
+    private RecordingListener listener;
+
+    @Before
+    public void createBuses() {
+        executor = Executors.newSingleThreadScheduledExecutor();
+        senderTransport = new LoopbackTransport();
+        receiverTransport = senderTransport.join();
+        // A long delay so only an explicit flush sends.
+        sender = new InvalidationBus(senderTransport, KEY, executor, 1, TimeUnit.HOURS);
+        receiver = new InvalidationBus(receiverTransport, KEY, executor, 1, TimeUnit.HOURS);
+        listener = new RecordingListener();
+        receiver.addListener(listener);
+    }
+
+    @After
+    public void closeBuses() {
+        sender.close();
+        receiver.close();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void agentAdded() {
+        sender.agentAdded("Jack");
+        sender.flush();
+
+        assertEquals(Arrays.asList("agentAdded Jack"), listener.events);
+        assertEquals(1, receiver.getMessagesReceived());
+    }
+
+    @Test
+    public void credentialUpdatedInvalidatesCache() {
+        CredentialCache cache = new CredentialCache(100, 5, TimeUnit.MINUTES);
+        cache.verified("Jack", "Jack_Password", cache.generation("Jack"));
+        receiver.addListener(cache);
+
+        sender.credentialUpdated("Jack", "New_Password");
+        sender.flush();
+
+        assertEquals(Arrays.asList("credentialUpdated Jack null"), listener.events);
+        assertFalse(cache.isVerified("Jack", "Jack_Password"));
+    }
+
+    @Test
+    public void runAsAddedCarriesNoIdentities() {
+        sender.runAsUpdated(new SimpleAgent("Oliver"), new SimpleAgent("Jack"), true);
+        sender.flush();
+
+        assertEquals(Arrays.asList("runAsUpdated null null true"), listener.events);
+    }
+
+    @Test
+    public void runAsRemovedNotReplacedByAdd() {
+        sender.runAsUpdated(new SimpleAgent("Oliver"), new SimpleAgent("Harry"), false);
+        sender.runAsUpdated(new SimpleAgent("Oliver"), new SimpleAgent("Jack"), true);
+        sender.flush();
+
+        assertEquals(Arrays.asList("runAsUpdated null null false"), listener.events);
+        assertEquals(1, sender.getCoalescedCount());
+    }
+
+    @Test
+    public void forgedMessageDropped() {
+        InvalidationBus forger = new InvalidationBus(senderTransport.join(), "fedcba9876543210fedcba9876543210".getBytes(),
+                executor, 1, TimeUnit.HOURS);
+        forger.runAsUpdated(new SimpleAgent("Oliver"), new SimpleAgent("Jack"), true);
+        forger.flush();
+        forger.close();
+
+        assertTrue(listener.events.isEmpty());
+        assertEquals(1, receiver.getMessagesRejected());
+        assertEquals(0, receiver.getMessagesReceived());
+    }
+
+    @Test
+    public void tamperedAndUnsignedMessagesDropped() {
+        List<byte[]> captured = capture();
+        sender.agentAdded("Jack");
+        sender.flush();
+        listener.events.clear();
+
+        byte[] signed = captured.get(0);
+        LoopbackTransport attacker = senderTransport.join();
+
+        byte[] tampered = signed.clone();
+        tampered[tampered.length - 40] ^= 1;
+        attacker.send(tampered);
+
+        byte[] unsigned = Arrays.copyOf(signed, signed.length - 32);
+        attacker.send(unsigned);
+
+        attacker.send(new byte[0]);
+
+        assertTrue(listener.events.isEmpty());
+        assertEquals(3, receiver.getMessagesRejected());
+        assertEquals(1, receiver.getMessagesReceived());
+    }
+
+    @Test
+    public void ownMessagesIgnored() {
+        RecordingListener own = new RecordingListener();
+        sender.addListener(own);
+        List<byte[]> captured = capture();
+
+        sender.agentAdded("Jack");
+        sender.flush();
+        // Replay the message back to the node that sent it.
+        senderTransport.join().send(captured.get(0));
+
+        assertTrue(own.events.isEmpty());
+        assertEquals(0, sender.getMessagesReceived());
+        assertEquals(0, sender.getMessagesRejected());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shortKeyRejected() {
+        new InvalidationBus(new LoopbackTransport(), new byte[8], executor, 1, TimeUnit.SECONDS);
+    }
+
+    private List<byte[]> capture() {
+        final List<byte[]> captured = new ArrayList<byte[]>();
+        senderTransport.join().setReceiver(new InvalidationTransport.Receiver() {
+
+            public void received(final byte[] message) {
+                captured.add(message);
+            }
+        });
+
+        return captured;
+    }
+
+    private static class RecordingListener implements IdentityChangeListener {
+
+        private final List<String> events = new ArrayList<String>();
+
+        public void agentAdded(final String loginName) {
+            events.add("agentAdded " + loginName);
+        }
+
+        public void credentialUpdated(final String loginName, final Object credential) {
+            events.add("credentialUpdated " + loginName + " " + credential);
+        }
+
+        public void runAsUpdated(final IdentityType authenticatedIdentity, final IdentityType authorizedAs,
+                final boolean added) {
+            assertNull(authenticatedIdentity);
+            assertNull(authorizedAs);
+            events.add("runAsUpdated " + authenticatedIdentity + " " + authorizedAs + " " + added);
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test case to verify the bucketing of values by the {@link LatencyHistogram}.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class LatencyHistogramTestCase {
+
+    @Test
+    public void smallValuesExact() {
+        for (long value = 0; value < 32; value++) {
+            assertEquals(value, bucketUpperBound(value));
+        }
+    }
+
+    @Test
+    public void relativeErrorBounded() {
+        long[] values = { 32, 33, 47, 48, 1000, 1023, 1024, 1025, 123456789L, 1L << 40, (1L << 40) - 1, Long.MAX_VALUE - 1 };
+        for (long value : values) {
+            long upperBound = bucketUpperBound(value);
+            assertTrue(value + " -> " + upperBound, upperBound >= value);
+            assertTrue(value + " -> " + upperBound, upperBound - value <= value / 16);
+        }
+
+        // Every value within a bucket reports the same upper bound.
+        assertEquals(33, bucketUpperBound(32));
+        assertEquals(33, bucketUpperBound(33));
+        assertEquals(35, bucketUpperBound(34));
+        assertEquals(Long.MAX_VALUE, bucketUpperBound(Long.MAX_VALUE - 1));
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtPercentile(50));
+
+        for (long value = 1; value <= 100; value++) {
+            histogram.record(value);
+        }
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(100, histogram.getMax());
+        assertEquals(50.5, histogram.getMean(), 0.0001);
+        assertEquals(1, histogram.getValueAtPercentile(0));
+        assertEquals(51, histogram.getValueAtPercentile(50));
+        assertEquals(99, histogram.getValueAtPercentile(99));
+        // Never reported beyond the largest value recorded.
+        assertEquals(100, histogram.getValueAtPercentile(100));
+        assertEquals(100, histogram.getValueAtPercentile(150));
+    }
+
+    @Test
+    public void negativeValuesAndReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean(), 0);
+    }
+
+    /**
+     * @return the upper bound of the bucket the value is counted in, read back as the median with a larger value recorded.
+     */
+    private static long bucketUpperBound(final long value) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(value);
+        histogram.record(Long.MAX_VALUE);
+
+        return histogram.getValueAtPercentile(50);
+    }
+
+}
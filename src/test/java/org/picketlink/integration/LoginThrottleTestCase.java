@@ -0,0 +1,176 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.sasl.Sasl;
+import javax.security.sasl.SaslClient;
+import javax.security.sasl.SaslServer;
+
+import org.junit.Test;
+
+/**
+ * Test case to verify the {@link LoginThrottle} alone and used by the {@link PicketLinkCallbackHandler}.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class LoginThrottleTestCase extends AbstractTestBase {
+
+    private static final String PLAIN = "PLAIN";
+
+    @Test
+    public void usernameThrottled() {
+        LoginThrottle throttle = new LoginThrottle(3, 100, 1, TimeUnit.MINUTES, 100);
+
+        for (int i = 0; i < 3; i++) {
+            assertFalse(throttle.isThrottled("Jack", null));
+            throttle.failed("Jack", null);
+        }
+
+        assertTrue(throttle.isThrottled("Jack", null));
+        assertFalse(throttle.isThrottled("Oliver", null));
+        assertEquals(1, throttle.getThrottledCount());
+    }
+
+    @Test
+    public void successClearsUsername() {
+        LoginThrottle throttle = new LoginThrottle(3, 100, 1, TimeUnit.MINUTES, 100);
+
+        throttle.failed("Jack", null);
+        throttle.failed("Jack", null);
+        throttle.succeeded("Jack");
+        throttle.failed("Jack", null);
+        throttle.failed("Jack", null);
+
+        assertFalse(throttle.isThrottled("Jack", null));
+    }
+
+    @Test
+    public void sourceThrottled() {
+        LoginThrottle throttle = new LoginThrottle(100, 3, 1, TimeUnit.MINUTES, 100);
+
+        throttle.failed("Jack", "10.0.0.1");
+        throttle.failed("Oliver", "10.0.0.1");
+        throttle.failed("Harry", "10.0.0.1");
+
+        // Any username from the source is throttled, the same username from another source is not.
+        assertTrue(throttle.isThrottled("Charlie", "10.0.0.1"));
+        assertFalse(throttle.isThrottled("Charlie", "10.0.0.2"));
+        assertFalse(throttle.isThrottled("Charlie", null));
+    }
+
+    @Test
+    public void throttledUsernameNotCountedAgainstSource() {
+        LoginThrottle throttle = new LoginThrottle(2, 3, 1, TimeUnit.MINUTES, 100);
+
+        // Another source causes Jack to be throttled.
+        throttle.failed("Jack", "10.0.0.1");
+        throttle.failed("Jack", "10.0.0.1");
+
+        throttle.failed("Oliver", "10.0.0.2");
+        for (int i = 0; i < 10; i++) {
+            assertTrue(throttle.isThrottled("Jack", "10.0.0.2"));
+        }
+        assertFalse(throttle.isThrottled("Oliver", "10.0.0.2"));
+    }
+
+    @Test
+    public void throttledSourceKeepsCounting() {
+        LoginThrottle throttle = new LoginThrottle(100, 2, 1, TimeUnit.MINUTES, 100);
+
+        throttle.failed("Jack", "10.0.0.1");
+        throttle.failed("Oliver", "10.0.0.1");
+        for (int i = 0; i < 5; i++) {
+            assertTrue(throttle.isThrottled("Harry", "10.0.0.1"));
+        }
+        // The rejected attempts were counted against the source but not the username.
+        assertFalse(throttle.isThrottled("Harry", null));
+        assertEquals(5, throttle.getThrottledCount());
+    }
+
+    @Test
+    public void failuresDecay() throws Exception {
+        LoginThrottle throttle = new LoginThrottle(2, 100, 50, TimeUnit.MILLISECONDS, 100);
+
+        throttle.failed("Jack", null);
+        throttle.failed("Jack", null);
+        assertTrue(throttle.isThrottled("Jack", null));
+
+        // Counts decay to nothing two windows after the last failure.
+        Thread.sleep(150);
+        assertFalse(throttle.isThrottled("Jack", null));
+    }
+
+    @Test
+    public void throttledAttemptsNotVerified() throws Exception {
+        CountingIdentityManager counting = new CountingIdentityManager(getIdentityManager());
+        PicketLinkCallbackHandler serverCallback = new PicketLinkCallbackHandler(counting.getIdentityManager());
+        LoginThrottle throttle = new LoginThrottle(2, 100, 1, TimeUnit.MINUTES, 100);
+        serverCallback.setLoginThrottle(throttle);
+        Map<String, Object> props = Collections.<String, Object> singletonMap(LoginThrottle.CLIENT_SOURCE, "10.0.0.1");
+
+        assertFalse(authenticate(serverCallback, props, "Alfie", "Ruby_Password"));
+        assertFalse(authenticate(serverCallback, props, "Alfie", "Ruby_Password"));
+        assertEquals(2, counting.getCount("validateCredentials"));
+
+        // Even the correct password is rejected without accessing the store.
+        assertFalse(authenticate(serverCallback, props, "Alfie", "Alfie_Password"));
+        assertEquals(2, counting.getCount("validateCredentials"));
+        assertEquals(1, throttle.getThrottledCount());
+
+        assertTrue(authenticate(serverCallback, props, "Ruby", "Ruby_Password"));
+    }
+
+    private boolean authenticate(final PicketLinkCallbackHandler serverCallback, final Map<String, Object> props,
+            final String username, final String password) throws Exception {
+        SaslServer server = Sasl.createSaslServer(PLAIN, "TestProtocol", "TestServer", props,
+                serverCallback.createCallbackHandler(props));
+
+        CallbackHandler clientCallback = new ClientCallbackHandler(username, password.toCharArray());
+        SaslClient client = Sasl.createSaslClient(new String[] { PLAIN }, username, "TestProtocol", "TestServer",
+                Collections.<String, Object> emptyMap(), clientCallback);
+
+        try {
+            server.evaluateResponse(client.evaluateChallenge(new byte[0]));
+        } catch (IOException e) {
+            assertFalse(server.isComplete());
+            return false;
+        }
+
+        if (server.isComplete() == false) {
+            fail("Expected server to be complete.");
+        }
+        return true;
+    }
+
+}
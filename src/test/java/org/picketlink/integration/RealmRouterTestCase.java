@@ -0,0 +1,271 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.sasl.AuthorizeCallback;
+import javax.security.sasl.RealmCallback;
+
+import org.jboss.sasl.callback.VerifyPasswordCallback;
+import org.junit.Test;
+import org.picketlink.idm.IdentityManager;
+
+/**
+ * Test case to verify the routing of callbacks by the {@link RealmRouter}.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class RealmRouterTestCase extends AbstractTestBase {
+
+    private static final String MANAGEMENT_REALM = "ManagementRealm";
+    private static final String APPLICATION_REALM = "ApplicationRealm";
+
+    private final ConcurrentMap<String, CountingIdentityManager> created =
+            new ConcurrentHashMap<String, CountingIdentityManager>();
+    private final AtomicInteger factoryCalls = new AtomicInteger();
+
+    private final RealmIdentityManagerFactory factory = new RealmIdentityManagerFactory() {
+
+        public IdentityManager createIdentityManager(final String realm) {
+            factoryCalls.incrementAndGet();
+            if (MANAGEMENT_REALM.equals(realm) == false && APPLICATION_REALM.equals(realm) == false) {
+                throw new IllegalArgumentException("Unknown realm " + realm);
+            }
+            CountingIdentityManager counting = new CountingIdentityManager(getIdentityManager());
+            created.put(realm, counting);
+
+            return counting.getIdentityManager();
+        }
+    };
+
+    @Test
+    public void routedBySelectedRealm() throws Exception {
+        RealmRouter router = new RealmRouter(factory, MANAGEMENT_REALM, 10, 5, TimeUnit.MINUTES);
+        CallbackHandler handler = router.createCallbackHandler();
+
+        VerifyPasswordCallback vpc = new VerifyPasswordCallback("Oliver_Password");
+        handler.handle(new Callback[] { new RealmCallback("Realm", APPLICATION_REALM), new NameCallback("Username", "Oliver"),
+                vpc });
+        assertTrue(vpc.isVerified());
+
+        // The final callback is not accompanied by a RealmCallback but is routed to the same realm.
+        AuthorizeCallback acb = new AuthorizeCallback("Oliver", "Harry");
+        handler.handle(new Callback[] { acb });
+        assertTrue(acb.isAuthorized());
+
+        assertEquals(1, router.size());
+        assertFalse(created.containsKey(MANAGEMENT_REALM));
+        assertEquals(1, created.get(APPLICATION_REALM).getCount("validateCredentials"));
+        assertEquals(1, created.get(APPLICATION_REALM).getCount("createRelationshipQuery"));
+    }
+
+    @Test
+    public void defaultRealm() throws Exception {
+        RealmRouter router = new RealmRouter(factory, MANAGEMENT_REALM, 10, 5, TimeUnit.MINUTES);
+
+        VerifyPasswordCallback vpc = new VerifyPasswordCallback("Jack_Password");
+        router.createCallbackHandler().handle(new Callback[] { new NameCallback("Username", "Jack"), vpc });
+        assertTrue(vpc.isVerified());
+
+        vpc = new VerifyPasswordCallback("Jack_Password");
+        router.createCallbackHandler().handle(new Callback[] { new RealmCallback("Realm"),
+                new NameCallback("Username", "Jack"), vpc });
+        assertTrue(vpc.isVerified());
+
+        assertEquals(2, created.get(MANAGEMENT_REALM).getCount("validateCredentials"));
+        assertSame(router.getCallbackHandler(MANAGEMENT_REALM), router.getCallbackHandler(MANAGEMENT_REALM));
+    }
+
+    @Test
+    public void unknownRealm() throws Exception {
+        RealmRouter router = new RealmRouter(factory, MANAGEMENT_REALM, 10, 5, TimeUnit.MINUTES);
+
+        VerifyPasswordCallback vpc = new VerifyPasswordCallback("Jack_Password");
+        try {
+            router.createCallbackHandler().handle(new Callback[] { new RealmCallback("Realm", "OtherRealm"),
+                    new NameCallback("Username", "Jack"), vpc });
+            fail("Expected exception not thrown.");
+        } catch (IOException expected) {
+        }
+
+        assertFalse(vpc.isVerified());
+        assertEquals(0, router.size());
+    }
+
+    @Test
+    public void leastRecentlyUsedEvicted() throws Exception {
+        RealmRouter router = new RealmRouter(factory, MANAGEMENT_REALM, 1, 5, TimeUnit.MINUTES);
+
+        PicketLinkCallbackHandler management = router.getCallbackHandler(MANAGEMENT_REALM);
+        router.getCallbackHandler(APPLICATION_REALM);
+        assertEquals(1, router.size());
+
+        // Evicted so created again on next use.
+        assertFalse(management == router.getCallbackHandler(MANAGEMENT_REALM));
+        assertEquals(1, router.size());
+    }
+
+    @Test
+    public void idleEvicted() throws Exception {
+        RealmRouter router = new RealmRouter(factory, MANAGEMENT_REALM, 10, 10, TimeUnit.MILLISECONDS);
+
+        router.getCallbackHandler(MANAGEMENT_REALM);
+        router.getCallbackHandler(APPLICATION_REALM);
+        assertEquals(0, router.evictIdle());
+
+        Thread.sleep(50);
+        assertEquals(2, router.evictIdle());
+        assertEquals(0, router.size());
+    }
+
+    @Test
+    public void configuredRealmsOnly() throws Exception {
+        RealmRouter router = new RealmRouter(factory, MANAGEMENT_REALM, 10, 5, TimeUnit.MINUTES,
+                Collections.singleton(MANAGEMENT_REALM));
+
+        try {
+            router.getCallbackHandler(APPLICATION_REALM);
+            fail("Expected exception not thrown.");
+        } catch (IOException expected) {
+        }
+        // Rejected without calling the factory.
+        assertEquals(0, factoryCalls.get());
+
+        router.getCallbackHandler(MANAGEMENT_REALM);
+        assertEquals(1, factoryCalls.get());
+    }
+
+    @Test
+    public void realmsCreatedIndependently() throws Exception {
+        final CountDownLatch creating = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        RealmIdentityManagerFactory blocking = new RealmIdentityManagerFactory() {
+
+            public IdentityManager createIdentityManager(final String realm) {
+                if (MANAGEMENT_REALM.equals(realm)) {
+                    creating.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                return factory.createIdentityManager(realm);
+            }
+        };
+        final RealmRouter router = new RealmRouter(blocking, MANAGEMENT_REALM, 10, 5, TimeUnit.MINUTES);
+        Callable<PicketLinkCallbackHandler> management = new Callable<PicketLinkCallbackHandler>() {
+
+            public PicketLinkCallbackHandler call() throws Exception {
+                return router.getCallbackHandler(MANAGEMENT_REALM);
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<PicketLinkCallbackHandler> first = executor.submit(management);
+            assertTrue(creating.await(5, TimeUnit.SECONDS));
+            Future<PicketLinkCallbackHandler> second = executor.submit(management);
+
+            // Another realm is created while the first is still being created.
+            router.getCallbackHandler(APPLICATION_REALM);
+            assertEquals(1, router.size());
+
+            release.countDown();
+            assertSame(first.get(5, TimeUnit.SECONDS), second.get(5, TimeUnit.SECONDS));
+            // Both requests waited for a single creation.
+            assertEquals(2, factoryCalls.get());
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void evictionNotified() throws Exception {
+        final List<String> evicted = new ArrayList<String>();
+        RealmRouter router = new RealmRouter(factory, MANAGEMENT_REALM, 1, 10, TimeUnit.MILLISECONDS,
+                new HashSet<String>(Arrays.asList(MANAGEMENT_REALM, APPLICATION_REALM))) {
+
+            @Override
+            protected void realmEvicted(final String realm, final PicketLinkCallbackHandler callbackHandler) {
+                evicted.add(realm);
+            }
+        };
+
+        router.getCallbackHandler(MANAGEMENT_REALM);
+        router.getCallbackHandler(APPLICATION_REALM);
+        assertEquals(Arrays.asList(MANAGEMENT_REALM), evicted);
+
+        Thread.sleep(50);
+        assertEquals(1, router.evictIdle());
+        assertEquals(Arrays.asList(MANAGEMENT_REALM, APPLICATION_REALM), evicted);
+    }
+
+    @Test
+    public void scheduledEviction() throws Exception {
+        RealmRouter router = new RealmRouter(factory, MANAGEMENT_REALM, 10, 10, TimeUnit.MILLISECONDS);
+        router.getCallbackHandler(MANAGEMENT_REALM);
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            ScheduledFuture<?> eviction = router.schedule(executor, 10, TimeUnit.MILLISECONDS);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (router.size() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, router.size());
+            eviction.cancel(false);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
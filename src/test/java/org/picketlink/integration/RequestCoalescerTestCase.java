@@ -0,0 +1,175 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.picketlink.idm.model.IdentityType;
+
+/**
+ * Test case to verify that the {@link RequestCoalescer} shares the outcome of a call with every waiting caller.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class RequestCoalescerTestCase {
+
+    private static final int WAITERS = 4;
+
+    @Test
+    public void exceptionPropagatedToEveryWaiter() throws Exception {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final IllegalStateException failure = new IllegalStateException("Store unavailable.");
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<Boolean> verification = new Callable<Boolean>() {
+
+            public Boolean call() throws Exception {
+                calls.incrementAndGet();
+                entered.countDown();
+                release.await();
+                throw failure;
+            }
+        };
+
+        final List<Throwable> thrown = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < WAITERS; i++) {
+            Thread thread = new Thread(new Runnable() {
+
+                public void run() {
+                    try {
+                        coalescer.verify("Jack", "Jack_Password", verification);
+                    } catch (Throwable t) {
+                        synchronized (thrown) {
+                            thrown.add(t);
+                        }
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+            if (i == 0) {
+                assertTrue(entered.await(5, TimeUnit.SECONDS));
+            }
+        }
+
+        // Wait for the remaining callers to be waiting on the call in flight before it fails.
+        for (Thread current : threads.subList(1, WAITERS)) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (current.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+        }
+        assertEquals(1, coalescer.getInFlightCount());
+        release.countDown();
+        for (Thread current : threads) {
+            current.join(5000);
+        }
+
+        assertEquals(1, calls.get());
+        assertEquals(WAITERS, thrown.size());
+        for (Throwable current : thrown) {
+            assertSame(failure, current);
+        }
+        assertEquals(0, coalescer.getInFlightCount());
+    }
+
+    @Test
+    public void failureNotRetained() throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer();
+        final AtomicInteger calls = new AtomicInteger();
+        Callable<IdentityType> lookup = new Callable<IdentityType>() {
+
+            public IdentityType call() {
+                if (calls.incrementAndGet() == 1) {
+                    throw new IllegalStateException("Store unavailable.");
+                }
+
+                return null;
+            }
+        };
+
+        try {
+            coalescer.getAgent("Jack", lookup);
+            fail("Expected exception not thrown.");
+        } catch (IllegalStateException expected) {
+        }
+
+        // Nothing is cached so the next call is made again.
+        coalescer.getAgent("Jack", lookup);
+        assertEquals(2, calls.get());
+        assertEquals(0, coalescer.getInFlightCount());
+    }
+
+    @Test
+    public void ioExceptionNotWrapped() throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer();
+        final IOException failure = new IOException("Store unavailable.");
+        Callable<Boolean> verification = new Callable<Boolean>() {
+
+            public Boolean call() throws Exception {
+                throw failure;
+            }
+        };
+
+        try {
+            coalescer.verify("Jack", "Jack_Password", verification);
+            fail("Expected exception not thrown.");
+        } catch (IOException expected) {
+            assertSame(failure, expected);
+        }
+    }
+
+    @Test
+    public void checkedExceptionWrapped() throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer();
+        final Exception failure = new Exception("Unexpected.");
+        Callable<Boolean> verification = new Callable<Boolean>() {
+
+            public Boolean call() throws Exception {
+                throw failure;
+            }
+        };
+
+        try {
+            coalescer.verify("Jack", "Jack_Password", verification);
+            fail("Expected exception not thrown.");
+        } catch (IllegalStateException expected) {
+            assertSame(failure, expected.getCause());
+        }
+    }
+
+}
@@ -0,0 +1,249 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.sasl.Sasl;
+import javax.security.sasl.SaslClient;
+import javax.security.sasl.SaslServer;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Test case to test the {@link ResumptionTokens} and their issue and verification by the {@link PicketLinkCallbackHandler}.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class ResumptionTokensTestCase extends AbstractTestBase {
+
+    private static final String PLAIN = "PLAIN";
+    private static final String REALM = "ManagementRealm";
+
+    @BeforeClass
+    public static void addPrefixedUser() {
+        addUser("George", ResumptionTokens.TOKEN_PREFIX + "George_Password");
+    }
+
+    @Test
+    public void signAndVerify() {
+        ResumptionTokens tokens = new ResumptionTokens(REALM, 1, TimeUnit.MINUTES);
+        String token = tokens.issue("Oliver", "Harry");
+        assertTrue(token.startsWith(ResumptionTokens.TOKEN_PREFIX));
+
+        ResumptionTokens.Resumption resumption = tokens.verify(token, "Oliver");
+        assertNotNull(resumption);
+        assertEquals("Oliver", resumption.getAuthenticationId());
+        assertEquals("Harry", resumption.getAuthorizationId());
+
+        // Only the identity the token was issued to can present it.
+        assertNull(tokens.verify(token, "Harry"));
+        // Nor is it valid for a different realm or signing key.
+        assertNull(new ResumptionTokens(REALM, 1, TimeUnit.MINUTES).verify(token, "Oliver"));
+
+        assertEquals(1, tokens.getIssuedCount());
+        assertEquals(1, tokens.getResumedCount());
+        assertEquals(1, tokens.getRejectedCount());
+    }
+
+    @Test
+    public void tamperedToken() {
+        ResumptionTokens tokens = new ResumptionTokens(REALM, 1, TimeUnit.MINUTES);
+        String token = tokens.issue("Jack", "Jack");
+
+        char last = token.charAt(token.length() - 1);
+        String tampered = token.substring(0, token.length() - 1) + (last == 'A' ? 'B' : 'A');
+        assertNull(tokens.verify(tampered, "Jack"));
+        assertNull(tokens.verify(ResumptionTokens.TOKEN_PREFIX + "not base64!", "Jack"));
+        assertNull(tokens.verify(ResumptionTokens.TOKEN_PREFIX, "Jack"));
+    }
+
+    @Test
+    public void expiry() throws Exception {
+        ResumptionTokens tokens = new ResumptionTokens(REALM, 50, TimeUnit.MILLISECONDS);
+        String token = tokens.issue("Jack", "Jack");
+        assertNotNull(tokens.verify(token, "Jack"));
+
+        Thread.sleep(100);
+        assertNull(tokens.verify(token, "Jack"));
+    }
+
+    @Test
+    public void keyRotation() {
+        ResumptionTokens tokens = new ResumptionTokens(REALM, 1, TimeUnit.MINUTES);
+        String token = tokens.issue("Jack", "Jack");
+
+        // Tokens signed by the previous key remain valid.
+        tokens.rotateKey();
+        assertNotNull(tokens.verify(token, "Jack"));
+        String rotated = tokens.issue("Jack", "Jack");
+
+        tokens.rotateKey();
+        assertNull(tokens.verify(token, "Jack"));
+        assertNotNull(tokens.verify(rotated, "Jack"));
+    }
+
+    @Test
+    public void revokeUser() throws Exception {
+        ResumptionTokens tokens = new ResumptionTokens(REALM, 1, TimeUnit.MINUTES);
+        String jack = tokens.issue("Jack", "Jack");
+        String ruby = tokens.issue("Ruby", "Ruby");
+
+        tokens.revoke("Jack");
+        assertNull(tokens.verify(jack, "Jack"));
+        assertNotNull(tokens.verify(ruby, "Ruby"));
+
+        // Updating a credential also revokes, tokens issued after the revocation are valid.
+        tokens.credentialUpdated("Ruby", null);
+        assertNull(tokens.verify(ruby, "Ruby"));
+        Thread.sleep(2);
+        assertNotNull(tokens.verify(tokens.issue("Jack", "Jack"), "Jack"));
+    }
+
+    @Test
+    public void revokeAll() {
+        ResumptionTokens tokens = new ResumptionTokens(REALM, 1, TimeUnit.MINUTES);
+        String jack = tokens.issue("Jack", "Jack");
+        String ruby = tokens.issue("Ruby", "Ruby");
+
+        tokens.revokeAll();
+        assertEquals(1, tokens.getEpoch());
+        assertNull(tokens.verify(jack, "Jack"));
+        assertNull(tokens.verify(ruby, "Ruby"));
+        assertNotNull(tokens.verify(tokens.issue("Jack", "Jack"), "Jack"));
+    }
+
+    @Test
+    public void resumeAuthentication() throws Exception {
+        CountingIdentityManager counting = new CountingIdentityManager(getIdentityManager());
+        PicketLinkCallbackHandler serverCallback = new PicketLinkCallbackHandler(counting.getIdentityManager());
+        ResumptionTokens tokens = new ResumptionTokens(REALM, 1, TimeUnit.MINUTES);
+        serverCallback.setResumptionTokens(tokens);
+        Map<String, Object> props = Collections.<String, Object> emptyMap();
+
+        CallbackHandler exchange = serverCallback.createCallbackHandler(props);
+        assertTrue(authenticate(exchange, "Oliver", "Oliver_Password", "Harry"));
+        ResumptionTokenCallback tokenCallback = new ResumptionTokenCallback();
+        exchange.handle(new Callback[] { tokenCallback });
+        String token = tokenCallback.getToken();
+        assertNotNull(token);
+        assertEquals(1, counting.getCount("validateCredentials"));
+
+        // The token authenticates without the store and only as the identity it was issued for.
+        assertTrue(authenticate(serverCallback.createCallbackHandler(props), "Oliver", token, "Harry"));
+        assertEquals(1, counting.getCount("validateCredentials"));
+        assertFalse(authenticate(serverCallback.createCallbackHandler(props), "Oliver", token, "Jack"));
+        assertEquals(2, tokens.getResumedCount());
+    }
+
+    @Test
+    public void noTokenAfterCredentialUpdated() throws Exception {
+        PicketLinkCallbackHandler serverCallback = new PicketLinkCallbackHandler(getIdentityManager());
+        ResumptionTokens tokens = new ResumptionTokens(REALM, 1, TimeUnit.MINUTES);
+        serverCallback.setResumptionTokens(tokens);
+        Map<String, Object> props = Collections.<String, Object> emptyMap();
+
+        CallbackHandler exchange = serverCallback.createCallbackHandler(props);
+        assertTrue(authenticate(exchange, "Lily", "Lily_Password", "Lily"));
+        // The password is changed between the verification and the request for a token.
+        tokens.credentialUpdated("Lily", null);
+        try {
+            exchange.handle(new Callback[] { new ResumptionTokenCallback() });
+            fail("Expected exception not thrown.");
+        } catch (IOException expected) {
+        }
+
+        long generation = tokens.generation("Lily");
+        tokens.revokeAll();
+        assertNull(tokens.issue("Lily", "Lily", generation));
+        assertEquals(0, tokens.getIssuedCount());
+    }
+
+    @Test
+    public void prefixedPassword() throws Exception {
+        PicketLinkCallbackHandler serverCallback = new PicketLinkCallbackHandler(getIdentityManager());
+        serverCallback.setResumptionTokens(new ResumptionTokens(REALM, 1, TimeUnit.MINUTES));
+        Map<String, Object> props = Collections.<String, Object> emptyMap();
+
+        // A password that only looks like a token is verified against the store.
+        String password = ResumptionTokens.TOKEN_PREFIX + "George_Password";
+        assertTrue(authenticate(serverCallback.createCallbackHandler(props), "George", password, "George"));
+        assertFalse(authenticate(serverCallback.createCallbackHandler(props), "George", "George_Password", "George"));
+    }
+
+    @Test
+    public void noTokenBeforeAuthentication() throws Exception {
+        PicketLinkCallbackHandler serverCallback = new PicketLinkCallbackHandler(getIdentityManager());
+        serverCallback.setResumptionTokens(new ResumptionTokens(REALM, 1, TimeUnit.MINUTES));
+        Map<String, Object> props = Collections.<String, Object> emptyMap();
+
+        CallbackHandler exchange = serverCallback.createCallbackHandler(props);
+        try {
+            exchange.handle(new Callback[] { new ResumptionTokenCallback() });
+            fail("Expected exception not thrown.");
+        } catch (IOException expected) {
+        }
+
+        assertFalse(authenticate(exchange, "Jack", "Olivia_Password", "Jack"));
+        try {
+            exchange.handle(new Callback[] { new ResumptionTokenCallback() });
+            fail("Expected exception not thrown.");
+        } catch (IOException expected) {
+        }
+    }
+
+    private boolean authenticate(final CallbackHandler serverCallback, final String username, final String password,
+            final String authorizationId) throws Exception {
+        SaslServer server = Sasl.createSaslServer(PLAIN, "TestProtocol", "TestServer", Collections.<String, Object> emptyMap(),
+                serverCallback);
+
+        CallbackHandler clientCallback = new ClientCallbackHandler(username, password.toCharArray());
+        SaslClient client = Sasl.createSaslClient(new String[] { PLAIN }, authorizationId, "TestProtocol", "TestServer",
+                Collections.<String, Object> emptyMap(), clientCallback);
+
+        try {
+            server.evaluateResponse(client.evaluateChallenge(new byte[0]));
+        } catch (IOException e) {
+            assertFalse(server.isComplete());
+            return false;
+        }
+
+        assertTrue(server.isComplete());
+        assertEquals(authorizationId, server.getAuthorizationID());
+        return true;
+    }
+
+}
@@ -0,0 +1,314 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Test;
+import org.picketlink.idm.IdentityManager;
+import org.picketlink.idm.model.Agent;
+import org.picketlink.idm.model.Grant;
+import org.picketlink.idm.model.GroupMembership;
+import org.picketlink.idm.model.IdentityType;
+import org.picketlink.idm.model.SimpleGroup;
+import org.picketlink.idm.model.SimpleRole;
+
+/**
+ * Test case to verify the {@link RunAsIndex}.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class RunAsIndexTestCase extends AbstractTestBase {
+
+    @Test
+    public void directGrants() {
+        CountingIdentityManager counting = new CountingIdentityManager(getIdentityManager());
+        RunAsIndex index = new RunAsIndex(counting.getIdentityManager());
+        int queries = counting.getCount("createRelationshipQuery");
+
+        assertTrue(index.isAuthorized("Oliver", "Harry"));
+        assertFalse(index.isAuthorized("Harry", "Oliver"));
+        assertTrue(index.isAuthorized("Sophie", "Emily"));
+        assertTrue(index.isAuthorized("Emily", "Sophie"));
+        assertFalse(index.isAuthorized("Jack", "Harry"));
+        assertFalse(index.isAuthorized("Unknown", "Harry"));
+        assertFalse(index.isAuthorized("Oliver", "Unknown"));
+
+        // Checks are answered from the index without accessing the store.
+        assertEquals(queries, counting.getCount("createRelationshipQuery"));
+        assertEquals(0, counting.getCount("getAgent"));
+    }
+
+    @Test
+    public void incrementalUpdates() {
+        createUsers("InA", "InB");
+        CountingIdentityManager counting = new CountingIdentityManager(getIdentityManager());
+        RunAsIndex index = new RunAsIndex(counting.getIdentityManager());
+        int queries = counting.getCount("createRelationshipQuery");
+        int size = index.size();
+        assertFalse(index.isAuthorized("InA", "InB"));
+
+        RunAsRelationship added = grant("InA", "InB");
+        index.runAsUpdated(added.getAuthenticatedIdentity(), added.getAuthorizedAs(), true);
+        assertTrue(index.isAuthorized("InA", "InB"));
+        assertEquals(size + 1, index.size());
+
+        getIdentityManager().remove(added);
+        index.runAsUpdated(added.getAuthenticatedIdentity(), added.getAuthorizedAs(), false);
+        assertFalse(index.isAuthorized("InA", "InB"));
+        assertEquals(size, index.size());
+
+        // Updates with both identities are applied without reloading.
+        assertEquals(queries, counting.getCount("createRelationshipQuery"));
+    }
+
+    @Test
+    public void unknownUpdateReloads() {
+        createUsers("UuA", "UuB");
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        Executor executor = new Executor() {
+
+            public void execute(final Runnable command) {
+                tasks.add(command);
+            }
+        };
+        RunAsIndex index = new RunAsIndex(getIdentityManager(), executor, 1);
+
+        // e.g. a change made on another node.
+        grant("UuA", "UuB");
+        index.runAsUpdated(null, null, true);
+        index.runAsUpdated(null, null, false);
+        assertFalse(index.isAuthorized("UuA", "UuB"));
+        // Pending reloads are coalesced.
+        assertEquals(1, tasks.size());
+
+        tasks.get(0).run();
+        assertTrue(index.isAuthorized("UuA", "UuB"));
+    }
+
+    @Test
+    public void backgroundReloadsCoalesced() {
+        createUsers("BgA", "BgB");
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        Executor executor = new Executor() {
+
+            public void execute(final Runnable command) {
+                tasks.add(command);
+            }
+        };
+        RunAsIndex index = new RunAsIndex(getIdentityManager(), executor);
+
+        grant("BgA", "BgB");
+        index.reloadInBackground();
+        index.reloadInBackground();
+        assertFalse(index.isAuthorized("BgA", "BgB"));
+        assertEquals(1, tasks.size());
+
+        tasks.get(0).run();
+        assertTrue(index.isAuthorized("BgA", "BgB"));
+    }
+
+    @Test
+    public void transitiveClosure() {
+        createUsers("TcA", "TcB", "TcC", "TcD", "TcE");
+        grant("TcA", "TcB");
+        grant("TcB", "TcC");
+        grant("TcC", "TcD");
+        grant("TcD", "TcE");
+
+        RunAsIndex direct = new RunAsIndex(getIdentityManager());
+        assertTrue(direct.isAuthorized("TcA", "TcB"));
+        assertFalse(direct.isAuthorized("TcA", "TcC"));
+
+        RunAsIndex transitive = new RunAsIndex(getIdentityManager(), null, 3);
+        assertTrue(transitive.isAuthorized("TcA", "TcB"));
+        assertTrue(transitive.isAuthorized("TcA", "TcC"));
+        assertTrue(transitive.isAuthorized("TcA", "TcD"));
+        // Beyond the maximum depth.
+        assertFalse(transitive.isAuthorized("TcA", "TcE"));
+        assertTrue(transitive.isAuthorized("TcB", "TcE"));
+        // Grants are not symmetric.
+        assertFalse(transitive.isAuthorized("TcB", "TcA"));
+    }
+
+    @Test
+    public void groupAndRoleMembership() {
+        createUsers("GrMember", "GrOther", "GrTarget", "GrSource", "GrAssignee");
+        IdentityManager identityManager = getIdentityManager();
+
+        SimpleGroup group = new SimpleGroup("GrGroup");
+        identityManager.add(group);
+        identityManager.add(new GroupMembership(identityManager.getAgent("GrMember"), group));
+        grant(group, identityManager.getAgent("GrTarget"));
+
+        SimpleRole role = new SimpleRole("GrRole");
+        identityManager.add(role);
+        identityManager.add(new Grant(identityManager.getAgent("GrAssignee"), role));
+        grant(identityManager.getAgent("GrSource"), role);
+
+        RunAsIndex index = new RunAsIndex(identityManager);
+        // A grant from a group applies to its members.
+        assertTrue(index.isAuthorized("GrMember", "GrTarget"));
+        assertFalse(index.isAuthorized("GrOther", "GrTarget"));
+        // A grant to a role allows running as its members.
+        assertTrue(index.isAuthorized("GrSource", "GrAssignee"));
+        assertFalse(index.isAuthorized("GrSource", "GrOther"));
+    }
+
+    @Test
+    public void revocationThroughIntermediate() {
+        createUsers("RvA", "RvB", "RvC");
+        grant("RvA", "RvB");
+        RunAsRelationship intermediate = grant("RvB", "RvC");
+
+        RunAsIndex index = new RunAsIndex(getIdentityManager(), null, 2);
+        assertTrue(index.isAuthorized("RvA", "RvC"));
+
+        getIdentityManager().remove(intermediate);
+        index.runAsUpdated(intermediate.getAuthenticatedIdentity(), intermediate.getAuthorizedAs(), false);
+        assertTrue(index.isAuthorized("RvA", "RvB"));
+        assertFalse(index.isAuthorized("RvB", "RvC"));
+        assertFalse(index.isAuthorized("RvA", "RvC"));
+
+        RunAsRelationship restored = grant("RvB", "RvC");
+        index.runAsUpdated(restored.getAuthenticatedIdentity(), restored.getAuthorizedAs(), true);
+        assertTrue(index.isAuthorized("RvA", "RvC"));
+    }
+
+    @Test
+    public void changesDuringReloadReplayed() {
+        createUsers("RlA", "RlB", "RlC");
+        final RunAsRelationship removed = grant("RlA", "RlC");
+        InterceptingIdentityManager intercepting = new InterceptingIdentityManager(getIdentityManager());
+        final RunAsIndex index = new RunAsIndex(intercepting.getIdentityManager());
+        assertTrue(index.isAuthorized("RlA", "RlC"));
+
+        // Change the store after the relationships have been read but before the new index is swapped in.
+        intercepting.beforeMemberships = new Runnable() {
+
+            public void run() {
+                RunAsRelationship added = grant("RlA", "RlB");
+                index.runAsUpdated(added.getAuthenticatedIdentity(), added.getAuthorizedAs(), true);
+                getIdentityManager().remove(removed);
+                index.runAsUpdated(removed.getAuthenticatedIdentity(), removed.getAuthorizedAs(), false);
+            }
+        };
+        index.reload();
+
+        assertTrue(index.isAuthorized("RlA", "RlB"));
+        assertFalse(index.isAuthorized("RlA", "RlC"));
+    }
+
+    @Test
+    public void relationshipsMaterializedLazily() {
+        createUsers("LzA", "LzB", "LzC");
+        IdentityManager identityManager = getIdentityManager();
+        SimpleRole role = new SimpleRole("LzRole");
+        identityManager.add(role);
+        grant("LzA", "LzB");
+        grant(identityManager.getAgent("LzA"), role);
+
+        CountingIdentityManager counting = new CountingIdentityManager(identityManager);
+        RunAsIndex index = new RunAsIndex(counting.getIdentityManager());
+        List<RunAsRelationship> relationships = index.getRelationships(identityManager.getAgent("LzA"));
+        assertEquals(2, relationships.size());
+        assertTrue(index.getRelationships(identityManager.getAgent("LzC")).isEmpty());
+        // The identities granted are only looked up when asked for.
+        assertEquals(0, counting.getCount("getAgent"));
+        assertEquals(0, counting.getCount("lookupIdentityById"));
+
+        List<String> granted = new ArrayList<String>();
+        for (RunAsRelationship current : relationships) {
+            assertEquals("LzA", ((Agent) current.getAuthenticatedIdentity()).getLoginName());
+            IdentityType authorizedAs = current.getAuthorizedAs();
+            granted.add(authorizedAs instanceof Agent ? ((Agent) authorizedAs).getLoginName() : authorizedAs.getId());
+            current.getAuthorizedAs();
+        }
+        assertTrue(granted.contains("LzB"));
+        assertTrue(granted.contains(role.getId()));
+        assertEquals(1, counting.getCount("getAgent"));
+        assertEquals(1, counting.getCount("lookupIdentityById"));
+    }
+
+    private static void createUsers(final String... loginNames) {
+        for (String current : loginNames) {
+            addUser(current, current + "_Password");
+        }
+    }
+
+    private RunAsRelationship grant(final String authenticated, final String authorizedAs) {
+        return grant(getIdentityManager().getAgent(authenticated), getIdentityManager().getAgent(authorizedAs));
+    }
+
+    private RunAsRelationship grant(final IdentityType authenticated, final IdentityType authorizedAs) {
+        RunAsRelationship relationship = new RunAsRelationship();
+        relationship.setAuthenticatedIdentity(authenticated);
+        relationship.setAuthorizedAs(authorizedAs);
+        getIdentityManager().add(relationship);
+
+        return relationship;
+    }
+
+    /**
+     * Runs a task once, the next time group memberships are queried.
+     */
+    private static class InterceptingIdentityManager implements InvocationHandler {
+
+        private final IdentityManager delegate;
+        private volatile Runnable beforeMemberships;
+
+        InterceptingIdentityManager(final IdentityManager delegate) {
+            this.delegate = delegate;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Runnable task = beforeMemberships;
+            if (task != null && "createRelationshipQuery".equals(method.getName()) && args[0] == GroupMembership.class) {
+                beforeMemberships = null;
+                task.run();
+            }
+
+            try {
+                return method.invoke(delegate, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        IdentityManager getIdentityManager() {
+            return (IdentityManager) Proxy.newProxyInstance(IdentityManager.class.getClassLoader(),
+                    new Class<?>[] { IdentityManager.class }, this);
+        }
+    }
+
+}
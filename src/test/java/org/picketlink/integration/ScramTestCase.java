@@ -0,0 +1,295 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.security.Provider;
+import java.security.Security;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.sasl.Sasl;
+import javax.security.sasl.SaslClient;
+import javax.security.sasl.SaslServer;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.picketlink.idm.credential.Password;
+import org.picketlink.integration.HandlerMetricsListener.CallbackType;
+import org.picketlink.integration.HandlerMetricsListener.Result;
+
+/**
+ * Test class to test the SCRAM-SHA-256 SASL mechanism against the single {@link IdentityManager} definition using cached
+ * verifiers.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class ScramTestCase extends AbstractTestBase {
+
+    private static final String SCRAM = "SCRAM-SHA-256";
+    private static final Provider picketLinkSaslProvider = new PicketLinkSaslProvider();
+
+    private CountingIdentityManager counting;
+    private ScramVerifierCache verifierCache;
+    private IdentityManagement management;
+    private PicketLinkCallbackHandler serverCallback;
+
+    @BeforeClass
+    public static void registerScramProvider() {
+        AccessController.doPrivileged(new PrivilegedAction<Integer>() {
+            public Integer run() {
+                return Security.addProvider(picketLinkSaslProvider);
+            }
+        });
+    }
+
+    @AfterClass
+    public static void removeScramProvider() {
+        AccessController.doPrivileged(new PrivilegedAction<Void>() {
+            public Void run() {
+                Security.removeProvider(picketLinkSaslProvider.getName());
+
+                return null;
+            }
+        });
+    }
+
+    @Before
+    public void createCallbackHandler() {
+        verifierCache = new ScramVerifierCache(100, 5, TimeUnit.MINUTES);
+        management = new IdentityManagement(getIdentityManager());
+        management.addListener(verifierCache);
+        management.updateCredential(getIdentityManager().getAgent("Jack"), new Password("Jack_Password".toCharArray()));
+        management.updateCredential(getIdentityManager().getAgent("Oliver"), new Password("Oliver_Password".toCharArray()));
+        management.updateCredential(getIdentityManager().getAgent("Harry"), new Password("Harry_Password".toCharArray()));
+
+        counting = new CountingIdentityManager(getIdentityManager());
+        serverCallback = new PicketLinkCallbackHandler(counting.getIdentityManager());
+        serverCallback.setScramVerifierCache(verifierCache);
+    }
+
+    /**
+     * Test a successful authentication using the SCRAM-SHA-256 mechanism.
+     */
+    @Test
+    public void successfulAuth() throws Exception {
+        SaslServer server = Sasl.createSaslServer(SCRAM, "TestProtocol", "TestServer", Collections.<String, Object> emptyMap(),
+                serverCallback);
+
+        CallbackHandler clientCallback = new ClientCallbackHandler("Jack", "Jack_Password".toCharArray());
+        SaslClient client = Sasl.createSaslClient(new String[] { SCRAM }, null, "TestProtocol", "TestServer",
+                Collections.<String, Object> emptyMap(), clientCallback);
+
+        assertTrue(client.hasInitialResponse());
+        exchange(client, server);
+        assertTrue(server.isComplete());
+        assertTrue(client.isComplete());
+        assertEquals("Jack", server.getAuthorizationID());
+        // The cached verifier is used, the store is not called to validate the password.
+        assertEquals(0, counting.getCount("validateCredentials"));
+    }
+
+    @Test
+    public void badPassword() throws Exception {
+        SaslServer server = Sasl.createSaslServer(SCRAM, "TestProtocol", "TestServer", Collections.<String, Object> emptyMap(),
+                serverCallback);
+
+        CallbackHandler clientCallback = new ClientCallbackHandler("Jack", "Olivia_Password".toCharArray());
+        SaslClient client = Sasl.createSaslClient(new String[] { SCRAM }, null, "TestProtocol", "TestServer",
+                Collections.<String, Object> emptyMap(), clientCallback);
+
+        try {
+            exchange(client, server);
+            fail("Expected exception not thrown.");
+        } catch (IOException expected) {
+        }
+
+        assertFalse(server.isComplete());
+    }
+
+    @Test
+    public void badUserName() throws Exception {
+        SaslServer server = Sasl.createSaslServer(SCRAM, "TestProtocol", "TestServer", Collections.<String, Object> emptyMap(),
+                serverCallback);
+
+        CallbackHandler clientCallback = new ClientCallbackHandler("Jackson", "Jack_Password".toCharArray());
+        SaslClient client = Sasl.createSaslClient(new String[] { SCRAM }, null, "TestProtocol", "TestServer",
+                Collections.<String, Object> emptyMap(), clientCallback);
+
+        try {
+            exchange(client, server);
+            fail("Expected exception not thrown.");
+        } catch (IOException expected) {
+        }
+
+        assertFalse(server.isComplete());
+    }
+
+    @Test
+    public void successfulAuthorization() throws Exception {
+        SaslServer server = Sasl.createSaslServer(SCRAM, "TestProtocol", "TestServer", Collections.<String, Object> emptyMap(),
+                serverCallback);
+
+        CallbackHandler clientCallback = new ClientCallbackHandler("Oliver", "Oliver_Password".toCharArray());
+        SaslClient client = Sasl.createSaslClient(new String[] { SCRAM }, "Harry", "TestProtocol", "TestServer",
+                Collections.<String, Object> emptyMap(), clientCallback);
+
+        exchange(client, server);
+        assertTrue(server.isComplete());
+        assertEquals("Harry", server.getAuthorizationID());
+    }
+
+    @Test
+    public void failedAuthorization() throws Exception {
+        SaslServer server = Sasl.createSaslServer(SCRAM, "TestProtocol", "TestServer", Collections.<String, Object> emptyMap(),
+                serverCallback);
+
+        CallbackHandler clientCallback = new ClientCallbackHandler("Harry", "Harry_Password".toCharArray());
+        SaslClient client = Sasl.createSaslClient(new String[] { SCRAM }, "Oliver", "TestProtocol", "TestServer",
+                Collections.<String, Object> emptyMap(), clientCallback);
+
+        try {
+            exchange(client, server);
+            fail("Expected exception not thrown.");
+        } catch (IOException expected) {
+        }
+
+        assertFalse(server.isComplete());
+    }
+
+    @Test
+    public void verifierFromPlainAuth() throws Exception {
+        assertNull(verifierCache.getVerifier("Charlie"));
+
+        SaslServer server = Sasl.createSaslServer("PLAIN", "TestProtocol", "TestServer",
+                Collections.<String, Object> emptyMap(), serverCallback);
+        SaslClient client = Sasl.createSaslClient(new String[] { "PLAIN" }, "Charlie", "TestProtocol", "TestServer",
+                Collections.<String, Object> emptyMap(),
+                new ClientCallbackHandler("Charlie", "Charlie_Password".toCharArray()));
+        server.evaluateResponse(client.evaluateChallenge(new byte[0]));
+        assertTrue(server.isComplete());
+        assertNotNull(verifierCache.getVerifier("Charlie"));
+
+        server = Sasl.createSaslServer(SCRAM, "TestProtocol", "TestServer", Collections.<String, Object> emptyMap(),
+                serverCallback);
+        client = Sasl.createSaslClient(new String[] { SCRAM }, null, "TestProtocol", "TestServer",
+                Collections.<String, Object> emptyMap(),
+                new ClientCallbackHandler("Charlie", "Charlie_Password".toCharArray()));
+
+        exchange(client, server);
+        assertTrue(server.isComplete());
+        assertEquals("Charlie", server.getAuthorizationID());
+    }
+
+    @Test
+    public void oldPasswordRejectedAfterChange() throws Exception {
+        management.updateCredential(getIdentityManager().getAgent("Lily"), new Password("Lily_Password".toCharArray()));
+        assertTrue(authenticate("Lily", "Lily_Password"));
+
+        management.updateCredential(getIdentityManager().getAgent("Lily"), new Password("Lily_Changed".toCharArray()));
+        assertFalse(authenticate("Lily", "Lily_Password"));
+        assertTrue(authenticate("Lily", "Lily_Changed"));
+    }
+
+    @Test
+    public void staleVerifierNotCached() throws Exception {
+        long generation = verifierCache.generation("Ruby");
+        // The credential changes while the old password is being verified.
+        verifierCache.invalidate("Ruby");
+        verifierCache.passwordVerified("Ruby", "Ruby_Password", generation);
+        assertNull(verifierCache.getVerifier("Ruby"));
+
+        verifierCache.passwordVerified("Ruby", "Ruby_Password", verifierCache.generation("Ruby"));
+        assertNotNull(verifierCache.getVerifier("Ruby"));
+    }
+
+    @Test
+    public void verifierExpires() throws Exception {
+        ScramVerifierCache expiring = new ScramVerifierCache(10, 4096, 0, TimeUnit.MILLISECONDS);
+        expiring.credentialUpdated("Jack", new Password("Jack_Password".toCharArray()));
+
+        assertNull(expiring.getVerifier("Jack"));
+        assertEquals(0, expiring.size());
+    }
+
+    @Test
+    public void failedProofThrottledAndAudited() throws Exception {
+        CallbackMetrics metrics = new CallbackMetrics();
+        LoginThrottle throttle = new LoginThrottle(2, 100, 1, TimeUnit.MINUTES, 100);
+        serverCallback.setMetricsListener(metrics);
+        serverCallback.setLoginThrottle(throttle);
+
+        assertTrue(authenticate("Harry", "Harry_Password"));
+        assertEquals(1, metrics.getCount(CallbackType.SCRAM_VERIFIER, Result.VERIFIED));
+
+        assertFalse(authenticate("Harry", "Jack_Password"));
+        assertFalse(authenticate("Harry", "Jack_Password"));
+        assertEquals(2, metrics.getCount(CallbackType.SCRAM_VERIFIER, Result.REJECTED));
+        assertEquals(1, metrics.getCount(CallbackType.SCRAM_VERIFIER, Result.VERIFIED));
+
+        // Throttled before the verifier is handed out, even with the correct password.
+        assertFalse(authenticate("Harry", "Harry_Password"));
+        assertEquals(1, throttle.getThrottledCount());
+        assertEquals(3, metrics.getCount(CallbackType.SCRAM_VERIFIER, Result.REJECTED));
+        assertEquals(1, metrics.getCount(CallbackType.SCRAM_VERIFIER, Result.VERIFIED));
+    }
+
+    private boolean authenticate(final String username, final String password) throws IOException {
+        SaslServer server = Sasl.createSaslServer(SCRAM, "TestProtocol", "TestServer", Collections.<String, Object> emptyMap(),
+                serverCallback);
+        SaslClient client = Sasl.createSaslClient(new String[] { SCRAM }, null, "TestProtocol", "TestServer",
+                Collections.<String, Object> emptyMap(), new ClientCallbackHandler(username, password.toCharArray()));
+
+        try {
+            exchange(client, server);
+        } catch (IOException e) {
+            return false;
+        }
+
+        return server.isComplete();
+    }
+
+    /**
+     * Run the exchange through to the client verifying the final server message.
+     */
+    private void exchange(final SaslClient client, final SaslServer server) throws IOException {
+        byte[] message = client.evaluateChallenge(new byte[0]);
+        while (server.isComplete() == false) {
+            byte[] challenge = server.evaluateResponse(message);
+            message = client.evaluateChallenge(challenge);
+        }
+        assertTrue(client.isComplete());
+    }
+
+}
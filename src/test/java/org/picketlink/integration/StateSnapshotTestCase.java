@@ -0,0 +1,209 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test case to verify writing and restoring a {@link StateSnapshot}.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class StateSnapshotTestCase extends AbstractTestBase {
+
+    private static final byte[] KEY = "0123456789abcdef0123456789abcdef".getBytes();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTrip() throws Exception {
+        File file = writeSnapshot();
+
+        StateSnapshot snapshot = new StateSnapshot(file, KEY);
+        assertTrue(snapshot.isAvailable());
+        assertNotNull(snapshot.getSection(StateSnapshot.RUN_AS_INDEX));
+        assertNotNull(snapshot.getSection(StateSnapshot.UNKNOWN_AGENT_FILTER));
+
+        CountingIdentityManager counting = new CountingIdentityManager(getIdentityManager());
+        DeferredExecutor executor = new DeferredExecutor();
+        RunAsIndex index = new RunAsIndex(counting.getIdentityManager(), executor, 1, snapshot);
+        UnknownAgentFilter filter = new UnknownAgentFilter(counting.getIdentityManager(), 100, 0.01, 10, 1,
+                TimeUnit.MINUTES, executor, snapshot);
+
+        // Answered from the snapshot before the store is accessed.
+        assertTrue(index.isAuthorized("Oliver", "Harry"));
+        assertFalse(index.isAuthorized("Harry", "Oliver"));
+        assertTrue(filter.mightExist("Jack"));
+        assertEquals(0, counting.getCount("createRelationshipQuery"));
+        assertEquals(0, counting.getCount("createIdentityQuery"));
+
+        // Both are revalidated against the store in the background.
+        assertEquals(2, executor.tasks.size());
+        executor.runAll();
+        assertTrue(counting.getCount("createRelationshipQuery") > 0);
+        assertTrue(counting.getCount("createIdentityQuery") > 0);
+        assertTrue(index.isAuthorized("Oliver", "Harry"));
+    }
+
+    @Test
+    public void credentialsNotWritten() throws Exception {
+        File file = writeSnapshot();
+
+        // The former credential cache section.
+        assertNull(new StateSnapshot(file, KEY).getSection(1));
+    }
+
+    @Test
+    public void corruptFileIgnored() throws Exception {
+        File file = writeSnapshot();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long position = raf.length() - 1;
+            raf.seek(position);
+            int last = raf.read();
+            raf.seek(position);
+            raf.write(last ^ 0x01);
+        } finally {
+            raf.close();
+        }
+
+        assertUnavailable(file, KEY);
+    }
+
+    @Test
+    public void modifiedHeaderIgnored() throws Exception {
+        File file = writeSnapshot();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // Reduce the section count from 2 to 1 so only the first section would be read.
+            raf.seek(11);
+            int count = raf.read();
+            raf.seek(11);
+            raf.write(count ^ 0x03);
+        } finally {
+            raf.close();
+        }
+
+        assertUnavailable(file, KEY);
+    }
+
+    @Test
+    public void truncatedFileIgnored() throws Exception {
+        File file = writeSnapshot();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() / 2);
+        } finally {
+            raf.close();
+        }
+
+        assertUnavailable(file, KEY);
+    }
+
+    @Test
+    public void differentKeyIgnored() throws Exception {
+        File file = writeSnapshot();
+
+        assertUnavailable(file, "fedcba9876543210fedcba9876543210".getBytes());
+    }
+
+    @Test
+    public void missingFileIgnored() throws Exception {
+        assertFalse(new StateSnapshot(new File(folder.getRoot(), "missing"), KEY).isAvailable());
+    }
+
+    @Test
+    public void ownerOnlyPermissions() throws Exception {
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix") == false) {
+            return;
+        }
+        File file = writeSnapshot();
+
+        assertEquals(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE),
+                Files.getPosixFilePermissions(file.toPath()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shortKeyRejected() {
+        new StateSnapshot(new File(folder.getRoot(), "snapshot"), new byte[8]);
+    }
+
+    private File writeSnapshot() throws Exception {
+        File file = new File(folder.getRoot(), "snapshot");
+        StateSnapshot snapshot = new StateSnapshot(file, KEY);
+        assertFalse(snapshot.isAvailable());
+        new RunAsIndex(getIdentityManager(), null, 1, snapshot);
+        new UnknownAgentFilter(getIdentityManager(), 100, 0.01, 10, 1, TimeUnit.MINUTES, null, snapshot);
+        snapshot.write();
+
+        return file;
+    }
+
+    private void assertUnavailable(final File file, final byte[] key) {
+        StateSnapshot snapshot = new StateSnapshot(file, key);
+        assertFalse(snapshot.isAvailable());
+
+        // The index is loaded from the store as it would be without a snapshot.
+        CountingIdentityManager counting = new CountingIdentityManager(getIdentityManager());
+        RunAsIndex index = new RunAsIndex(counting.getIdentityManager(), null, 1, snapshot);
+        assertTrue(counting.getCount("createRelationshipQuery") > 0);
+        assertTrue(index.isAuthorized("Oliver", "Harry"));
+    }
+
+    private static class DeferredExecutor implements Executor {
+
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        public void execute(final Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            for (Runnable current : tasks) {
+                current.run();
+            }
+            tasks.clear();
+        }
+    }
+
+}
@@ -0,0 +1,262 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketlink.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import io.undertow.Undertow;
+import io.undertow.security.api.AuthenticationMechanism;
+import io.undertow.security.api.AuthenticationMode;
+import io.undertow.security.handlers.AuthenticationCallHandler;
+import io.undertow.security.handlers.AuthenticationConstraintHandler;
+import io.undertow.security.handlers.AuthenticationMechanismsHandler;
+import io.undertow.security.handlers.SecurityInitialHandler;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.picketlink.idm.credential.Password;
+
+/**
+ * Test case to verify HTTP Basic authentication using the {@link CachingBasicAuthenticationMechanism} and
+ * {@link UndertowIdentityManager} within an embedded Undertow server.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class UndertowBasicTestCase extends AbstractTestBase {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String RUN_AS_HEADER = "X-Run-As";
+    private static final int REQUEST_COUNT = 500;
+
+    private CountingIdentityManager counting;
+    private volatile Runnable beforeValidate;
+    private CachingBasicAuthenticationMechanism mechanism;
+    private Undertow server;
+    private URL url;
+
+    @Before
+    public void startServer() throws IOException {
+        startServer(100);
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    /**
+     * @param maxEntries - the maximum number of accounts cached by the mechanism, 0 to disable caching.
+     */
+    private void startServer(final int maxEntries) throws IOException {
+        counting = new CountingIdentityManager(getIdentityManager());
+        final org.picketlink.idm.IdentityManager counted = counting.getIdentityManager();
+        // Allows a test to act while a password is being verified.
+        org.picketlink.idm.IdentityManager intercepting = (org.picketlink.idm.IdentityManager) Proxy.newProxyInstance(
+                org.picketlink.idm.IdentityManager.class.getClassLoader(),
+                new Class<?>[] { org.picketlink.idm.IdentityManager.class }, new InvocationHandler() {
+
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        Runnable before = beforeValidate;
+                        if (before != null && "validateCredentials".equals(method.getName())) {
+                            before.run();
+                        }
+                        try {
+                            return method.invoke(counted, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+        UndertowIdentityManager identityManager = new UndertowIdentityManager(new PicketLinkCallbackHandler(intercepting));
+        mechanism = new CachingBasicAuthenticationMechanism("ManagementRealm", maxEntries, 5, TimeUnit.MINUTES);
+        mechanism.setRunAsHeader(RUN_AS_HEADER);
+
+        HttpHandler handler = new HttpHandler() {
+
+            public void handleRequest(final HttpServerExchange exchange) throws Exception {
+                exchange.getResponseSender().send(
+                        exchange.getSecurityContext().getAuthenticatedAccount().getPrincipal().getName());
+            }
+        };
+        handler = new AuthenticationCallHandler(handler);
+        handler = new AuthenticationConstraintHandler(handler);
+        handler = new AuthenticationMechanismsHandler(handler,
+                Collections.<AuthenticationMechanism> singletonList(mechanism));
+        handler = new SecurityInitialHandler(AuthenticationMode.PRO_ACTIVE, identityManager, handler);
+
+        int port = freePort();
+        server = Undertow.builder().addHttpListener(port, "localhost").setHandler(handler).build();
+        server.start();
+        url = new URL("http://localhost:" + port + "/");
+    }
+
+    @Test
+    public void repeatedRequestsUseCache() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            assertEquals("Jack", request("Jack", "Jack_Password", null));
+        }
+
+        assertEquals(1, counting.getCount("validateCredentials"));
+        assertEquals(9, mechanism.getHitCount());
+        assertEquals(1, mechanism.getMissCount());
+    }
+
+    @Test
+    public void badPasswordRejected() throws Exception {
+        assertNull(request("Oliver", "Harry_Password", null));
+        assertNull(request("Oliver", "Harry_Password", null));
+        assertNull(request(null, null, null));
+
+        assertEquals(2, counting.getCount("validateCredentials"));
+        assertEquals(0, mechanism.size());
+    }
+
+    @Test
+    public void runAs() throws Exception {
+        assertEquals("Harry", request("Oliver", "Oliver_Password", "Harry"));
+        assertNull(request("Oliver", "Oliver_Password", "Sophie"));
+        assertEquals("Oliver", request("Oliver", "Oliver_Password", null));
+    }
+
+    @Test
+    public void updateCredentialInvalidates() throws Exception {
+        addUser("Archie", "Archie_Password");
+        IdentityManagement management = new IdentityManagement(getIdentityManager());
+        management.addListener(mechanism);
+
+        assertEquals("Archie", request("Archie", "Archie_Password", null));
+        assertEquals(1, mechanism.size());
+
+        management.updateCredential(getIdentityManager().getAgent("Archie"), new Password("Archie_New_Password".toCharArray()));
+        assertEquals(0, mechanism.size());
+
+        assertNull(request("Archie", "Archie_Password", null));
+        assertEquals("Archie", request("Archie", "Archie_New_Password", null));
+    }
+
+    @Test
+    public void updateDuringVerificationNotCached() throws Exception {
+        addUser("Teddy", "Teddy_Password");
+
+        // The credential is updated after the old password has been read for verification.
+        beforeValidate = new Runnable() {
+
+            public void run() {
+                beforeValidate = null;
+                mechanism.credentialUpdated("Teddy", null);
+            }
+        };
+        assertEquals("Teddy", request("Teddy", "Teddy_Password", null));
+        assertEquals(0, mechanism.size());
+
+        assertEquals("Teddy", request("Teddy", "Teddy_Password", null));
+        assertEquals(1, mechanism.size());
+    }
+
+    @Test
+    public void throughput() throws Exception {
+        measure("Cached");
+        assertEquals(1, counting.getCount("validateCredentials"));
+
+        stopServer();
+        startServer(0);
+        measure("Uncached");
+        assertEquals(REQUEST_COUNT + 1, counting.getCount("validateCredentials"));
+    }
+
+    private void measure(final String description) throws Exception {
+        request("Ruby", "Ruby_Password", null);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            assertEquals("Ruby", request("Ruby", "Ruby_Password", null));
+        }
+        long time = System.nanoTime() - start;
+
+        System.out.println(String.format("%s - %d requests/sec", description,
+                REQUEST_COUNT * TimeUnit.SECONDS.toNanos(1) / time));
+    }
+
+    /**
+     * @return the body of the response or null if the request was not authenticated.
+     */
+    private String request(final String username, final String password, final String runAs) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (username != null) {
+            String credentials = username + ":" + password;
+            connection.setRequestProperty("Authorization",
+                    "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(UTF_8)));
+        }
+        if (runAs != null) {
+            connection.setRequestProperty(RUN_AS_HEADER, runAs);
+        }
+
+        int status = connection.getResponseCode();
+        InputStream in = status == HttpURLConnection.HTTP_OK ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (in != null) {
+            byte[] buffer = new byte[256];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                body.write(buffer, 0, read);
+            }
+            in.close();
+        }
+
+        if (status == HttpURLConnection.HTTP_UNAUTHORIZED) {
+            assertEquals("Basic realm=\"ManagementRealm\"", connection.getHeaderField("WWW-Authenticate"));
+            return null;
+        }
+        assertEquals(HttpURLConnection.HTTP_OK, status);
+
+        return new String(body.toByteArray(), UTF_8);
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.picketlink.idm.IdentityManager;
+
+/**
+ * Test case to verify the {@link UnknownAgentFilter}.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class UnknownAgentFilterTestCase extends AbstractTestBase {
+
+    @Test
+    public void unknownAgentsRejected() {
+        UnknownAgentFilter filter = createFilter(getIdentityManager(), 5, TimeUnit.MINUTES);
+
+        assertTrue(filter.mightExist("Jack"));
+        assertTrue(filter.mightExist("Emily"));
+        assertFalse(filter.mightExist("Jackson"));
+        assertFalse(filter.mightExist("Nobody"));
+        assertEquals(2, filter.getRejectedCount());
+    }
+
+    @Test
+    public void negativeCache() {
+        UnknownAgentFilter filter = createFilter(getIdentityManager(), 5, TimeUnit.MINUTES);
+
+        // As if Olivia were a false positive of the filter.
+        filter.agentNotFound("Olivia");
+        assertFalse(filter.mightExist("Olivia"));
+        assertEquals(1, filter.getRejectedCount());
+
+        // An agent added is removed from the negative cache.
+        filter.agentAdded("Olivia");
+        assertTrue(filter.mightExist("Olivia"));
+    }
+
+    @Test
+    public void negativeCacheExpires() {
+        UnknownAgentFilter filter = createFilter(getIdentityManager(), 0, TimeUnit.MILLISECONDS);
+
+        filter.agentNotFound("Olivia");
+        assertTrue(filter.mightExist("Olivia"));
+    }
+
+    @Test
+    public void agentAdded() {
+        UnknownAgentFilter filter = createFilter(getIdentityManager(), 5, TimeUnit.MINUTES);
+        assertFalse(filter.mightExist("FilterAdded"));
+
+        filter.agentAdded("FilterAdded");
+        assertTrue(filter.mightExist("FilterAdded"));
+    }
+
+    @Test
+    public void rebuild() {
+        UnknownAgentFilter filter = createFilter(getIdentityManager(), 5, TimeUnit.MINUTES);
+        filter.agentNotFound("Ruby");
+
+        // Added directly to the store without notifying the filter.
+        addUser("FilterRebuilt", "FilterRebuilt_Password");
+        assertFalse(filter.mightExist("FilterRebuilt"));
+        assertFalse(filter.mightExist("Ruby"));
+
+        filter.rebuild();
+        assertTrue(filter.mightExist("FilterRebuilt"));
+        // The negative cache is cleared by a rebuild.
+        assertTrue(filter.mightExist("Ruby"));
+    }
+
+    @Test
+    public void agentAddedDuringRebuild() {
+        InterceptingIdentityManager intercepting = new InterceptingIdentityManager(getIdentityManager());
+        final UnknownAgentFilter filter = createFilter(intercepting.getIdentityManager(), 5, TimeUnit.MINUTES);
+
+        // The agent is added after the store has been read but before the new filter replaces the current one.
+        intercepting.afterQuery = new Runnable() {
+
+            public void run() {
+                filter.agentAdded("FilterConcurrent");
+            }
+        };
+        filter.rebuild();
+
+        assertTrue(filter.mightExist("FilterConcurrent"));
+    }
+
+    private static UnknownAgentFilter createFilter(final IdentityManager identityManager, final long negativeTimeToLive,
+            final TimeUnit unit) {
+        return new UnknownAgentFilter(identityManager, 100, 0.0001, 10, negativeTimeToLive, unit);
+    }
+
+    /**
+     * Runs a task once, after the next identity query has been created.
+     */
+    private static class InterceptingIdentityManager implements InvocationHandler {
+
+        private final IdentityManager delegate;
+        private volatile Runnable afterQuery;
+
+        InterceptingIdentityManager(final IdentityManager delegate) {
+            this.delegate = delegate;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(delegate, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            } finally {
+                Runnable task = afterQuery;
+                if (task != null && "createIdentityQuery".equals(method.getName())) {
+                    afterQuery = null;
+                    task.run();
+                }
+            }
+        }
+
+        IdentityManager getIdentityManager() {
+            return (IdentityManager) Proxy.newProxyInstance(IdentityManager.class.getClassLoader(),
+                    new Class<?>[] { IdentityManager.class }, this);
+        }
+    }
+
+}
@@ -0,0 +1,228 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2013, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketlink.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.NameCallback;
+
+import org.jboss.sasl.callback.VerifyPasswordCallback;
+import org.junit.Test;
+
+/**
+ * Test case to verify the shedding of verifications by a saturated {@link VerificationPool}.
+ *
+ * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
+ */
+public class VerificationPoolTestCase extends AbstractTestBase {
+
+    @Test
+    public void fullQueueRejects() throws Exception {
+        final VerificationPool pool = new VerificationPool(1, 1, 1, TimeUnit.MINUTES);
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger verified = new AtomicInteger();
+        final Callable<Boolean> blocking = new Callable<Boolean>() {
+
+            public Boolean call() throws Exception {
+                entered.countDown();
+                release.await();
+                return Boolean.TRUE;
+            }
+        };
+
+        try {
+            Thread running = verifyInBackground(pool, blocking, verified);
+            assertTrue(entered.await(5, TimeUnit.SECONDS));
+            Thread queued = verifyInBackground(pool, blocking, verified);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (pool.getQueueDepth() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(1, pool.getQueueDepth());
+
+            // Rejected immediately without waiting for the thread or the queue.
+            try {
+                pool.verify(blocking);
+                fail("Expected exception not thrown.");
+            } catch (IOException expected) {
+            }
+            assertEquals(1, pool.getRejectedCount());
+
+            release.countDown();
+            running.join(5000);
+            queued.join(5000);
+            assertEquals(2, verified.get());
+            assertEquals(2, pool.getCompletedCount());
+        } finally {
+            release.countDown();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void expiredVerificationNotRun() throws Exception {
+        VerificationPool pool = new VerificationPool(1, 1, 50, TimeUnit.MILLISECONDS);
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean queuedRun = new AtomicBoolean();
+
+        try {
+            verifyInBackground(pool, new Callable<Boolean>() {
+
+                public Boolean call() throws Exception {
+                    entered.countDown();
+                    release.await();
+                    return Boolean.TRUE;
+                }
+            }, new AtomicInteger());
+            assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+            try {
+                pool.verify(new Callable<Boolean>() {
+
+                    public Boolean call() {
+                        queuedRun.set(true);
+                        return Boolean.TRUE;
+                    }
+                });
+                fail("Expected exception not thrown.");
+            } catch (IOException expected) {
+            }
+
+            // The abandoned verification is removed from the queue.
+            assertEquals(0, pool.getQueueDepth());
+            assertTrue(pool.getExpiredCount() >= 1);
+            release.countDown();
+            Thread.sleep(50);
+            assertFalse(queuedRun.get());
+        } finally {
+            release.countDown();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void deadlinePerVerification() throws Exception {
+        VerificationPool pool = new VerificationPool(1, 1, 1, TimeUnit.MINUTES);
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean queuedRun = new AtomicBoolean();
+        Callable<Boolean> queued = new Callable<Boolean>() {
+
+            public Boolean call() {
+                queuedRun.set(true);
+                return Boolean.TRUE;
+            }
+        };
+
+        try {
+            verifyInBackground(pool, new Callable<Boolean>() {
+
+                public Boolean call() throws Exception {
+                    entered.countDown();
+                    release.await();
+                    return Boolean.TRUE;
+                }
+            }, new AtomicInteger());
+            assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+            // Abandoned after its own deadline rather than the minute the pool defaults to.
+            long start = System.nanoTime();
+            try {
+                pool.verify(queued, 50, TimeUnit.MILLISECONDS);
+                fail("Expected exception not thrown.");
+            } catch (IOException expected) {
+            }
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(30));
+            assertEquals(0, pool.getQueueDepth());
+
+            // An exhausted deadline is not submitted at all.
+            try {
+                pool.verify(queued, 0, TimeUnit.MILLISECONDS);
+                fail("Expected exception not thrown.");
+            } catch (IOException expected) {
+            }
+            assertEquals(0, pool.getQueueDepth());
+            assertEquals(2, pool.getExpiredCount());
+
+            release.countDown();
+            assertTrue(pool.verify(queued, 5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void handlerVerifiesOnPool() throws Exception {
+        VerificationPool pool = new VerificationPool(2, 10, 1, TimeUnit.MINUTES);
+        try {
+            PicketLinkCallbackHandler handler = new PicketLinkCallbackHandler(getIdentityManager());
+            handler.setVerificationPool(pool);
+
+            VerifyPasswordCallback vpc = new VerifyPasswordCallback("Jack_Password");
+            handler.handle(new Callback[] { new NameCallback("Username", "Jack"), vpc });
+            assertTrue(vpc.isVerified());
+
+            vpc = new VerifyPasswordCallback("Ruby_Password");
+            handler.handle(new Callback[] { new NameCallback("Username", "Jack"), vpc });
+            assertFalse(vpc.isVerified());
+
+            assertEquals(2, pool.getCompletedCount());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static Thread verifyInBackground(final VerificationPool pool, final Callable<Boolean> verification,
+            final AtomicInteger verified) {
+        Thread thread = new Thread(new Runnable() {
+
+            public void run() {
+                try {
+                    if (pool.verify(verification)) {
+                        verified.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    // Counted by the pool.
+                }
+            }
+        });
+        thread.start();
+
+        return thread;
+    }
+
+}